@@ -0,0 +1,296 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Request log of a server, written off the request threads.
+ *
+ * Request threads claim a slot of a bounded ring with a compare-and-set, fill in its fields and
+ * publish it; nothing is formatted or allocated on their side, and nothing blocks. When the ring
+ * is full the record is dropped and counted. A single writer thread drains the ring in batches,
+ * formats each record as one line and appends it to the log file, which is rotated at maxBytes
+ * into file.1 ... file.N.
+ *
+ * Records below the level are skipped before they reach the ring, and only a sample of the
+ * successful requests is kept; failed ones and events at WARN or above always are.
+ *
+ *   2026-10-18T09:14:03.125Z INFO GET abc123 307 412us cache
+ *   2026-10-18T09:14:03.130Z WARN localhost:8090 is down
+ */
+public class AccessLog implements Runnable {
+
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR = 3;
+    private static final String[] LEVELS = {"DEBUG", "INFO", "WARN", "ERROR"};
+
+    // records drained per write, and how long the writer parks when the ring is empty
+    static final int BATCH = 4096;
+    static final long IDLE_PARK_NANOS = 2_000_000;
+
+    private final Path file;
+    private final int level;
+    private final double sample;
+    private final long maxBytes;
+    private final int files;
+
+    // slot i holds record pos while sequences[i] == pos + 1, and is free for pos while it is pos
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+    private long written;
+    private OutputStream out;
+    private long size;
+    private volatile boolean closing;
+    private Thread writer;
+
+    /**
+     * Opens the log and starts its writer thread, which a shutdown hook closes.
+     *
+     * @param file      log file, or "-" for standard output
+     * @param capacity  records buffered, rounded up to a power of two
+     * @param level     lowest level recorded: DEBUG, INFO, WARN or ERROR
+     * @param sample    share of successful requests recorded, 0 to 1
+     * @param maxBytes  size at which the file is rotated, 0 to never rotate
+     * @param files     rotated files kept
+     */
+    public static AccessLog start(String file, int capacity, String level, double sample, long maxBytes,
+            int files) throws IOException {
+        AccessLog log = new AccessLog(file, capacity, level, sample, maxBytes, files);
+        log.writer = new Thread(log, "access-log");
+        log.writer.setDaemon(true);
+        log.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close, "access-log-close"));
+        return log;
+    }
+
+    private AccessLog(String file, int capacity, String level, double sample, long maxBytes, int files)
+            throws IOException {
+        this.file = file.equals("-") ? null : Paths.get(file);
+        this.level = parseLevel(level);
+        this.sample = sample;
+        this.maxBytes = maxBytes;
+        this.files = files;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new Slot[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        open();
+    }
+
+    static int parseLevel(String name) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    public boolean isEnabled(int level) {
+        return level >= this.level;
+    }
+
+    /**
+     * Records one request: method, short code, status sent, time since startNanos and where the
+     * answer came from (cache, filter, store, commit, or the backend that served it).
+     */
+    public void access(String method, String shortCode, int status, long startNanos, String source) {
+        int recordLevel = status >= 500 ? WARN : INFO;
+        if (!isEnabled(recordLevel)) {
+            return;
+        }
+        if (status < 400 && sample < 1 && ThreadLocalRandom.current().nextDouble() >= sample) {
+            return;
+        }
+        append(recordLevel, method, shortCode, status, (System.nanoTime() - startNanos) / 1000, source);
+    }
+
+    /**
+     * Records an event; message should be cheap to build, or guarded by isEnabled.
+     */
+    public void log(int level, String message) {
+        if (isEnabled(level)) {
+            append(level, null, null, 0, 0, message);
+        }
+    }
+
+    private void append(int level, String method, String shortCode, int status, long micros, String detail) {
+        long pos;
+        while (true) {
+            pos = tail.get();
+            long sequence = sequences.get((int) pos & mask);
+            if (sequence == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (sequence < pos) {
+                // the writer has not drained this slot yet
+                dropped.increment();
+                return;
+            }
+        }
+        Slot slot = slots[(int) pos & mask];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.method = method;
+        slot.shortCode = shortCode;
+        slot.status = status;
+        slot.micros = micros;
+        slot.detail = detail;
+        sequences.set((int) pos & mask, pos + 1);
+    }
+
+    @Override
+    public void run() {
+        StringBuilder batch = new StringBuilder(BATCH * 64);
+        while (true) {
+            boolean stopping = closing;
+            int drained = drain(batch);
+            long droppedNow = dropped.sum();
+            if (droppedNow != droppedReported) {
+                batch.append(Instant.ofEpochMilli(System.currentTimeMillis()))
+                        .append(" WARN access log full, dropped ").append(droppedNow - droppedReported)
+                        .append(" records\n");
+                droppedReported = droppedNow;
+            }
+            try {
+                if (batch.length() > 0) {
+                    write(batch);
+                    batch.setLength(0);
+                }
+                if (drained < BATCH) {
+                    out.flush();
+                    if (stopping) {
+                        if (file != null) {
+                            out.close();
+                        }
+                        return;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (IOException e) {
+                batch.setLength(0);
+                System.err.println("Access log error: " + e.getMessage());
+                LockSupport.parkNanos(IDLE_PARK_NANOS * 500);
+            }
+        }
+    }
+
+    private int drain(StringBuilder batch) {
+        int drained = 0;
+        while (drained < BATCH) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Slot slot = slots[index];
+            batch.append(Instant.ofEpochMilli(slot.time)).append(' ').append(LEVELS[slot.level]).append(' ');
+            if (slot.method != null) {
+                batch.append(slot.method).append(' ').append(slot.shortCode).append(' ').append(slot.status)
+                        .append(' ').append(slot.micros).append("us ");
+            }
+            batch.append(slot.detail).append('\n');
+            slot.method = null;
+            slot.shortCode = null;
+            slot.detail = null;
+            sequences.set(index, head + slots.length);
+            head++;
+            drained++;
+        }
+        written += drained;
+        return drained;
+    }
+
+    private void write(StringBuilder batch) throws IOException {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        if (file != null && maxBytes > 0 && size > 0 && size + bytes.length > maxBytes) {
+            rotate();
+        }
+        out.write(bytes);
+        size += bytes.length;
+    }
+
+    private void open() throws IOException {
+        if (file == null) {
+            out = System.out;
+            return;
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        out = new BufferedOutputStream(new FileOutputStream(file.toFile(), true), 1 << 16);
+        size = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        for (int i = files - 1; i >= 1; i--) {
+            Path older = Paths.get(file + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (files > 0) {
+            Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    /**
+     * Writes out what is buffered and stops the writer, waiting for it up to a second.
+     */
+    public void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "accessLog[" + (file == null ? "stdout" : file) + " level=" + LEVELS[level] + " sample=" + sample
+                + " written=" + written + " dropped=" + dropped.sum() + "]";
+    }
+
+    private static final class Slot {
+        long time;
+        int level;
+        String method;
+        String shortCode;
+        int status;
+        long micros;
+        String detail;
+    }
+}
@@ -0,0 +1,275 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keep-alive connections from the proxy to the URL Shortener nodes, shared by all client threads.
+ *
+ * Each backend host gets at most maxTotal connections in use at once, and at most maxIdle
+ * are kept once returned. Idle connections are reused most recent first; one idle longer than
+ * idleTimeout is closed instead, since the URL Shortener will have timed it out, and one
+ * idle longer than validateAfter is checked for a close from the other side first.
+ */
+public class BackendPool {
+
+    private final int port;
+    private final int maxTotal;
+    private final int maxIdle;
+    private final long idleTimeout;
+    private final long validateAfter;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long borrowTimeout;
+    private final Map<String, HostPool> hosts = new ConcurrentHashMap<>();
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+
+    /**
+     * @param port            port of the URL Shortener nodes listed without one
+     * @param maxTotal        connections in use per host
+     * @param maxIdle         idle connections kept per host
+     * @param idleTimeout     ms after which an idle connection is closed
+     * @param validateAfter   ms of idleness after which a connection is checked before reuse
+     * @param connectTimeout  ms to wait for a new connection
+     * @param readTimeout     ms a read from a backend may block, so a hung one frees its slot; 0 for no limit
+     * @param borrowTimeout   ms to wait for a free slot once a host has maxTotal connections
+     */
+    public BackendPool(int port, int maxTotal, int maxIdle, long idleTimeout, long validateAfter,
+                       int connectTimeout, int readTimeout, long borrowTimeout) {
+        this.port = port;
+        this.maxTotal = maxTotal;
+        this.maxIdle = Math.min(maxIdle, maxTotal);
+        this.idleTimeout = idleTimeout;
+        this.validateAfter = validateAfter;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * A live connection to host, reused if one is idle. Must be given back with release.
+     */
+    public Connection borrow(String host) throws IOException {
+        if (host == null) {
+            throw new IOException("No URL Shortener host is configured");
+        }
+        HostPool pool = hosts.computeIfAbsent(host, key -> new HostPool(maxTotal));
+        if (!pool.slots.tryAcquire()) {
+            waits.increment();
+            try {
+                if (!pool.slots.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                    exhausted.increment();
+                    throw new IOException("No connection to " + host + " free within " + borrowTimeout + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + host, e);
+            }
+        }
+
+        try {
+            Connection connection;
+            while ((connection = pool.poll()) != null) {
+                long idle = System.currentTimeMillis() - connection.idleSince;
+                if (idle > idleTimeout) {
+                    expired.increment();
+                    connection.close();
+                } else if (idle > validateAfter && !connection.isAlive()) {
+                    stale.increment();
+                    connection.close();
+                } else {
+                    reused.increment();
+                    connection.uses++;
+                    return connection;
+                }
+            }
+
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(Node.host(host), Node.port(host, port)), connectTimeout);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(readTimeout);
+            } catch (IOException e) {
+                socket.close();
+                connectFailures.increment();
+                throw e;
+            }
+            created.increment();
+            return new Connection(host, socket);
+        } catch (IOException | RuntimeException e) {
+            pool.slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection, keeping it for reuse if reusable and there is room.
+     */
+    public void release(Connection connection, boolean reusable) {
+        HostPool pool = hosts.get(connection.host);
+        if (!reusable || connection.socket.isClosed() || !pool.offer(connection, maxIdle)) {
+            connection.close();
+        }
+        pool.slots.release();
+    }
+
+    /**
+     * Closes the idle connections to host, e.g. after one of them turned out to be dead.
+     */
+    public void evictIdle(String host) {
+        HostPool pool = hosts.get(host);
+        if (pool == null) {
+            return;
+        }
+        Connection connection;
+        while ((connection = pool.poll()) != null) {
+            stale.increment();
+            connection.close();
+        }
+    }
+
+    public int openConnections(String host) {
+        HostPool pool = hosts.get(host);
+        return pool == null ? 0 : maxTotal - pool.slots.availablePermits() + pool.idleCount();
+    }
+
+    public int idleConnections(String host) {
+        HostPool pool = hosts.get(host);
+        return pool == null ? 0 : pool.idleCount();
+    }
+
+    public long createdCount() {
+        return created.sum();
+    }
+
+    public long reusedCount() {
+        return reused.sum();
+    }
+
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    public long staleCount() {
+        return stale.sum();
+    }
+
+    public long waitCount() {
+        return waits.sum();
+    }
+
+    public long exhaustedCount() {
+        return exhausted.sum();
+    }
+
+    public long connectFailureCount() {
+        return connectFailures.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder open = new StringBuilder();
+        for (String host : hosts.keySet()) {
+            open.append(' ').append(host).append('=').append(openConnections(host))
+                    .append('/').append(idleConnections(host));
+        }
+        return String.format("backends[open/idle:%s created=%d reused=%d expired=%d stale=%d waits=%d "
+                        + "exhausted=%d connectFailures=%d]", open, createdCount(), reusedCount(), expiredCount(),
+                staleCount(), waitCount(), exhaustedCount(), connectFailureCount());
+    }
+
+    private static class HostPool {
+        final Semaphore slots;
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+
+        HostPool(int maxTotal) {
+            this.slots = new Semaphore(maxTotal);
+        }
+
+        synchronized Connection poll() {
+            return idle.pollFirst();
+        }
+
+        synchronized boolean offer(Connection connection, int maxIdle) {
+            if (idle.size() >= maxIdle) {
+                return false;
+            }
+            connection.idleSince = System.currentTimeMillis();
+            idle.addFirst(connection);
+            return true;
+        }
+
+        synchronized int idleCount() {
+            return idle.size();
+        }
+    }
+
+    /**
+     * One connection to a URL Shortener node. Only the thread that borrowed it uses it.
+     */
+    public static class Connection {
+        final String host;
+        final Socket socket;
+        final BufferedInputStream in;
+        final BufferedOutputStream out;
+        long idleSince;
+        int uses;
+
+        Connection(String host, Socket socket) throws IOException {
+            this.host = host;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        boolean isReused() {
+            return uses > 0;
+        }
+
+        // an idle connection has nothing to read; EOF or stray bytes mean it can't be used
+        boolean isAlive() {
+            if (socket.isClosed() || socket.isInputShutdown()) {
+                return false;
+            }
+            try {
+                if (in.available() > 0) {
+                    return false;
+                }
+                int readTimeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
+                try {
+                    in.read();
+                    return false;
+                } catch (SocketTimeoutException e) {
+                    return true;
+                } finally {
+                    socket.setSoTimeout(readTimeout);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
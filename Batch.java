@@ -0,0 +1,124 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The batch endpoints, served by the URL Shortener and fanned out over the shards by the proxy:
+ *
+ *   POST /batch/get HTTP/1.x    body: one short code per line
+ *   POST /batch/put HTTP/1.x    body: one "SHORT LONG" pair per line
+ *
+ * Bodies are plain UTF-8, not percent-encoded. The answer is a 200 whose body has one line per
+ * request line, in order, starting with the status that request would have had on its own:
+ * "307 LONG" or "404" for a get, "200" for a put, "400" for a line that is not a code or pair,
+ * "500" for a put that could not be stored, and "503" for a line whose URL Server the proxy
+ * could not reach.
+ */
+public final class Batch {
+
+    static final String GET_PATH = "/batch/get";
+    static final String PUT_PATH = "/batch/put";
+    // largest batch accepted: body bytes and lines; larger ones get a 413 and the connection is closed
+    static final int MAX_BYTES = 4 << 20;
+    static final int MAX_LINES = 10000;
+
+    static final String FOUND = "307 ";
+    static final String NOT_FOUND = "404";
+    static final String STORED = "200";
+    static final String BAD_LINE = "400";
+    static final String FAILED = "500";
+    static final String UNAVAILABLE = "503";
+
+    private static final byte[] TOO_LARGE = ("HTTP/1.1 413 Content Too Large\r\nContent-Length: 0\r\n"
+            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private Batch() {
+    }
+
+    /**
+     * Whether a body of length bytes (-1: unknown) can be accepted.
+     */
+    static boolean accepts(long length) {
+        return length >= 0 && length <= MAX_BYTES;
+    }
+
+    static String read(InputStream in, long length) throws IOException {
+        byte[] body = in.readNBytes((int) length);
+        if (body.length < length) {
+            throw new EOFException("Batch body ended after " + body.length + " of " + length + " bytes");
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The lines of a body, CRLF or LF terminated; null if there are more than MAX_LINES.
+     */
+    static List<String> lines(String body) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = body.length();
+            }
+            if (lines.size() == MAX_LINES) {
+                return null;
+            }
+            int lineEnd = end > start && body.charAt(end - 1) == '\r' ? end - 1 : end;
+            lines.add(body.substring(start, lineEnd));
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    /**
+     * Splits a put line into its short code and long URL, or returns null if it is not a pair.
+     * Lines with control characters are not: the long URL ends up in a Location header.
+     */
+    static String[] pair(String line) {
+        int space = line.indexOf(' ');
+        if (space <= 0 || space == line.length() - 1) {
+            return null;
+        }
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x20 || c == 0x7f) {
+                return null;
+            }
+        }
+        return new String[]{line.substring(0, space), line.substring(space + 1)};
+    }
+
+    static String body(List<String> lines) {
+        StringBuilder body = new StringBuilder(lines.size() * 16);
+        for (String line : lines) {
+            body.append(line).append('\n');
+        }
+        return body.toString();
+    }
+
+    /**
+     * The 200 answering a batch, one result per line.
+     */
+    static byte[] response(String[] results, boolean keepAlive) {
+        StringBuilder body = new StringBuilder(results.length * 16);
+        for (String result : results) {
+            body.append(result).append('\n');
+        }
+        byte[] encoded = body.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: "
+                + encoded.length + "\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] response = new byte[head.length + encoded.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(encoded, 0, response, head.length, encoded.length);
+        return response;
+    }
+
+    static byte[] tooLarge() {
+        return TOO_LARGE;
+    }
+}
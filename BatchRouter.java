@@ -0,0 +1,215 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The proxy side of the batch endpoints (see Batch). It splits a batch by the URL Server that
+ * owns each code and sends the parts to their servers in parallel. The answers are merged back
+ * into request order. Reads fail over the same way single requests do: to the replica of a
+ * server that is down, and to the previous owner of a code that is being moved. Lines whose
+ * server could not be reached are answered "503".
+ */
+public class BatchRouter {
+
+    private final ExecutorService pool;
+
+    /**
+     * @param pool  runs the parts of a batch beyond the first, which the caller sends itself
+     */
+    public BatchRouter(ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * The result lines for a batch, one per line of it.
+     */
+    public String[] route(RoutingTable table, boolean isPut, List<String> lines) throws IOException {
+        String[] results = new String[lines.size()];
+        RedirectCache redirects = SimpleProxyServer.redirects;
+        long stamp = redirects == null ? 0 : redirects.stamp();
+
+        Map<String, List<Integer>> parts = new LinkedHashMap<>();
+        for (int i = 0; i < results.length; i++) {
+            String shortURL = shortURL(isPut, lines.get(i));
+            if (shortURL == null) {
+                results[i] = Batch.BAD_LINE;
+                continue;
+            }
+            if (redirects != null) {
+                if (isPut) {
+                    redirects.invalidate(shortURL);
+                } else {
+                    String location = redirects.get(shortURL);
+                    if (location != null) {
+                        results[i] = Batch.FOUND + location;
+                        continue;
+                    }
+                }
+            }
+            String host = table.route(shortURL);
+            if (host == null) {
+                results[i] = Batch.UNAVAILABLE;
+                continue;
+            }
+            parts.computeIfAbsent(host, ignored -> new ArrayList<>()).add(i);
+        }
+        fanOut(table, isPut, lines, parts, results);
+
+        // codes being moved that the new owner does not have yet are read from the old one
+        if (!isPut && table.isMigrating()) {
+            Map<String, List<Integer>> previous = new LinkedHashMap<>();
+            for (int i = 0; i < results.length; i++) {
+                if (!results[i].equals(Batch.NOT_FOUND) && !results[i].equals(Batch.UNAVAILABLE)) {
+                    continue;
+                }
+                String previousOwner = table.previousOwner(lines.get(i));
+                if (previousOwner != null) {
+                    previous.computeIfAbsent(previousOwner, ignored -> new ArrayList<>()).add(i);
+                }
+            }
+            fanOut(table, false, lines, previous, results);
+        }
+
+        if (redirects != null) {
+            for (int i = 0; i < results.length; i++) {
+                String shortURL = shortURL(isPut, lines.get(i));
+                if (isPut && shortURL != null) {
+                    // the puts are applied now; drop anything a GET cached while they were in flight
+                    redirects.invalidate(shortURL);
+                } else if (!isPut && results[i].startsWith(Batch.FOUND)) {
+                    redirects.put(shortURL, results[i].substring(Batch.FOUND.length()), stamp);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static String shortURL(boolean isPut, String line) {
+        if (!isPut) {
+            return line.isEmpty() ? null : line;
+        }
+        String[] pair = Batch.pair(line);
+        return pair == null ? null : pair[0];
+    }
+
+    /**
+     * Sends each host its part at the same time and fills in the results of those lines.
+     */
+    private void fanOut(RoutingTable table, boolean isPut, List<String> lines, Map<String, List<Integer>> parts,
+                        String[] results) throws IOException {
+        List<Future<?>> sent = new ArrayList<>(parts.size());
+        Iterator<Map.Entry<String, List<Integer>>> remaining = parts.entrySet().iterator();
+        while (remaining.hasNext()) {
+            Map.Entry<String, List<Integer>> part = remaining.next();
+            if (remaining.hasNext()) {
+                sent.add(pool.submit(() -> sendPart(table, part.getKey(), isPut, lines, part.getValue(), results)));
+            } else {
+                sendPart(table, part.getKey(), isPut, lines, part.getValue(), results);
+            }
+        }
+        try {
+            for (Future<?> part : sent) {
+                part.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a batch", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void sendPart(RoutingTable table, String host, boolean isPut, List<String> lines, List<Integer> indices,
+                          String[] results) {
+        List<String> part = new ArrayList<>(indices.size());
+        for (int index : indices) {
+            part.add(lines.get(index));
+        }
+        String[] answers = send(host, isPut, part);
+        String replica = table.ring.node(host).replica;
+        if (answers == null && !isPut && replica != null) {
+            // reads fail over to the replica, which has every acknowledged write
+            answers = send(replica, false, part);
+        }
+        for (int k = 0; k < indices.size(); k++) {
+            results[indices.get(k)] = answers == null ? Batch.UNAVAILABLE : answers[k];
+        }
+    }
+
+    /**
+     * The answers of host to part, or null if it is down or could not be reached.
+     */
+    private String[] send(String host, boolean isPut, List<String> part) {
+        HealthChecker health = SimpleProxyServer.health;
+        if (!health.isAvailable(host)) {
+            return null;
+        }
+        try {
+            String[] answers = exchange(host, isPut, part);
+            health.success(host);
+            return answers;
+        } catch (IOException e) {
+            health.failure(host);
+            SimpleProxyServer.accessLog.log(AccessLog.WARN, "Proxy Error: batch of " + part.size() + " to "
+                    + host + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private String[] exchange(String host, boolean isPut, List<String> part) throws IOException {
+        byte[] body = Batch.body(part).getBytes(StandardCharsets.UTF_8);
+        byte[] head = ("POST " + (isPut ? Batch.PUT_PATH : Batch.GET_PATH) + " HTTP/1.1" + HttpIO.CRLF
+                + "Content-Length: " + body.length + HttpIO.CRLF + "Connection: keep-alive" + HttpIO.CRLF
+                + HttpIO.CRLF).getBytes(StandardCharsets.ISO_8859_1);
+
+        long hopStart = System.nanoTime();
+        BackendPool backends = SimpleProxyServer.backends;
+        BackendPool.Connection server = backends.borrow(host);
+        boolean retried = false;
+        while (true) {
+            boolean responseStarted = false;
+            try {
+                server.out.write(head);
+                server.out.write(body);
+                server.out.flush();
+
+                String httpStatus = HttpIO.readLine(server.in);
+                if (httpStatus == null) {
+                    throw new EOFException("URL Server closed the connection");
+                }
+                responseStarted = true;
+                Map<String, String> responseHeaders = HttpIO.readHeaders(server.in);
+                long responseLength = HttpIO.contentLength(responseHeaders);
+                int space = httpStatus.indexOf(' ');
+                if (space < 0 || !httpStatus.startsWith(" 200", space) || !Batch.accepts(responseLength)) {
+                    throw new IOException("Unexpected batch response: " + httpStatus);
+                }
+                List<String> answers = Batch.lines(Batch.read(server.in, responseLength));
+                if (answers == null || answers.size() != part.size()) {
+                    throw new IOException("Batch response does not match the " + part.size() + " lines sent");
+                }
+                backends.release(server, HttpIO.isKeepAlive(httpStatus.substring(0, space), responseHeaders));
+                SimpleProxyServer.backendLatency.recordSince(hopStart);
+                return answers.toArray(new String[0]);
+            } catch (IOException e) {
+                backends.release(server, false);
+                // a pooled connection may have been closed by the URL Server while idle
+                if (server.isReused() && !retried && !responseStarted) {
+                    retried = true;
+                    backends.evictIdle(host);
+                    server = backends.borrow(host);
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Builds the executor that runs one task per accepted connection.
+ * "platform" is the classic fixed thread pool; "virtual" starts a virtual thread
+ * per connection, so blocked connections no longer cap concurrency.
+ */
+public class ConnectionExecutor {
+
+    public static ExecutorService create(String mode, int threads) {
+        switch (mode) {
+            case "virtual":
+                return Executors.newVirtualThreadPerTaskExecutor();
+            case "platform":
+                return Executors.newFixedThreadPool(threads);
+            default:
+                throw new IllegalArgumentException("Unknown executor mode: " + mode);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Long URL to short code index of one node, so that creating a long URL it already holds
+ * returns the existing code. Keyed by a 64-bit hash of the long URL; a hit is only a candidate,
+ * confirmed by reading the code back, so hash collisions and codes rewritten or moved away since
+ * simply make a new code. Built from a scan of storage at startup and kept in memory.
+ *
+ * The proxy sends every create of a long URL to the same node, which is what lets a per-node
+ * index find the duplicates.
+ */
+public class DedupIndex {
+
+    interface Reader {
+        String get(String shortURL) throws IOException;
+    }
+
+    private final Map<Long, String> codes = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+
+    public void rebuild(Storage storage) throws IOException {
+        long start = System.currentTimeMillis();
+        codes.clear();
+        storage.scan("", (shortURL, longURL) -> codes.put(HashRing.hash(longURL), shortURL));
+        System.out.println("Dedup index: " + codes.size() + " long URLs in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * The code stored for longURL, or null.
+     */
+    public String find(String longURL, Reader reader) throws IOException {
+        String code = codes.get(HashRing.hash(longURL));
+        if (code == null || !longURL.equals(reader.get(code))) {
+            return null;
+        }
+        hits.increment();
+        return code;
+    }
+
+    /**
+     * Claims longURL for code, a new code about to be stored. If a create of the same long URL
+     * got there first, returns its code instead, and code should be dropped.
+     */
+    public String claim(String longURL, String code, Reader reader) throws IOException {
+        long hash = HashRing.hash(longURL);
+        while (true) {
+            String existing = codes.putIfAbsent(hash, code);
+            if (existing == null) {
+                return code;
+            }
+            if (longURL.equals(reader.get(existing))) {
+                hits.increment();
+                return existing;
+            }
+            // a colliding or stale entry: take it over
+            if (codes.replace(hash, existing, code)) {
+                return code;
+            }
+        }
+    }
+
+    public int size() {
+        return codes.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "dedup[entries=" + codes.size() + " hits=" + hits.sum() + "]";
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write pipeline for PUT requests.
+ *
+ * Writes are queued and a single thread commits them in batches: whatever is waiting, plus
+ * anything that keeps arriving within the linger time, up to a maximum batch size, in one
+ * Storage.putAll: one SQLite transaction (one fsync with synchronous=FULL) or one log sync
+ * per batch instead of one per URL.
+ * The future of each write completes only after its transaction has committed.
+ */
+public class GroupCommitter {
+
+    // a batch stops waiting for more writes after this long without one
+    static final long ARRIVAL_GAP_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final Storage storage;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final BlockingQueue<Write> queue;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong largestBatch = new AtomicLong();
+
+    /**
+     * @param storage    where the writes go
+     * @param maxBatch   most writes committed in one transaction
+     * @param lingerMs   how long a batch waits for more writes before committing
+     * @param queueSize  writes that may wait; submit blocks beyond this
+     */
+    public GroupCommitter(Storage storage, int maxBatch, long lingerMs, int queueSize) {
+        this.storage = storage;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.queue = new ArrayBlockingQueue<>(Math.max(queueSize, this.maxBatch));
+
+        Thread committer = new Thread(this::run, "group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Queues a write. The future completes once it is durable, or exceptionally with the
+     * IOException that failed its batch.
+     */
+    public CompletableFuture<Void> submit(String shortURL, String longURL) {
+        Write write = new Write(shortURL, longURL);
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.done.completeExceptionally(new IOException("Interrupted while queueing a write", e));
+        }
+        return write.done;
+    }
+
+    public long batchCount() {
+        return batches.sum();
+    }
+
+    public long writeCount() {
+        return writes.sum();
+    }
+
+    public long failureCount() {
+        return failures.sum();
+    }
+
+    public long largestBatch() {
+        return largestBatch.get();
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        long batchCount = batchCount();
+        return String.format("batches=%d writes=%d avgBatch=%.1f largestBatch=%d failures=%d queued=%d",
+                batchCount, writeCount(), batchCount == 0 ? 0.0 : (double) writeCount() / batchCount,
+                largestBatch(), failureCount(), queued());
+    }
+
+    private void run() {
+        List<Write> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - batch.size());
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatch) {
+                    // stop lingering as soon as writes stop arriving
+                    long left = Math.min(deadline - System.nanoTime(), ARRIVAL_GAP_NANOS);
+                    Write next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+            } catch (InterruptedException e) {
+                // keep committing what was already accepted
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Write> batch) {
+        // a code written twice in one batch keeps its last value
+        Map<String, String> pairs = new LinkedHashMap<>();
+        for (Write write : batch) {
+            pairs.put(write.shortURL, write.longURL);
+        }
+        try {
+            storage.putAll(pairs);
+        } catch (IOException e) {
+            failures.add(batch.size());
+            System.err.println("Group commit of " + batch.size() + " writes failed: " + e.getMessage());
+            for (Write write : batch) {
+                write.done.completeExceptionally(e);
+            }
+            return;
+        }
+        batches.increment();
+        writes.add(batch.size());
+        largestBatch.accumulateAndGet(batch.size(), Math::max);
+        for (Write write : batch) {
+            write.done.complete(null);
+        }
+    }
+
+    private static class Write {
+        final String shortURL;
+        final String longURL;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(String shortURL, String longURL) {
+            this.shortURL = shortURL;
+            this.longURL = longURL;
+        }
+    }
+}
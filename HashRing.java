@@ -0,0 +1,294 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Consistent-hash ring that maps short codes to URL Shortener hosts.
+ *
+ * Each host owns weight * vnodes points on a 64-bit ring, and a short code belongs to the
+ * first point at or after the hash of the whole code, wrapping around. Adding or removing
+ * a host only moves the arcs next to its points, about 1/N of the codes, and movesTo lists
+ * exactly those arcs so migration can copy them. Rings are immutable.
+ */
+public final class HashRing {
+
+    static final int DEFAULT_VNODES = Integer.getInteger("proxy.vnodes", 160);
+
+    private final Map<String, Integer> weights;
+    private final Map<String, Node> nodes;
+    private final int vnodes;
+    private final long[] points;
+    private final String[] owners;
+    // toSpec(), computed on first use
+    private String spec;
+
+    /**
+     * @param weights  host to weight (at least 1), in hosts.conf order
+     * @param vnodes   points per unit of weight
+     */
+    public HashRing(Map<String, Integer> weights, int vnodes) {
+        this(weights, vnodes, Collections.emptyMap());
+    }
+
+    private HashRing(Map<String, Integer> weights, int vnodes, Map<String, Node> nodes) {
+        this.weights = Collections.unmodifiableMap(new LinkedHashMap<>(weights));
+        this.nodes = Collections.unmodifiableMap(new LinkedHashMap<>(nodes));
+        this.vnodes = vnodes;
+
+        int total = 0;
+        for (int weight : weights.values()) {
+            total += weight * vnodes;
+        }
+        long[][] entries = new long[total][];
+        List<String> hosts = new ArrayList<>(weights.keySet());
+        int n = 0;
+        for (int h = 0; h < hosts.size(); h++) {
+            String host = hosts.get(h);
+            for (int i = 0; i < weights.get(host) * vnodes; i++) {
+                entries[n++] = new long[]{hash(host + "#" + i), h};
+            }
+        }
+        // ties, however unlikely, go to the host listed first
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+        long[] points = new long[total];
+        String[] owners = new String[total];
+        int size = 0;
+        for (long[] entry : entries) {
+            if (size > 0 && points[size - 1] == entry[0]) {
+                continue;
+            }
+            points[size] = entry[0];
+            owners[size] = hosts.get((int) entry[1]);
+            size++;
+        }
+        this.points = Arrays.copyOf(points, size);
+        this.owners = Arrays.copyOf(owners, size);
+    }
+
+    /**
+     * Builds a ring from hosts.conf lines (see Node); blank lines and # comments are skipped.
+     */
+    public static HashRing parse(List<String> lines, int vnodes) {
+        Map<String, Node> nodes = new LinkedHashMap<>();
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            Node node = Node.parse(trimmed);
+            nodes.put(node.name, node);
+            if (node.weight > 0) {
+                weights.merge(node.name, node.weight, Integer::sum);
+            }
+        }
+        return new HashRing(weights, vnodes, nodes);
+    }
+
+    /**
+     * The host owning shortCode, or null if the ring has no hosts.
+     */
+    public String route(String shortCode) {
+        return ownerOf(hash(shortCode));
+    }
+
+    String ownerOf(long hash) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public List<String> hosts() {
+        return new ArrayList<>(weights.keySet());
+    }
+
+    public Map<String, Integer> weights() {
+        return weights;
+    }
+
+    /**
+     * How to reach name, standbys included; unlisted names get the default ports.
+     */
+    public Node node(String name) {
+        Node node = nodes.get(name);
+        return node != null ? node : Node.of(name);
+    }
+
+    /**
+     * The hosts.conf entries, standbys included.
+     */
+    public List<Node> nodes() {
+        return new ArrayList<>(nodes.values());
+    }
+
+    /**
+     * This ring without the given hosts, whose entries stay in nodes().
+     */
+    public HashRing without(Collection<String> hosts) {
+        Map<String, Integer> remaining = new LinkedHashMap<>(weights);
+        remaining.keySet().removeAll(hosts);
+        return new HashRing(remaining, vnodes, nodes);
+    }
+
+    public int vnodes() {
+        return vnodes;
+    }
+
+    /**
+     * The ring in one line, "vnodes name=weight ...", which fromSpec turns back into an equal ring.
+     * Sent with creates so the node can pick a code in its own shard.
+     */
+    public String toSpec() {
+        String result = spec;
+        if (result == null) {
+            StringBuilder line = new StringBuilder().append(vnodes);
+            for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+                line.append(' ').append(weight.getKey()).append('=').append(weight.getValue());
+            }
+            result = line.toString();
+            spec = result;
+        }
+        return result;
+    }
+
+    public static HashRing fromSpec(String spec) {
+        String[] fields = spec.trim().split("\\s+");
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (int i = 1; i < fields.length; i++) {
+            int eq = fields[i].lastIndexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Bad ring spec entry: " + fields[i]);
+            }
+            weights.put(fields[i].substring(0, eq), Integer.parseInt(fields[i].substring(eq + 1)));
+        }
+        return new HashRing(weights, Integer.parseInt(fields[0]));
+    }
+
+    public boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    /**
+     * The arcs whose owner differs in next, grouped by old and new owner.
+     */
+    public List<Move> movesTo(HashRing next) {
+        Map<String, Move> moves = new LinkedHashMap<>();
+        if (isEmpty() || next.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // between two consecutive points of either ring, both rings have a single owner
+        long[] merged = new long[points.length + next.points.length];
+        System.arraycopy(points, 0, merged, 0, points.length);
+        System.arraycopy(next.points, 0, merged, points.length, next.points.length);
+        Arrays.sort(merged);
+        int size = 0;
+        for (long point : merged) {
+            if (size == 0 || merged[size - 1] != point) {
+                merged[size++] = point;
+            }
+        }
+
+        for (int i = 0; i < size; i++) {
+            long start = merged[i == 0 ? size - 1 : i - 1];
+            long end = merged[i];
+            String from = ownerOf(end);
+            String to = next.ownerOf(end);
+            if (from.equals(to)) {
+                continue;
+            }
+            Move move = moves.computeIfAbsent(from + " " + to, key -> new Move(from, to));
+            Range last = move.ranges.isEmpty() ? null : move.ranges.get(move.ranges.size() - 1);
+            if (last != null && last.end == start) {
+                move.ranges.set(move.ranges.size() - 1, new Range(last.start, end));
+            } else {
+                move.ranges.add(new Range(start, end));
+            }
+        }
+        return new ArrayList<>(moves.values());
+    }
+
+    @Override
+    public String toString() {
+        return "HashRing" + weights + " x" + vnodes;
+    }
+
+    // FNV-1a over the chars, finished with a 64-bit mixer
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * The hashes after start, up to and including end; wraps around when start >= end.
+     */
+    public static final class Range {
+        final long start;
+        final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean contains(long hash) {
+            if (start < end) {
+                return hash > start && hash <= end;
+            }
+            // start == end is the whole ring
+            return hash > start || hash <= end;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + Long.toHexString(start) + ", " + Long.toHexString(end) + "]";
+        }
+    }
+
+    /**
+     * The arcs one host hands to another.
+     */
+    public static final class Move {
+        final String from;
+        final String to;
+        final List<Range> ranges = new ArrayList<>();
+
+        Move(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean contains(String shortCode) {
+            long hash = hash(shortCode);
+            for (Range range : ranges) {
+                if (range.contains(hash)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + to + ": " + ranges.size() + " ranges";
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probes every URL Shortener node in the background and keeps a circuit breaker per node.
+ *
+ * A breaker opens after failureThreshold failures in a row, from probes or from requests the
+ * proxy could not deliver. An open node gets no requests and is taken out of the ring in memory
+ * through HostWatcher; it is probed again after a backoff that doubles up to maxBackoffMs, and
+ * put back once recoveryThreshold probes in a row have succeeded.
+ */
+public class HealthChecker implements Runnable {
+
+    // a code that cannot exist: answered from the miss filter without touching storage
+    private static final byte[] PROBE = "GET /~health HTTP/1.1\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final HostWatcher hostWatcher;
+    private final long intervalMs;
+    private final int timeoutMs;
+    private final int failureThreshold;
+    private final int recoveryThreshold;
+    private final long maxBackoffMs;
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+    private final ExecutorService probes = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "health-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public HealthChecker(HostWatcher hostWatcher, long intervalMs, int timeoutMs, int failureThreshold,
+                         int recoveryThreshold, long maxBackoffMs) {
+        this.hostWatcher = hostWatcher;
+        this.intervalMs = intervalMs;
+        this.timeoutMs = timeoutMs;
+        this.failureThreshold = failureThreshold;
+        this.recoveryThreshold = recoveryThreshold;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    /**
+     * Whether requests may go to host; false only while its breaker is open.
+     */
+    public boolean isAvailable(String host) {
+        Breaker breaker = breakers.get(host);
+        return breaker == null || !breaker.open;
+    }
+
+    /**
+     * Reports a request host could not serve.
+     */
+    public void failure(String host) {
+        breaker(host).failed(System.currentTimeMillis());
+    }
+
+    /**
+     * Reports a request host served; cheap when nothing has failed.
+     */
+    public void success(String host) {
+        Breaker breaker = breakers.get(host);
+        if (breaker != null && breaker.failures > 0) {
+            breaker.succeeded();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            Collection<Node> nodes = hostWatcher.nodes();
+            for (Node node : nodes) {
+                Breaker breaker = breaker(node.name);
+                if (breaker.probing || now < breaker.nextProbe) {
+                    continue;
+                }
+                breaker.probing = true;
+                probes.execute(() -> {
+                    try {
+                        if (probe(node)) {
+                            breaker.succeeded();
+                        } else {
+                            breaker.failed(System.currentTimeMillis());
+                        }
+                    } finally {
+                        breaker.probing = false;
+                    }
+                });
+            }
+            breakers.keySet().removeIf(host -> nodes.stream().noneMatch(node -> node.name.equals(host)));
+            try {
+                TimeUnit.MILLISECONDS.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                System.out.println("HealthChecker stopped");
+                return;
+            }
+        }
+    }
+
+    private boolean probe(Node node) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(node.host, node.port), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            OutputStream out = socket.getOutputStream();
+            out.write(PROBE);
+            out.flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String status = HttpIO.readLine(in);
+            return status != null && status.startsWith("HTTP/");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private Breaker breaker(String host) {
+        return breakers.computeIfAbsent(host, Breaker::new);
+    }
+
+    public int openCount() {
+        int open = 0;
+        for (Breaker breaker : breakers.values()) {
+            if (breaker.open) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder open = new StringBuilder();
+        for (Breaker breaker : breakers.values()) {
+            if (breaker.open) {
+                open.append(' ').append(breaker.host);
+            }
+        }
+        return "health[open:" + (open.length() == 0 ? " none" : open) + "]";
+    }
+
+    private final class Breaker {
+        final String host;
+        volatile boolean open;
+        volatile int failures;
+        volatile boolean probing;
+        volatile long nextProbe;
+        private int successes;
+        private long backoff;
+
+        Breaker(String host) {
+            this.host = host;
+        }
+
+        synchronized void failed(long now) {
+            failures++;
+            successes = 0;
+            if (!open && failures >= failureThreshold) {
+                open = true;
+                backoff = intervalMs;
+                System.out.println("Health: " + host + " is down after " + failures + " failures");
+                hostWatcher.hostDown(host);
+            } else if (open) {
+                backoff = Math.min(backoff * 2, maxBackoffMs);
+            }
+            if (open) {
+                nextProbe = now + backoff;
+            }
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            if (open && ++successes >= recoveryThreshold) {
+                open = false;
+                successes = 0;
+                nextProbe = 0;
+                System.out.println("Health: " + host + " is back");
+                hostWatcher.hostUp(host);
+            }
+        }
+    }
+}
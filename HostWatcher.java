@@ -4,27 +4,53 @@ import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 
 // Reference: https://stackoverflow.com/questions/63731952/java-nio-watchservice
 public class HostWatcher implements Runnable {
 
+    // storage engine of the URL Shortener nodes, whose files are backed up: "sqlite" or "log"
+    static final String BACKUP_STORAGE = System.getProperty("proxy.backupStorage", "sqlite");
+    // moves migrated at once, and tries per move before giving up on it
+    static final int MIGRATION_THREADS = Integer.getInteger("proxy.migrationThreads", 4);
+    static final int MIGRATION_ATTEMPTS = Integer.getInteger("proxy.migrationAttempts", 3);
+    // ms to let an editor finish writing hosts.conf before it is read
+    static final long RELOAD_DELAY = Long.getLong("proxy.reloadDelay", 1000);
+    // ms before a routing change whose targets could not be purged is tried again
+    static final long PURGE_RETRY_DELAY = Long.getLong("proxy.purgeRetryDelay", 10000);
+
     private final Path path;
     private List<String> hosts = Collections.synchronizedList(new ArrayList<>());
     private final String filename;
-    private final Map<String, String> hostMapping;
+    private final AtomicReference<RoutingTable> routing;
+    // hosts.conf as last read, and the hosts HealthChecker found down; routing uses the ring without them
+    private volatile HashRing configured = new HashRing(Collections.emptyMap(), HashRing.DEFAULT_VNODES);
+    private final Set<String> down = ConcurrentHashMap.newKeySet();
     private boolean isInitialized = false;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService healthUpdates = Executors.newSingleThreadExecutor();
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
+    private final LongAdder movesPlanned = new LongAdder();
+    private final LongAdder movesDone = new LongAdder();
+    private final LongAdder movesFailed = new LongAdder();
+    private final LongAdder rowsMigrated = new LongAdder();
 
-    public HostWatcher(Path path, Map<String, String> hostMapping) {
+    public HostWatcher(Path path, AtomicReference<RoutingTable> routing) {
         this.path = path;
         this.filename = path.getFileName().toString();
-        this.hostMapping = hostMapping;
+        this.routing = routing;
         reloadHosts();
         scheduler.scheduleAtFixedRate(() -> dbBackup(hosts), 0, 60, TimeUnit.SECONDS);
     }
@@ -54,6 +80,11 @@ public class HostWatcher implements Runnable {
                 if (event.kind() == ENTRY_MODIFY && fileChanged.equals(this.filename)) {
                     System.out.println("Modified File: " + fileChanged);
                     System.out.println("Target Host File: " + this.filename);
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(RELOAD_DELAY);
+                    } catch (InterruptedException e) {
+                        System.out.println("HostWatcher sleep interrupted: " + e.getMessage());
+                    }
                     reloadHosts();
                 }
             }
@@ -64,99 +95,342 @@ public class HostWatcher implements Runnable {
         System.out.println("HostWatcher Critical Error: HostWatcher stopped");
     }
 
-    synchronized private void reloadHosts() {
+    private void reloadHosts() {
+        reloadLock.lock();
         try {
-            TimeUnit.SECONDS.sleep(10);
-        } catch (InterruptedException e) {
-            System.out.println("HostWatcher sleep interrupted: " + e.getMessage());
+            reload();
+        } finally {
+            reloadLock.unlock();
         }
+    }
 
-        hosts.clear();
+    private void reload() {
+        HashRing newRing;
         try {
-            hosts = Files.readAllLines(path);
-        } catch (IOException e) {
-            e.printStackTrace();
+            newRing = HashRing.parse(Files.readAllLines(path), HashRing.DEFAULT_VNODES);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("HostWatcher Error: " + e.getMessage());
+            return;
         }
+        configured = newRing;
+        down.removeIf(host -> newRing.nodes().stream().noneMatch(node -> node.name.equals(host)));
 
-        int hostSize = hosts.size();
-        char[] alphabet = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
-        int avgMappingLen = 36 / hostSize;
-        HashMap<String, String> newHostMapping = new HashMap<>();
+        if (!isInitialized) {
+            isInitialized = true;
+            backups(routable(newRing));
+            routing.set(routing.get().next(routable(newRing), null));
+        } else {
+            apply(routable(newRing));
+        }
+        System.out.println("Hosts reloaded: " + routing.get() + "\n");
+    }
 
-        // evenly continuously distribute the alphabet to hosts
-        for (int i = 0; i < hostSize; i++) {
-            int start = i * avgMappingLen;
-            int end = (i == hostSize - 1) ? 36 : (i + 1) * avgMappingLen;
+    /**
+     * The hosts.conf entries, standbys and hosts that are down included.
+     */
+    public List<Node> nodes() {
+        return configured.nodes();
+    }
+
+    /**
+     * Takes host out of routing: its arcs go to the other hosts, restored from its replica or backup.
+     * Returns at once; until routing changes, requests for host are turned away by its open
+     * circuit breaker.
+     */
+    public void hostDown(String host) {
+        if (down.add(host)) {
+            healthUpdates.execute(() -> updateRing(host + " is down"));
+        }
+    }
+
+    /**
+     * Puts host back into routing, moving its arcs back to it.
+     */
+    public void hostUp(String host) {
+        if (down.remove(host)) {
+            healthUpdates.execute(() -> updateRing(host + " is back"));
+        }
+    }
 
-            for (int j = start; j < end; j++) {
-                newHostMapping.put(String.valueOf(alphabet[j]), hosts.get(i));
+    private void updateRing(String reason) {
+        reloadLock.lock();
+        try {
+            HashRing next = routable(configured);
+            if (!isInitialized || next.weights().equals(routing.get().ring.weights())) {
+                return;
             }
+            System.out.println("Routing update, " + reason);
+            apply(next);
+            System.out.println("Hosts now: " + routing.get() + "\n");
+        } catch (RuntimeException e) {
+            System.out.println("HostWatcher Error: " + e.getMessage());
+        } finally {
+            reloadLock.unlock();
         }
+    }
 
-        if (!isInitialized) {
-            hostMapping.putAll(newHostMapping);
-            isInitialized = true;
-        } else {
-            migrateData(newHostMapping);
-            hostMapping.clear();
-            hostMapping.putAll(newHostMapping);
+    /**
+     * configured without the hosts that are down, unless that leaves no host at all: then
+     * they stay, and their open breakers send reads to their replicas.
+     */
+    private HashRing routable(HashRing configured) {
+        HashRing up = configured.without(down);
+        return up.isEmpty() ? configured : up;
+    }
+
+    /**
+     * Switches routing to next. Requests go to the new owners as soon as their stale leftovers
+     * are purged, reading from the old owners what is not copied yet; the old ring is dropped
+     * once every move has finished, or kept as the fallback if one failed. If a target cannot be
+     * purged, routing stays as it is and the change is tried again after PURGE_RETRY_DELAY.
+     */
+    private void apply(HashRing next) {
+        HashRing current = routing.get().ring;
+        List<HashRing.Move> moves = current.movesTo(next);
+        if (!moves.isEmpty() && !purgeTargets(moves, next)) {
+            System.out.println("Routing stays at " + routing.get() + " until every target is purged");
+            scheduler.schedule(() -> healthUpdates.execute(() -> updateRing("retrying the purge")),
+                    PURGE_RETRY_DELAY, TimeUnit.MILLISECONDS);
+            return;
+        }
+        backups(next);
+        boolean migrated = true;
+        if (!moves.isEmpty()) {
+            routing.set(routing.get().next(next, current));
+            System.out.println("Switched to " + routing.get());
+            migrated = migrateData(current, next, moves);
+        }
+        routing.set(routing.get().next(next, migrated ? null : current));
+        if (SimpleProxyServer.redirects != null) {
+            SimpleProxyServer.redirects.clear();
+        }
+    }
+
+    public long movesPlanned() {
+        return movesPlanned.sum();
+    }
+
+    public long movesDone() {
+        return movesDone.sum();
+    }
+
+    public long movesFailed() {
+        return movesFailed.sum();
+    }
+
+    public long rowsMigrated() {
+        return rowsMigrated.sum();
+    }
+
+    private void backups(HashRing next) {
+        // nodes with a replica need no file backups, and nodes that are down cannot be backed up
+        List<String> backups = new ArrayList<>();
+        for (String host : next.hosts()) {
+            if (next.node(host).replica == null) {
+                backups.add(host);
+            }
+        }
+        hosts = backups;
+    }
+
+    /**
+     * Deletes whatever the targets of moves still hold in the ranges they are about to receive,
+     * left from an earlier ownership, so it cannot shadow the copies. Returns whether every
+     * target was purged.
+     */
+    private static boolean purgeTargets(List<HashRing.Move> moves, HashRing newRing) {
+        boolean purgedAll = true;
+        for (HashRing.Move move : moves) {
+            String target = newRing.node(move.to).migrationAddress();
+            try (Socket socket = MigrationProtocol.connect(target)) {
+                DataOutputStream out = MigrationProtocol.output(socket);
+                MigrationProtocol.writeRequest(out, MigrationProtocol.PURGE, move.ranges);
+                out.flush();
+                DataInputStream in = MigrationProtocol.input(socket);
+                byte status = in.readByte();
+                long purged = in.readLong();
+                if (status != MigrationProtocol.OK) {
+                    throw new IOException("status " + status);
+                }
+                if (purged > 0) {
+                    System.out.println("Purged " + purged + " stale rows from " + move.to + " for " + move);
+                }
+            } catch (IOException e) {
+                System.err.println("Migration Error: could not purge " + target + " for " + move + ": "
+                        + e.getMessage());
+                purgedAll = false;
+            }
         }
-        System.out.println("Hosts reloaded: " + hosts + "\n");
+        return purgedAll;
     }
 
-    private void migrateData(HashMap<String, String> newHostMapping) {
+    /**
+     * Returns whether every move finished.
+     */
+    private boolean migrateData(HashRing oldRing, HashRing newRing, List<HashRing.Move> planned) {
         System.out.println("Start migration");
-        for (Map.Entry<String, String> entry : hostMapping.entrySet()) {
-            String key = entry.getKey();
-            String oldHost = entry.getValue();
-            String newHost = newHostMapping.get(key);
-            if (!oldHost.equals(newHost)) {
-                try {
-                    Socket oldServer;
-                    try {
-                        oldServer = new Socket(oldHost, 65535);
-                    } catch (Exception e) {
-                        serverCrashedHandler(oldHost, newHost, key);
-                        return;
-                    }
+        long start = System.currentTimeMillis();
+        ExecutorService migrators = Executors.newFixedThreadPool(MIGRATION_THREADS);
+        Map<HashRing.Move, Future<Boolean>> moves = new LinkedHashMap<>();
+        movesPlanned.add(planned.size());
+        for (HashRing.Move move : planned) {
+            Node from = oldRing.node(move.from);
+            Node to = newRing.node(move.to);
+            String replica = from.replica == null ? null : oldRing.node(from.replica).migrationAddress();
+            moves.put(move, migrators.submit(() -> {
+                boolean done = migrateMove(move, from, to, replica);
+                (done ? movesDone : movesFailed).increment();
+                return done;
+            }));
+        }
+        migrators.shutdown();
+
+        List<HashRing.Move> failed = new ArrayList<>();
+        for (Map.Entry<HashRing.Move, Future<Boolean>> move : moves.entrySet()) {
+            try {
+                if (!move.getValue().get()) {
+                    failed.add(move.getKey());
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                failed.add(move.getKey());
+            }
+        }
+        System.out.println("Finished migration: " + (moves.size() - failed.size()) + " of " + moves.size()
+                + " moves done in " + (System.currentTimeMillis() - start) + " ms"
+                + (failed.isEmpty() ? "" : ", failed: " + failed));
+        return failed.isEmpty();
+    }
+
+    /**
+     * Copies the ranges of one move to the new host and deletes them from the old one once both
+     * sides agree on the row count and checksum. Retried if the copy fails or the source changed
+     * meanwhile; a retry overwrites the rows an earlier attempt copied and the source changed since.
+     */
+    private boolean migrateMove(HashRing.Move move, Node from, Node to, String replica) {
+        Copies copies = new Copies();
+        for (int attempt = 1; attempt <= MIGRATION_ATTEMPTS; attempt++) {
+            Socket source;
+            try {
+                source = MigrationProtocol.connect(from.migrationAddress());
+            } catch (IOException e) {
+                return serverCrashedHandler(move, to, replica);
+            }
+            try (source; Socket target = MigrationProtocol.connect(to.migrationAddress())) {
+                // found again by this attempt's copy if the target still lacks them
+                copies.changed.clear();
+                MigrationProtocol.Digest copied = copy(move.ranges, source, target, copies);
+                replaceChanged(move.ranges, to.migrationAddress(), copies);
+                long deleted = deleteCopied(move.ranges, from.migrationAddress(), copied);
+                if (deleted >= 0) {
+                    rowsMigrated.add(copied.rows);
+                    System.out.println("Migrated " + move + ": " + copied);
+                    return true;
+                }
+                System.err.println("Migration of " + move + ": " + move.from + " changed during the copy, retrying");
+            } catch (IOException e) {
+                System.err.println("Migration Error: " + move + " attempt " + attempt + ": " + e.getMessage());
+            }
+        }
+        return false;
+    }
 
-                    Socket newServer = new Socket(newHost, 65535);
-                    BufferedOutputStream oldOut = new BufferedOutputStream(oldServer.getOutputStream());
-                    BufferedOutputStream newOut = new BufferedOutputStream(newServer.getOutputStream());
-                    BufferedReader oldIn = new BufferedReader(new InputStreamReader(oldServer.getInputStream()));
-
-                    oldOut.write(("GET " + key + "\n").getBytes());
-                    oldOut.flush();
-                    String oldResponse = oldIn.lines().collect(Collectors.joining("\n"));
-                    oldIn.close();
-                    oldServer.close();
-
-                    // System.out.println(oldResponse);
-                    newOut.write(("POST \n" + oldResponse + "\n").getBytes());
-                    newOut.flush();
-
-                    oldServer = new Socket(oldHost, 65535);
-                    oldOut = new BufferedOutputStream(oldServer.getOutputStream());
-
-                    oldOut.write(("DELETE " + key + "\n").getBytes());
-                    oldOut.flush();
-                    oldOut.close();
-                    oldServer.close();
-
-                    newOut.close();
-                    newServer.close();
-                } catch (IOException e) {
-                    System.err.println("\\u001B[31m" + "Migration Error: " + e.getMessage() + "\\u001B[0m");
+    /**
+     * Relays the ranges from source to target, noting each row in copies if it is not null.
+     */
+    private static MigrationProtocol.Digest copy(List<HashRing.Range> ranges, Socket source, Socket target,
+            Copies copies) throws IOException {
+        DataOutputStream sourceOut = MigrationProtocol.output(source);
+        MigrationProtocol.writeRequest(sourceOut, MigrationProtocol.EXPORT, ranges);
+        sourceOut.flush();
+
+        DataOutputStream targetOut = MigrationProtocol.output(target);
+        MigrationProtocol.writeRequest(targetOut, MigrationProtocol.IMPORT, ranges);
+        MigrationProtocol.ChunkReader reader = new MigrationProtocol.ChunkReader(MigrationProtocol.input(source));
+        MigrationProtocol.ChunkWriter writer = new MigrationProtocol.ChunkWriter(targetOut);
+        try {
+            // one chunk in flight: the relay reads the next only after handing this one on
+            Map<String, String> chunk;
+            while ((chunk = reader.next()) != null) {
+                if (copies != null) {
+                    copies.relayed(chunk);
                 }
+                writer.writeAll(chunk);
+            }
+        } catch (IOException e) {
+            writer.fail(e.getMessage());
+            throw e;
+        }
+        writer.finish();
+        return importResult(target, reader.sent);
+    }
+
+    /**
+     * Reads the reply to an IMPORT and checks it against what was sent.
+     */
+    private static MigrationProtocol.Digest importResult(Socket target, MigrationProtocol.Digest sent)
+            throws IOException {
+        DataInputStream targetIn = MigrationProtocol.input(target);
+        byte status = targetIn.readByte();
+        MigrationProtocol.Digest stored = new MigrationProtocol.Digest(targetIn.readLong(), targetIn.readLong());
+        if (status != MigrationProtocol.OK || !stored.matches(sent)) {
+            throw new IOException("target stored " + stored + " of " + sent);
+        }
+        return stored;
+    }
+
+    /**
+     * Overwrites on the target the rows an earlier attempt copied and the source has changed since,
+     * which IMPORT keeps as they are.
+     */
+    private static void replaceChanged(List<HashRing.Range> ranges, String target, Copies copies)
+            throws IOException {
+        if (copies.changed.isEmpty()) {
+            return;
+        }
+        try (Socket socket = MigrationProtocol.connect(target)) {
+            DataOutputStream out = MigrationProtocol.output(socket);
+            MigrationProtocol.writeRequest(out, MigrationProtocol.REPLACE, ranges);
+            out.writeInt(copies.changed.size());
+            for (Map.Entry<String, String> row : copies.changed.entrySet()) {
+                MigrationProtocol.writeString(out, row.getKey());
+                out.writeLong(copies.hashes.get(row.getKey()));
+                MigrationProtocol.writeString(out, row.getValue());
+            }
+            out.flush();
+            DataInputStream in = MigrationProtocol.input(socket);
+            if (in.readByte() != MigrationProtocol.OK) {
+                throw new IOException("target could not replace " + copies.changed.size() + " changed rows");
             }
+            long replaced = in.readLong();
+            System.out.println("Replaced " + replaced + " of " + copies.changed.size() + " rows changed on the source");
+        }
+        copies.replaced();
+    }
+
+    /**
+     * Returns the number of rows deleted, or -1 if the source no longer matches the copy.
+     */
+    private static long deleteCopied(List<HashRing.Range> ranges, String host, MigrationProtocol.Digest copied)
+            throws IOException {
+        try (Socket socket = MigrationProtocol.connect(host)) {
+            DataOutputStream out = MigrationProtocol.output(socket);
+            MigrationProtocol.writeRequest(out, MigrationProtocol.DELETE, ranges);
+            out.writeLong(copied.rows);
+            out.writeLong(copied.checksum);
+            out.flush();
+            DataInputStream in = MigrationProtocol.input(socket);
+            byte status = in.readByte();
+            long deleted = in.readLong();
+            return status == MigrationProtocol.OK ? deleted : -1;
         }
-        System.out.println("Finished migration");
     }
 
     private void dbBackup(List<String> hosts) {
         System.out.println("Start database backup");
         for (String host : hosts) {
-            String command = String.format("rsync -avz %s:/virtual/%s.sqlite /virtual", host, host);
+            // the glob also picks up the SQLite -wal file; a log store is a directory
+            String command = String.format("rsync -avz %s:/virtual/%s%s /virtual", host, host,
+                    BACKUP_STORAGE.equals("log") ? ".log" : ".sqlite*");
             ProcessBuilder processBuilder = new ProcessBuilder("/bin/bash", "-c", command);
             try {
                 Process process = processBuilder.start();
@@ -167,60 +441,72 @@ public class HostWatcher implements Runnable {
         }
     }
 
-    static public void serverCrashedNotifier(String hostname) {
-        try {
-            File file = new File("hosts.conf");
-            FileReader fileReader = new FileReader(file);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
-            StringBuilder fileContent = new StringBuilder();
-            String line;
-
-            while ((line = bufferedReader.readLine()) != null) {
-                fileContent.append(line.replace(hostname + "\n", "")).append("\n");
+    private boolean serverCrashedHandler(HashRing.Move move, Node to, String replica) {
+        if (replica != null) {
+            // the replica has every acknowledged write: copy from it like from the old host
+            try (Socket source = MigrationProtocol.connect(replica);
+                 Socket target = MigrationProtocol.connect(to.migrationAddress())) {
+                MigrationProtocol.Digest restored = copy(move.ranges, source, target, null);
+                System.out.println("Restored " + move + " from the replica " + replica + ": " + restored);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Migration Error: " + move + " from the replica " + replica + ": "
+                        + e.getMessage() + ", trying the backup");
             }
-
-            bufferedReader.close();
-            fileReader.close();
-
-            FileWriter fileWriter = new FileWriter(file);
-            BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-            bufferedWriter.write(fileContent.toString());
-
-            bufferedWriter.close();
-        } catch (IOException e) {
+        }
+        // get data from backup and send it to the new server
+        try (Storage backup = openBackup(move.from);
+             Socket newServer = MigrationProtocol.connect(to.migrationAddress())) {
+            DataOutputStream out = MigrationProtocol.output(newServer);
+            MigrationProtocol.writeRequest(out, MigrationProtocol.IMPORT, move.ranges);
+            MigrationProtocol.ChunkWriter writer = new MigrationProtocol.ChunkWriter(out);
+            backup.scan("", MigrationProtocol.within(move.ranges, writer));
+            writer.finish();
+            MigrationProtocol.Digest restored = importResult(newServer, writer.digest);
+            System.out.println("Restored " + move + " from the backup of " + move.from + ": " + restored);
+            return true;
+        } catch (Exception e) {
             e.printStackTrace();
+            return false;
         }
     }
 
-    private void serverCrashedHandler(String oldHost, String newHost, String key) {
-        try {
-            // get data from backup
-            Connection dbConnect = DriverManager.getConnection("jdbc:sqlite:/virtual/" + oldHost + ".sqlite");
-            PreparedStatement statement = dbConnect.prepareStatement(
-                    "SELECT longURL, shortURL FROM URL WHERE shortURL LIKE ?"
-            );
-            statement.setString(1, key + "%");
-            StringBuilder result = new StringBuilder();
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                result.append(resultSet.getString("shortURL")).append(" ")
-                        .append(resultSet.getString("longURL")).append("\n");
+    private static Storage openBackup(String host) throws IOException, SQLException {
+        if (BACKUP_STORAGE.equals("log")) {
+            return new LogStorage(new File("/virtual/" + host + ".log"), 1 << 20);
+        }
+        return new SqliteStorage(new SqlitePool("jdbc:sqlite:/virtual/" + host + ".sqlite", 1, "NORMAL"));
+    }
+
+
+    /**
+     * The rows the attempts of one move sent to the target, as a rowHash per short code. A row
+     * the source sends again with another value was changed after an earlier attempt copied it.
+     */
+    private static final class Copies {
+        final Map<String, Long> hashes = new HashMap<>();
+        // changed rows not replaced on the target yet, with their new values
+        final Map<String, String> changed = new LinkedHashMap<>();
+
+        void relayed(Map<String, String> chunk) throws IOException {
+            for (Map.Entry<String, String> row : chunk.entrySet()) {
+                long hash = MigrationProtocol.rowHash(row.getKey(), row.getValue());
+                Long sent = hashes.putIfAbsent(row.getKey(), hash);
+                if (sent != null && sent != hash) {
+                    if (changed.size() >= MigrationProtocol.MAX_REPLACE_ROWS) {
+                        throw new IOException("more than " + MigrationProtocol.MAX_REPLACE_ROWS
+                                + " rows changed during the move");
+                    }
+                    changed.put(row.getKey(), row.getValue());
+                }
             }
-            resultSet.close();
-            statement.close();
-            dbConnect.close();
-
-            // send data to new server
-            Socket newServer = new Socket(newHost, 65535);
-            BufferedOutputStream newOut = new BufferedOutputStream(newServer.getOutputStream());
-            newOut.write(("POST \n" + result + "\n").getBytes());
-            newOut.flush();
-            newOut.close();
-            newServer.close();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
+        void replaced() {
+            for (Map.Entry<String, String> row : changed.entrySet()) {
+                hashes.put(row.getKey(), MigrationProtocol.rowHash(row.getKey(), row.getValue()));
+            }
+            changed.clear();
+        }
     }
-
 }
@@ -0,0 +1,152 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads HTTP/1.x message heads off a persistent connection.
+ * Works on the raw byte stream so that the body and any pipelined
+ * request that follows stay in the stream untouched.
+ */
+public class HttpIO {
+
+    static final int MAX_LINE_LENGTH = 8192;
+    static final int MAX_HEADERS = 100;
+    static final String CRLF = "\r\n";
+
+    /**
+     * Reads a single line terminated by LF (an optional preceding CR is dropped).
+     * Returns null if the stream ends before any byte was read.
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads a single line into the caller's buffer without allocating.
+     * Returns the line length without its terminator, or -1 if the stream ends before any byte was read.
+     */
+    public static int readLine(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (length >= buffer.length) {
+                throw new IOException("Request line too long");
+            }
+            buffer[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) {
+            return -1;
+        }
+        if (length > 0 && buffer[length - 1] == '\r') {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * Reads header lines up to and including the empty line that ends the message head.
+     * Header names are looked up case-insensitively; repeated headers keep the last value.
+     */
+    public static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            if (headers.size() >= MAX_HEADERS) {
+                throw new IOException("Too many headers");
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            headers.put(name, line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    /**
+     * HTTP/1.1 connections are persistent unless the peer asks to close;
+     * HTTP/1.0 connections are closed unless the peer asks to keep them open.
+     */
+    public static boolean isKeepAlive(String httpVersion, Map<String, String> headers) {
+        String connection = headers.get("connection");
+        if (connection != null) {
+            connection = connection.toLowerCase(Locale.ROOT);
+            if (connection.contains("close")) {
+                return false;
+            }
+            if (connection.contains("keep-alive")) {
+                return true;
+            }
+        }
+        return "HTTP/1.1".equals(httpVersion);
+    }
+
+    /**
+     * Returns the declared body length, 0 when absent, or -1 when the body
+     * length cannot be determined from the headers (chunked or malformed).
+     */
+    public static long contentLength(Map<String, String> headers) {
+        if (headers.containsKey("transfer-encoding")) {
+            return -1;
+        }
+        String value = headers.get("content-length");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            long length = Long.parseLong(value);
+            return length < 0 ? -1 : length;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static void skip(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Connection closed inside message body");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    public static void copy(InputStream in, OutputStream out, long length, byte[] buffer) throws IOException {
+        while (length > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (bytesRead == -1) {
+                throw new EOFException("Connection closed inside message body");
+            }
+            out.write(buffer, 0, bytesRead);
+            length -= bytesRead;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Generates the short codes of creates on one URL Shortener node, with no database round trip.
+ *
+ * IDs are counter * NODE_SLOTS + nodeId, so nodes with different shortener.nodeId never
+ * produce the same ID, and codes grow one base62 character at a time as the counter does. The
+ * counter is leased a block at a time: the end of the block is synced to a small lease file
+ * before any of it is handed out, so a restart resumes after the last lease and only skips
+ * what was left of it.
+ */
+public class IdAllocator {
+
+    static final String BASE62 = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    static final int NODE_SLOTS = 1024;
+    // codes tried per create before giving up: a node owning 1/n of the ring keeps about one in n
+    static final int MAX_ATTEMPTS = 100_000;
+
+    interface Check {
+        boolean accept(String code) throws IOException;
+    }
+
+    private final int nodeId;
+    private final int blockSize;
+    private final RandomAccessFile leaseFile;
+
+    // guards next and leaseEnd; a ReentrantLock, so waiting virtual threads unmount instead of pinning
+    private final ReentrantLock lock = new ReentrantLock();
+    // next counter value to hand out, and the end of the current lease
+    private long next;
+    private long leaseEnd;
+
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder leases = new LongAdder();
+
+    /**
+     * @param nodeId     this node's slot, 0 to NODE_SLOTS - 1, unique among the nodes
+     * @param blockSize  counter values leased at a time
+     * @param leasePath  file holding the end of the last lease
+     */
+    public IdAllocator(int nodeId, int blockSize, Path leasePath) throws IOException {
+        if (nodeId < 0 || nodeId >= NODE_SLOTS) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + (NODE_SLOTS - 1) + ": " + nodeId);
+        }
+        this.nodeId = nodeId;
+        this.blockSize = Math.max(1, blockSize);
+        if (leasePath.getParent() != null) {
+            Files.createDirectories(leasePath.getParent());
+        }
+        // "rwd": every write of the lease reaches the disk before it returns
+        this.leaseFile = new RandomAccessFile(leasePath.toFile(), "rwd");
+        this.next = leaseFile.length() >= Long.BYTES ? leaseFile.readLong() : 0;
+        this.leaseEnd = next;
+    }
+
+    /**
+     * The next code that accept takes, e.g. one that lands in this node's shard and is not
+     * stored yet; codes it refuses are used up. Only taking the ID is locked, so concurrent
+     * creates run their checks in parallel.
+     */
+    public String allocate(Check accept) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            String code = encode(nextId());
+            if (accept.accept(code)) {
+                allocated.increment();
+                return code;
+            }
+            skipped.increment();
+        }
+        throw new IOException("No acceptable code in " + MAX_ATTEMPTS + " attempts");
+    }
+
+    private long nextId() throws IOException {
+        lock.lock();
+        try {
+            if (next == leaseEnd) {
+                lease();
+            }
+            return next++ * NODE_SLOTS + nodeId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lease() throws IOException {
+        long end = leaseEnd + blockSize;
+        leaseFile.seek(0);
+        leaseFile.writeLong(end);
+        leaseEnd = end;
+        leases.increment();
+    }
+
+    static String encode(long id) {
+        if (id == 0) {
+            return "0";
+        }
+        char[] code = new char[11];
+        int position = code.length;
+        while (id > 0) {
+            code[--position] = BASE62.charAt((int) (id % 62));
+            id /= 62;
+        }
+        return new String(code, position, code.length - position);
+    }
+
+    public long allocatedCount() {
+        return allocated.sum();
+    }
+
+    public long skippedCount() {
+        return skipped.sum();
+    }
+
+    public long leaseCount() {
+        return leases.sum();
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "ids[node=" + nodeId + " next=" + next + " leasedTo=" + leaseEnd + " allocated=" + allocated.sum()
+                    + " skipped=" + skipped.sum() + "]";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
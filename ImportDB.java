@@ -1,35 +1,350 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
+/**
+ * Bulk loader for the URL table: reads shortURL TAB longURL lines.
+ *
+ * One thread streams the file in blocks of whole lines, a pool parses the blocks, and the
+ * main thread inserts them in order into one transaction per import.batchRows rows. After
+ * each commit the byte offset reached is saved to a checkpoint file, and a restarted import
+ * continues from there. With import.hosts set, rows go straight into the per-host
+ * databases under import.shardDir, split by the same HashRing the proxy routes with.
+ *
+ *   java -Dimport.input=database.txt -Dimport.hosts=hosts.conf ImportDB
+ */
 public class ImportDB {
-    public static void main(String[] args) throws SQLException, IOException {
 
-        String url = "jdbc:sqlite:database.sqlite";
-        String createTable = "CREATE TABLE IF NOT EXISTS URL (shortURL TEXT PRIMARY KEY, longURL TEXT);";
+    static final String INPUT = System.getProperty("import.input", "database.txt");
+    // single target database, used when import.hosts is not set
+    static final String OUTPUT = System.getProperty("import.output", "jdbc:sqlite:database.sqlite");
+    static final String HOSTS = System.getProperty("import.hosts");
+    static final String SHARD_DIR = System.getProperty("import.shardDir", "/virtual");
+    static final int THREADS = Integer.getInteger("import.threads", Runtime.getRuntime().availableProcessors());
+    static final int BATCH_ROWS = Integer.getInteger("import.batchRows", 100000);
+    static final int BLOCK_BYTES = Integer.getInteger("import.blockBytes", 1 << 20);
+    // create new tables without the primary key and index them once loaded
+    static final boolean DEFER_INDEX = Boolean.getBoolean("import.deferIndex");
+    static final boolean RESUME = !"false".equals(System.getProperty("import.resume"));
+    static final long PROGRESS_INTERVAL = 2000;
 
-        Connection connection = DriverManager.getConnection(url);
+    static final String INDEX_NAME = "URL_shortURL";
+    private static final Parsed END = new Parsed(0, 0);
 
-        if (connection != null) {
-            connection.createStatement().execute(createTable);
+    public static void main(String[] args) throws SQLException, IOException, InterruptedException {
+        Path input = Paths.get(INPUT);
+        Path checkpoint = Paths.get(INPUT + ".checkpoint");
 
-            FileReader fr = new FileReader("./database.txt");
-            BufferedReader br = new BufferedReader(fr);
+        List<Shard> shards = new ArrayList<>();
+        Function<String, Integer> routes = null;
+        if (HOSTS == null) {
+            shards.add(new Shard(OUTPUT));
+        } else {
+            HashRing ring = HashRing.parse(Files.readAllLines(Paths.get(HOSTS)), HashRing.DEFAULT_VNODES);
+            Map<String, Integer> shardOf = new HashMap<>();
+            for (String host : ring.hosts()) {
+                shardOf.put(host, shards.size());
+                shards.add(new Shard("jdbc:sqlite:" + SHARD_DIR + "/" + host + ".sqlite"));
+            }
+            routes = shortURL -> {
+                String host = ring.route(shortURL);
+                return host == null ? null : shardOf.get(host);
+            };
+        }
+
+        long offset = 0;
+        long rows = 0;
+        if (RESUME && Files.exists(checkpoint)) {
+            String[] saved = Files.readString(checkpoint).trim().split(" ");
+            offset = Long.parseLong(saved[0]);
+            rows = Long.parseLong(saved[1]);
+            System.out.println("Resuming at byte " + offset + " after " + rows + " rows");
+        }
+
+        ExecutorService parsers = Executors.newFixedThreadPool(THREADS);
+        BlockingQueue<CompletableFuture<Parsed>> blocks = new ArrayBlockingQueue<>(THREADS * 4);
+        Function<String, Integer> shardRoutes = routes;
+        int shardCount = shards.size();
+        long startOffset = offset;
+        Thread reader = new Thread(() -> read(input, startOffset, blocks, parsers, shardRoutes, shardCount),
+                "import-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long totalBytes = Files.size(input);
+        long start = System.currentTimeMillis();
+        long nextProgress = start + PROGRESS_INTERVAL;
+        long startRows = rows;
+        long malformed = 0;
+        long unroutable = 0;
+        long uncommitted = 0;
+        try {
+            while (true) {
+                Parsed block = blocks.take().get();
+                if (block == END) {
+                    break;
+                }
+                for (int i = 0; i < shardCount; i++) {
+                    shards.get(i).insert(block.rows.get(i));
+                }
+                rows += block.rowCount;
+                uncommitted += block.rowCount;
+                malformed += block.malformed;
+                unroutable += block.unroutable;
+                offset = block.endOffset;
+
+                if (uncommitted >= BATCH_ROWS) {
+                    commit(shards, checkpoint, offset, rows);
+                    uncommitted = 0;
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextProgress) {
+                    nextProgress = now + PROGRESS_INTERVAL;
+                    progress(rows, rows - startRows, offset, totalBytes, now - start);
+                }
+            }
+            commit(shards, checkpoint, offset, rows);
+        } catch (ExecutionException e) {
+            // everything up to the last checkpoint is kept
+            throw new IOException("Import failed at byte " + offset + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            parsers.shutdownNow();
+        }
+
+        if (DEFER_INDEX) {
+            for (Shard shard : shards) {
+                shard.createIndex();
+            }
+        }
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        Files.deleteIfExists(checkpoint);
+
+        progress(rows, rows - startRows, offset, totalBytes, System.currentTimeMillis() - start);
+        System.out.println("Import finished: " + rows + " rows, " + malformed + " malformed and "
+                + unroutable + " unroutable lines skipped");
+        for (Shard shard : shards) {
+            System.out.println("  " + shard.url + ": " + shard.inserted + " rows");
+        }
+    }
+
+    private static void read(Path input, long offset, BlockingQueue<CompletableFuture<Parsed>> blocks,
+                             ExecutorService parsers, Function<String, Integer> routes, int shardCount) {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            channel.position(offset);
+            InputStream in = Channels.newInputStream(channel);
+            byte[] carry = new byte[0];
+            long position = offset;
+            while (true) {
+                byte[] buffer = Arrays.copyOf(carry, Math.max(BLOCK_BYTES, carry.length * 2));
+                int filled = carry.length;
+                int count;
+                while (filled < buffer.length && (count = in.read(buffer, filled, buffer.length - filled)) > 0) {
+                    filled += count;
+                }
+                boolean eof = filled < buffer.length;
+                // hand over whole lines only; the rest starts the next block
+                int end = filled;
+                if (!eof) {
+                    while (end > 0 && buffer[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        // a line longer than the block: grow it
+                        carry = Arrays.copyOf(buffer, filled);
+                        continue;
+                    }
+                }
+                carry = Arrays.copyOfRange(buffer, end, filled);
+                position += end;
+
+                byte[] block = buffer;
+                int length = end;
+                long endOffset = position;
+                blocks.put(CompletableFuture.supplyAsync(
+                        () -> parse(block, length, endOffset, routes, shardCount), parsers));
+                if (eof) {
+                    break;
+                }
+            }
+            blocks.put(CompletableFuture.completedFuture(END));
+        } catch (IOException e) {
+            blocks.offer(CompletableFuture.failedFuture(e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Parsed parse(byte[] block, int length, long endOffset, Function<String, Integer> routes,
+                                int shardCount) {
+        Parsed parsed = new Parsed(endOffset, shardCount);
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            int tab = -1;
+            while (lineEnd < length && block[lineEnd] != '\n') {
+                if (block[lineEnd] == '\t' && tab < 0) {
+                    tab = lineEnd;
+                }
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && block[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd > lineStart) {
+                if (tab < 0 || tab == lineStart || tab >= lineEnd - 1) {
+                    parsed.malformed++;
+                } else {
+                    // a third column, if any, is ignored
+                    int valueEnd = tab + 1;
+                    while (valueEnd < lineEnd && block[valueEnd] != '\t') {
+                        valueEnd++;
+                    }
+                    String shortURL = new String(block, lineStart, tab - lineStart, StandardCharsets.UTF_8);
+                    String longURL = new String(block, tab + 1, valueEnd - tab - 1, StandardCharsets.UTF_8);
+                    Integer shard = routes == null ? Integer.valueOf(0) : routes.apply(shortURL);
+                    if (shard == null) {
+                        parsed.unroutable++;
+                    } else {
+                        parsed.rows.get(shard).add(new String[]{shortURL, longURL});
+                        parsed.rowCount++;
+                    }
+                }
+            }
+            lineStart = next;
+        }
+        return parsed;
+    }
+
+    private static void commit(List<Shard> shards, Path checkpoint, long offset, long rows)
+            throws SQLException, IOException {
+        for (Shard shard : shards) {
+            shard.commit();
+        }
+        Path temporary = Paths.get(checkpoint + ".tmp");
+        Files.writeString(temporary, offset + " " + rows + "\n");
+        Files.move(temporary, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void progress(long rows, long rowsThisRun, long offset, long totalBytes, long elapsed) {
+        System.out.printf("Imported %d rows, %.1f / %.1f MB (%.1f%%), %.0f rows/s%n",
+                rows, offset / 1e6, totalBytes / 1e6, totalBytes == 0 ? 100.0 : 100.0 * offset / totalBytes,
+                elapsed == 0 ? 0.0 : rowsThisRun * 1000.0 / elapsed);
+    }
 
-            String line;
-            PreparedStatement statement = connection.prepareStatement("INSERT INTO URL (shortURL, longURL) VALUES (?, ?)");
+    private static class Parsed {
+        final long endOffset;
+        final List<List<String[]>> rows;
+        int rowCount;
+        int malformed;
+        int unroutable;
 
-            while ((line = br.readLine()) != null) {
-                String[] urls = line.split("\t");
-                statement.setString(1, urls[0]);
-                statement.setString(2, urls[1]);
-                statement.executeUpdate();
-                System.out.println(line);
+        Parsed(long endOffset, int shardCount) {
+            this.endOffset = endOffset;
+            this.rows = new ArrayList<>(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                rows.add(new ArrayList<>());
             }
         }
     }
+
+    /**
+     * One target database, written in its own open transaction.
+     */
+    private static class Shard {
+        final String url;
+        final Connection connection;
+        final PreparedStatement insert;
+        long inserted = 0;
+
+        Shard(String url) throws SQLException {
+            this.url = url;
+            this.connection = DriverManager.getConnection(url);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode = WAL");
+                // a killed import loses nothing committed; only an OS crash could
+                statement.execute("PRAGMA synchronous = NORMAL");
+                statement.execute("PRAGMA cache_size = -262144");
+                statement.execute("PRAGMA temp_store = MEMORY");
+                statement.execute(DEFER_INDEX
+                        ? "CREATE TABLE IF NOT EXISTS URL (shortURL TEXT, longURL TEXT)"
+                        : SqliteStorage.CREATE_SQL);
+            }
+            connection.setAutoCommit(false);
+            this.insert = connection.prepareStatement(SqliteStorage.INSERT_SQL);
+        }
+
+        void insert(List<String[]> rows) throws SQLException {
+            if (rows.isEmpty()) {
+                return;
+            }
+            for (String[] row : rows) {
+                insert.setString(1, row[0]);
+                insert.setString(2, row[1]);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            inserted += rows.size();
+        }
+
+        void commit() throws SQLException {
+            connection.commit();
+        }
+
+        /**
+         * Deduplicates and indexes a table created without its primary key.
+         */
+        void createIndex() throws SQLException {
+            String tableSql;
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(
+                         "SELECT sql FROM sqlite_master WHERE type = 'table' AND name = 'URL'")) {
+                tableSql = resultSet.next() ? resultSet.getString(1) : "";
+            }
+            if (tableSql.toUpperCase().contains("PRIMARY KEY")) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try (Statement statement = connection.createStatement()) {
+                // without the key, rows written again on resume were appended: keep the last
+                statement.executeUpdate("DELETE FROM URL WHERE rowid NOT IN "
+                        + "(SELECT MAX(rowid) FROM URL GROUP BY shortURL)");
+                statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_NAME + " ON URL (shortURL)");
+            }
+            connection.commit();
+            System.out.println("Indexed " + url + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        void close() throws SQLException {
+            insert.close();
+            connection.close();
+        }
+    }
 }
@@ -1,20 +1,33 @@
-import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class LRUCacheSync<K, V> {
 
+    // a ReentrantLock rather than a monitor, so waiting virtual threads unmount instead of pinning
+    private final ReentrantLock lock = new ReentrantLock();
     private final Map<K,V> cache;
 
     public LRUCacheSync(int capacity) {
-        this.cache = Collections.synchronizedMap(new LRUCache<>(capacity));
+        this.cache = new LRUCache<>(capacity);
     }
 
     public V getValue(K key) {
-        return cache.get(key);
+        // an access-ordered get reorders the list, so it needs the lock as well
+        lock.lock();
+        try {
+            return cache.get(key);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void putValue(K key, V value) {
-        cache.put(key, value);
+    public void putValue(K key, V value) {
+        lock.lock();
+        try {
+            cache.put(key, value);
+        } finally {
+            lock.unlock();
+        }
     }
 
 }
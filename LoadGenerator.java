@@ -0,0 +1,367 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for SimpleProxyServer or a single URLShortener, over keep-alive connections.
+ *
+ * "closed" mode: each connection sends its next request as soon as the last is answered, so
+ * throughput is what the server sustains and latency is service time. "open" mode: requests
+ * are scheduled at a constant total rate whatever the server does, and latency is measured
+ * from when a request was due, not from when a connection got round to sending it. A server
+ * that stalls is charged for every request that should have gone out meanwhile, which a closed
+ * loop hides (coordinated omission); service time is reported alongside.
+ *
+ * Reads pick a seeded code by Zipfian or uniform popularity, or, for the miss ratio, a code
+ * never stored; writes rewrite a seeded code. Codes are derived from load.keySeed, so a second
+ * run against the same data can skip seeding with -Dload.seed=false.
+ *
+ *   java -Dload.port=8081 -Dload.mode=open -Dload.rate=5000 -Dload.duration=30 LoadGenerator
+ *   java -Dload.port=8080 -Dload.mode=closed -Dload.connections=32 -Dload.writeRatio=0.1 LoadGenerator
+ */
+public class LoadGenerator {
+
+    // server: 8081 for the proxy, 8080 for a URL Shortener
+    static final String HOST = System.getProperty("load.host", "localhost");
+    static final int PORT = Integer.getInteger("load.port", 8081);
+    // "open" (constant rate) or "closed" (back to back), connections used, and requests per second
+    // in total for open mode
+    static final String MODE = System.getProperty("load.mode", "closed");
+    static final int CONNECTIONS = Integer.getInteger("load.connections", 16);
+    static final double RATE = Double.parseDouble(System.getProperty("load.rate", "1000"));
+    // seconds measured, after seconds of warm-up that are not
+    static final int DURATION = Integer.getInteger("load.duration", 30);
+    static final int WARMUP = Integer.getInteger("load.warmup", 5);
+    // seeded codes, and the seed they are derived from
+    static final int KEYS = Integer.getInteger("load.keys", 10000);
+    static final long KEY_SEED = Long.getLong("load.keySeed", 42);
+    static final boolean SEED = !"false".equals(System.getProperty("load.seed"));
+    // "zipf" or "uniform" popularity of the seeded codes, and the Zipf exponent
+    static final String DISTRIBUTION = System.getProperty("load.distribution", "zipf");
+    static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("load.zipfExponent", "0.99"));
+    // share of requests that are PUTs, and share of GETs for codes that were never stored
+    static final double WRITE_RATIO = Double.parseDouble(System.getProperty("load.writeRatio", "0.05"));
+    static final double MISS_RATIO = Double.parseDouble(System.getProperty("load.missRatio", "0.05"));
+    // ms to connect or wait for a response before the request counts as an error
+    static final int TIMEOUT = Integer.getInteger("load.timeout", 5000);
+
+    static final String BASE62 = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    // seeded codes between progress lines
+    static final int SEED_PROGRESS = 10000;
+
+    private final String[] codes;
+    // codes never seeded: 8 characters where the seeded ones have 7
+    private final String[] missing;
+    private final double[] cumulative;
+
+    private final Histogram getResponse = new Histogram();
+    private final Histogram getService = new Histogram();
+    private final Histogram putResponse = new Histogram();
+    private final Histogram putService = new Histogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unexpected = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong nextSlot = new AtomicLong();
+
+    private long startNanos;
+    private long measureNanos;
+    private long endNanos;
+
+    LoadGenerator() {
+        Random random = new Random(KEY_SEED);
+        codes = codes(random, KEYS, 7);
+        missing = codes(random, Math.max(1, KEYS / 10), 8);
+        if (DISTRIBUTION.equals("zipf")) {
+            cumulative = new double[KEYS];
+            double total = 0;
+            for (int k = 0; k < KEYS; k++) {
+                total += 1 / Math.pow(k + 1, ZIPF_EXPONENT);
+                cumulative[k] = total;
+            }
+        } else if (DISTRIBUTION.equals("uniform")) {
+            cumulative = null;
+        } else {
+            throw new IllegalArgumentException("Unknown load.distribution: " + DISTRIBUTION);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!MODE.equals("open") && !MODE.equals("closed")) {
+            throw new IllegalArgumentException("Unknown load.mode: " + MODE);
+        }
+        LoadGenerator load = new LoadGenerator();
+        System.out.println("Target " + HOST + ":" + PORT + ", " + MODE + " loop, " + CONNECTIONS + " connections"
+                + (MODE.equals("open") ? ", " + RATE + " requests/s" : "") + ", " + KEYS + " " + DISTRIBUTION
+                + " keys, " + WRITE_RATIO + " writes, " + MISS_RATIO + " misses");
+        if (SEED) {
+            load.seed();
+        }
+        load.run();
+        load.report();
+    }
+
+    private static String[] codes(Random random, int count, int length) {
+        Set<String> seen = new HashSet<>();
+        String[] codes = new String[count];
+        char[] code = new char[length];
+        for (int i = 0; i < count; ) {
+            for (int j = 0; j < length; j++) {
+                code[j] = BASE62.charAt(random.nextInt(BASE62.length()));
+            }
+            String candidate = new String(code);
+            if (seen.add(candidate)) {
+                codes[i++] = candidate;
+            }
+        }
+        return codes;
+    }
+
+    private static String longURL(String code, long version) {
+        return "http://example.com/" + code + "/" + version;
+    }
+
+    /**
+     * Stores every code, split over the connections.
+     */
+    private void seed() throws InterruptedException {
+        long start = System.nanoTime();
+        AtomicLong next = new AtomicLong();
+        LongAdder failed = new LongAdder();
+        Thread[] threads = new Thread[CONNECTIONS];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                Connection connection = new Connection();
+                long i;
+                while ((i = next.getAndIncrement()) < KEYS) {
+                    try {
+                        if (connection.send("PUT", codes[(int) i], longURL(codes[(int) i], 0)) != 200) {
+                            failed.increment();
+                        }
+                    } catch (IOException e) {
+                        failed.increment();
+                        connection.close();
+                    }
+                    if ((i + 1) % SEED_PROGRESS == 0) {
+                        System.out.println("Seeded " + (i + 1) + " codes");
+                    }
+                }
+                connection.close();
+            }, "seed-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println("Seeded " + KEYS + " codes in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms" + (failed.sum() == 0 ? "" : ", " + failed.sum() + " failed"));
+    }
+
+    private void run() throws InterruptedException {
+        startNanos = System.nanoTime();
+        measureNanos = startNanos + TimeUnit.SECONDS.toNanos(WARMUP);
+        endNanos = measureNanos + TimeUnit.SECONDS.toNanos(DURATION);
+        Thread[] threads = new Thread[CONNECTIONS];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(MODE.equals("open") ? this::openLoop : this::closedLoop, "load-" + t);
+            threads[t].start();
+        }
+        long lastSent = 0;
+        long lastErrors = 0;
+        for (int second = 1; second <= WARMUP + DURATION; second++) {
+            LockSupport.parkNanos(startNanos + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long sentNow = sent.sum();
+            long errorsNow = errors.sum();
+            System.out.println(String.format("%4ds %s %8d requests/s %6d errors", second,
+                    second <= WARMUP ? "warm-up " : "measured", sentNow - lastSent, errorsNow - lastErrors));
+            lastSent = sentNow;
+            lastErrors = errorsNow;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Takes the next slot of the schedule, waits for its time and sends it; a connection that
+     * is behind sends at once, and its requests' latency includes the time they were late.
+     */
+    private void openLoop() {
+        Connection connection = new Connection();
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+        while (true) {
+            long intended = startNanos + (long) (nextSlot.getAndIncrement() * intervalNanos);
+            if (intended >= endNanos) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            request(connection, intended);
+        }
+        connection.close();
+    }
+
+    private void closedLoop() {
+        Connection connection = new Connection();
+        while (System.nanoTime() < endNanos) {
+            request(connection, System.nanoTime());
+        }
+        connection.close();
+    }
+
+    private void request(Connection connection, long intended) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean isPut = random.nextDouble() < WRITE_RATIO;
+        boolean isMiss = !isPut && random.nextDouble() < MISS_RATIO;
+        String code = isMiss ? missing[random.nextInt(missing.length)] : codes[pick(random)];
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = isPut ? connection.send("PUT", code, longURL(code, start)) : connection.send("GET", code, null);
+        } catch (IOException e) {
+            connection.close();
+            status = -1;
+        }
+        long end = System.nanoTime();
+        sent.increment();
+        if (intended < measureNanos) {
+            return;
+        }
+        if (status < 0 || status >= 500) {
+            errors.increment();
+            return;
+        }
+        if (isPut) {
+            writes.increment();
+            putResponse.record((end - intended) / 1000);
+            putService.record((end - start) / 1000);
+            if (status != 200) {
+                unexpected.increment();
+            }
+        } else {
+            (status == 307 ? hits : misses).increment();
+            getResponse.record((end - intended) / 1000);
+            getService.record((end - start) / 1000);
+            if ((status == 307) == isMiss) {
+                unexpected.increment();
+            }
+        }
+    }
+
+    private int pick(ThreadLocalRandom random) {
+        if (cumulative == null) {
+            return random.nextInt(KEYS);
+        }
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[KEYS - 1]);
+        return Math.min(rank < 0 ? -rank - 1 : rank, KEYS - 1);
+    }
+
+    private void report() {
+        long scheduled = MODE.equals("open") ? (long) ((endNanos - startNanos) / (1e9 / RATE)) : sent.sum();
+        long measured = hits.sum() + misses.sum() + writes.sum() + errors.sum();
+        System.out.println();
+        System.out.println(String.format("%d requests in %d s: %.0f requests/s, %d hits, %d misses, %d writes, "
+                        + "%d errors, %d unexpected answers", measured, DURATION, (double) measured / DURATION,
+                hits.sum(), misses.sum(), writes.sum(), errors.sum(), unexpected.sum()));
+        if (MODE.equals("open") && sent.sum() < scheduled) {
+            System.out.println("Server fell behind: " + (scheduled - sent.sum()) + " of " + scheduled
+                    + " scheduled requests were never sent");
+        }
+        System.out.println();
+        System.out.println("latency (us)        count      p50      p90      p99    p99.9   p99.99      max");
+        if (MODE.equals("open")) {
+            printLatency("GET response", getResponse);
+            printLatency("PUT response", putResponse);
+        }
+        printLatency("GET service", getService);
+        printLatency("PUT service", putService);
+        if (MODE.equals("open")) {
+            System.out.println("\nresponse: from when the request was due, corrected for coordinated omission;"
+                    + " service: from when it was sent");
+        }
+    }
+
+    private static void printLatency(String name, Histogram histogram) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        System.out.println(String.format("%-14s %10d %8d %8d %8d %8d %8d %8d", name, snapshot.count,
+                snapshot.quantile(0.5), snapshot.quantile(0.9), snapshot.quantile(0.99), snapshot.quantile(0.999),
+                snapshot.quantile(0.9999), snapshot.max));
+    }
+
+    /**
+     * One keep-alive connection, reopened when the server closes it or a request fails.
+     */
+    private static final class Connection {
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        /**
+         * Sends GET /code or PUT /?short=code&long=longURL and reads the response; returns its status.
+         */
+        int send(String method, String code, String longURL) throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(HOST, PORT), TIMEOUT);
+                socket.setSoTimeout(TIMEOUT);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = new BufferedOutputStream(socket.getOutputStream());
+            }
+            String target = longURL == null ? "/" + code : "/?short=" + code + "&long=" + longURL;
+            out.write((method + " " + target + " HTTP/1.1" + HttpIO.CRLF + "Host: " + HOST + HttpIO.CRLF
+                    + HttpIO.CRLF).getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            String statusLine = HttpIO.readLine(in);
+            if (statusLine == null) {
+                throw new IOException("connection closed");
+            }
+            Map<String, String> headers = HttpIO.readHeaders(in);
+            long length = HttpIO.contentLength(headers);
+            int space = statusLine.indexOf(' ');
+            if (length < 0 || space < 0) {
+                throw new IOException("unexpected response: " + statusLine);
+            }
+            HttpIO.skip(in, length);
+            if (!HttpIO.isKeepAlive(statusLine.substring(0, space), headers)) {
+                close();
+            }
+            try {
+                return Integer.parseInt(statusLine.substring(space + 1, space + 4));
+            } catch (RuntimeException e) {
+                throw new IOException("unexpected response: " + statusLine);
+            }
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already gone
+                }
+                socket = null;
+            }
+        }
+    }
+}
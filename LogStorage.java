@@ -0,0 +1,655 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log store for short code to long URL pairs.
+ *
+ * Records are appended to memory-mapped segment files and every short code is kept in an
+ * in-memory index pointing at its latest record, so a lookup is a hash lookup plus one copy
+ * out of the mapping. Writes are forced to disk before they become visible; a batch costs
+ * one msync. Short keys keep the index small while the long values stay in the page cache.
+ *
+ * Segments are named first-last.seg after the range of segment ids they hold. Compaction
+ * rewrites consecutive sealed segments into one file named after their combined range, so
+ * after a crash a file whose range lies inside another one is a leftover and is deleted.
+ * On startup all segments are replayed in order; a torn record ends its segment.
+ */
+public class LogStorage implements Storage {
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    // crc (4) + type (1) + key length (2) + value length (4)
+    static final int HEADER_BYTES = 11;
+    // compaction starts when dead records make up this share of the sealed segments
+    static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+    // by serial, the in-memory id that index locations refer to
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+    // sealed segments, oldest first; guarded by writeLock
+    private final List<Segment> sealed = new ArrayList<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final AtomicInteger serials = new AtomicInteger();
+    private final LongAdder compactions = new LongAdder();
+    private Segment active;
+    private int nextId;
+
+    /**
+     * Opens (or creates) the store in dir, replaying its segments.
+     *
+     * @param segmentBytes  size at which the active segment is sealed and a new one started
+     */
+    public LogStorage(File dir, int segmentBytes) throws IOException {
+        this.dir = dir.toPath();
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(this.dir);
+        long start = System.currentTimeMillis();
+        recover();
+        active = createSegment(nextId, nextId);
+        nextId++;
+        System.out.println("Log storage opened: " + index.size() + " short URLs in " + sealed.size()
+                + " segments, " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public String get(String shortURL) throws IOException {
+        while (true) {
+            Long location = index.get(shortURL);
+            if (location == null) {
+                return null;
+            }
+            Segment segment = segments.get(serialOf(location));
+            if (segment != null) {
+                return segment.value(offsetOf(location));
+            }
+            // compaction moved the record between the two lookups
+        }
+    }
+
+    @Override
+    public Map<String, String> getAll(Collection<String> shortURLs) throws IOException {
+        // the index is in memory: a read per code costs what one multi-key read would
+        Map<String, String> found = new HashMap<>();
+        for (String shortURL : shortURLs) {
+            String longURL = get(shortURL);
+            if (longURL != null) {
+                found.put(shortURL, longURL);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void put(String shortURL, String longURL) throws IOException {
+        putAll(Collections.singletonMap(shortURL, longURL));
+    }
+
+    @Override
+    public void putAll(Map<String, String> pairs) throws IOException {
+        if (pairs.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(pairs.size());
+        long[] locations = new long[pairs.size()];
+        writeLock.lock();
+        try {
+            int syncFrom = active.size;
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                if (active.size > 0 && active.size + recordBytes(pair.getKey(), pair.getValue()) > segmentBytes) {
+                    roll();
+                    syncFrom = 0;
+                }
+                locations[keys.size()] = append(PUT, pair.getKey(), pair.getValue());
+                keys.add(pair.getKey());
+            }
+            active.buffer.force(syncFrom, active.size - syncFrom);
+
+            // visible only once durable
+            for (int i = 0; i < keys.size(); i++) {
+                Long previous = index.put(keys.get(i), locations[i]);
+                if (previous != null) {
+                    markDead(previous);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> putAllAbsent(Map<String, String> pairs) throws IOException {
+        writeLock.lock();
+        try {
+            Map<String, String> absent = new LinkedHashMap<>();
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                if (!index.containsKey(pair.getKey())) {
+                    absent.put(pair.getKey(), pair.getValue());
+                }
+            }
+            putAll(absent);
+            return absent;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> replaceAll(Map<String, String> pairs, Map<String, String> expected)
+            throws IOException {
+        writeLock.lock();
+        try {
+            Map<String, String> unchanged = new LinkedHashMap<>();
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                String current = expected.containsKey(pair.getKey()) ? get(pair.getKey()) : null;
+                if (current != null && current.equals(expected.get(pair.getKey()))) {
+                    unchanged.put(pair.getKey(), pair.getValue());
+                }
+            }
+            putAll(unchanged);
+            return unchanged;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String shortURL) throws IOException {
+        writeLock.lock();
+        try {
+            if (!index.containsKey(shortURL)) {
+                return false;
+            }
+            if (active.size > 0 && active.size + recordBytes(shortURL, "") > segmentBytes) {
+                roll();
+            }
+            int offset = active.size;
+            long tombstone = append(DELETE, shortURL, "");
+            active.buffer.force(offset, active.size - offset);
+            // tombstones only matter to recovery
+            markDead(tombstone);
+            Long previous = index.remove(shortURL);
+            if (previous != null) {
+                markDead(previous);
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int deleteAll(Collection<String> shortURLs) throws IOException {
+        writeLock.lock();
+        try {
+            List<String> keys = new ArrayList<>();
+            for (String shortURL : shortURLs) {
+                if (index.containsKey(shortURL)) {
+                    keys.add(shortURL);
+                }
+            }
+            if (keys.isEmpty()) {
+                return 0;
+            }
+            long[] tombstones = new long[keys.size()];
+            int syncFrom = active.size;
+            for (int i = 0; i < keys.size(); i++) {
+                if (active.size > 0 && active.size + recordBytes(keys.get(i), "") > segmentBytes) {
+                    roll();
+                    syncFrom = 0;
+                }
+                tombstones[i] = append(DELETE, keys.get(i), "");
+            }
+            active.buffer.force(syncFrom, active.size - syncFrom);
+            for (int i = 0; i < keys.size(); i++) {
+                markDead(tombstones[i]);
+                Long previous = index.remove(keys.get(i));
+                if (previous != null) {
+                    markDead(previous);
+                }
+            }
+            return keys.size();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void scan(String prefix, Visitor visitor) throws IOException {
+        for (String shortURL : index.keySet()) {
+            if (shortURL.startsWith(prefix)) {
+                String longURL = get(shortURL);
+                if (longURL != null) {
+                    visitor.visit(shortURL, longURL);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long count() {
+        return index.size();
+    }
+
+    public long compactionCount() {
+        return compactions.sum();
+    }
+
+    /**
+     * Rewrites the sealed segments without their dead records. Runs alongside reads and writes.
+     */
+    public void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            List<Segment> candidates;
+            writeLock.lock();
+            try {
+                candidates = new ArrayList<>(sealed);
+            } finally {
+                writeLock.unlock();
+            }
+
+            // consecutive segments whose live records fit in one segment are merged
+            List<Segment> group = new ArrayList<>();
+            long groupLive = 0;
+            boolean oldest = true;
+            for (Segment segment : candidates) {
+                long live = segment.size - segment.dead.get();
+                if (!group.isEmpty() && groupLive + live > segmentBytes) {
+                    compactGroup(group, oldest);
+                    oldest = false;
+                    group.clear();
+                    groupLive = 0;
+                }
+                group.add(segment);
+                groupLive += live;
+            }
+            if (!group.isEmpty()) {
+                compactGroup(group, oldest);
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactionLock.lock();
+        writeLock.lock();
+        try {
+            seal(active);
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        } finally {
+            writeLock.unlock();
+            compactionLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long bytes = 0;
+        long dead = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.size;
+            dead += segment.dead.get();
+        }
+        return String.format("log[keys=%d segments=%d bytes=%d deadBytes=%d compactions=%d]",
+                index.size(), segments.size(), bytes, dead, compactionCount());
+    }
+
+    private void recover() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // unfinished compaction output
+                    Files.delete(file);
+                } else if (name.endsWith(".seg")) {
+                    String[] range = name.substring(0, name.length() - 4).split("-");
+                    found.add(new Segment(serials.incrementAndGet(), Integer.parseInt(range[0]),
+                            Integer.parseInt(range[1]), file));
+                }
+            }
+        }
+        found.sort((a, b) -> Integer.compare(a.last, b.last));
+
+        for (Segment segment : found) {
+            boolean leftover = false;
+            for (Segment other : found) {
+                if (other != segment && other.first <= segment.first && segment.last <= other.last
+                        && other.last - other.first > segment.last - segment.first) {
+                    leftover = true;
+                    break;
+                }
+            }
+            if (leftover) {
+                // input of a compaction whose output was already in place
+                Files.delete(segment.path);
+                continue;
+            }
+
+            segment.channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long length = segment.channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(segment.path + " is too large");
+            }
+            segment.buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int valid = replay(segment, (int) length);
+            if (valid < length) {
+                System.err.println("Log storage: trimming " + (length - valid) + " bytes after the last record of "
+                        + segment.path.getFileName());
+                segment.channel.truncate(valid);
+                segment.channel.force(true);
+                segment.buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, valid);
+            }
+            nextId = Math.max(nextId, segment.last + 1);
+            if (valid == 0) {
+                segment.channel.close();
+                Files.delete(segment.path);
+                continue;
+            }
+            segment.size = valid;
+            segments.put(segment.serial, segment);
+            sealed.add(segment);
+        }
+    }
+
+    /**
+     * Applies the records of a segment to the index and returns the length of its valid prefix.
+     */
+    private int replay(Segment segment, int length) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= length) {
+            byte type = buffer.get(offset + 4);
+            int keyLength = buffer.getShort(offset + 5) & 0xffff;
+            int valueLength = buffer.getInt(offset + 7);
+            int recordLength = HEADER_BYTES + keyLength + valueLength;
+            if ((type != PUT && type != DELETE) || valueLength < 0 || recordLength > length - offset
+                    || crc(buffer, offset, recordLength) != buffer.getInt(offset)) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(offset + HEADER_BYTES, key);
+            String shortURL = new String(key, StandardCharsets.UTF_8);
+            long location = location(segment.serial, offset);
+            Long previous = type == PUT ? index.put(shortURL, location) : index.remove(shortURL);
+            if (previous != null) {
+                Segment owner = segments.getOrDefault(serialOf(previous), segment);
+                owner.dead.addAndGet(recordLength(previous, owner));
+            }
+            if (type == DELETE) {
+                segment.dead.addAndGet(recordLength);
+            }
+            offset += recordLength;
+        }
+        return offset;
+    }
+
+    private void compactGroup(List<Segment> group, boolean oldest) throws IOException {
+        long dead = 0;
+        for (Segment segment : group) {
+            dead += segment.dead.get();
+        }
+        if (group.size() == 1 && dead == 0) {
+            return;
+        }
+
+        int first = group.get(0).first;
+        int last = group.get(group.size() - 1).last;
+        Path target = dir.resolve(fileName(first, last));
+        Path temporary = dir.resolve(fileName(first, last) + ".tmp");
+        Segment output = new Segment(serials.incrementAndGet(), first, last, target);
+
+        // copy the live records, and the tombstones older segments still need
+        List<String> movedKeys = new ArrayList<>();
+        List<long[]> moves = new ArrayList<>();
+        Set<String> tombstones = new HashSet<>();
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            int outOffset = 0;
+            for (Segment segment : group) {
+                ByteBuffer buffer = segment.buffer;
+                int offset = 0;
+                while (offset < segment.size) {
+                    byte type = buffer.get(offset + 4);
+                    int keyLength = buffer.getShort(offset + 5) & 0xffff;
+                    int recordLength = HEADER_BYTES + keyLength + buffer.getInt(offset + 7);
+                    byte[] key = new byte[keyLength];
+                    buffer.get(offset + HEADER_BYTES, key);
+                    String shortURL = new String(key, StandardCharsets.UTF_8);
+
+                    long location = location(segment.serial, offset);
+                    Long current = index.get(shortURL);
+                    boolean keep = type == PUT
+                            ? current != null && current == location
+                            : !oldest && current == null && tombstones.add(shortURL);
+                    if (keep) {
+                        ByteBuffer record = buffer.slice(offset, recordLength);
+                        while (record.hasRemaining()) {
+                            out.write(record);
+                        }
+                        if (type == PUT) {
+                            movedKeys.add(shortURL);
+                            moves.add(new long[]{location, location(output.serial, outOffset)});
+                        } else {
+                            output.dead.addAndGet(recordLength);
+                        }
+                        outOffset += recordLength;
+                    }
+                    offset += recordLength;
+                }
+            }
+            out.force(true);
+            output.size = outOffset;
+        }
+
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        output.channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        output.buffer = output.channel.map(FileChannel.MapMode.READ_ONLY, 0, output.size);
+        segments.put(output.serial, output);
+
+        writeLock.lock();
+        try {
+            for (int i = 0; i < movedKeys.size(); i++) {
+                long[] move = moves.get(i);
+                if (!index.replace(movedKeys.get(i), move[0], move[1])) {
+                    // overwritten or deleted while compacting
+                    output.dead.addAndGet(recordLength(move[1], output));
+                }
+            }
+            int position = sealed.indexOf(group.get(0));
+            sealed.removeAll(group);
+            sealed.add(position, output);
+        } finally {
+            writeLock.unlock();
+        }
+
+        for (Segment segment : group) {
+            segments.remove(segment.serial);
+            segment.channel.close();
+            if (!segment.path.equals(target)) {
+                Files.deleteIfExists(segment.path);
+            }
+        }
+        compactions.increment();
+    }
+
+    // guarded by writeLock
+    private long append(byte type, String shortURL, String longURL) throws IOException {
+        byte[] key = shortURL.getBytes(StandardCharsets.UTF_8);
+        byte[] value = longURL.getBytes(StandardCharsets.UTF_8);
+        if (key.length > 0xffff) {
+            throw new IOException("Short URL too long: " + key.length + " bytes");
+        }
+        int recordLength = HEADER_BYTES + key.length + value.length;
+        if (recordLength > segmentBytes) {
+            throw new IOException("Record of " + recordLength + " bytes does not fit in a segment");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(0).put(type).putShort((short) key.length).putInt(value.length).put(key).put(value);
+        record.putInt(0, crc(record, 0, recordLength));
+
+        int offset = active.size;
+        active.buffer.put(offset, record.array());
+        active.size += recordLength;
+        return location(active.serial, offset);
+    }
+
+    // guarded by writeLock
+    private void roll() throws IOException {
+        seal(active);
+        sealed.add(active);
+        active = createSegment(nextId, nextId);
+        nextId++;
+
+        long bytes = 0;
+        long dead = 0;
+        for (Segment segment : sealed) {
+            bytes += segment.size;
+            dead += segment.dead.get();
+        }
+        if (dead > bytes * COMPACTION_THRESHOLD) {
+            scheduleCompaction();
+        }
+    }
+
+    private void seal(Segment segment) throws IOException {
+        segment.buffer.force(0, segment.size);
+        // the mapping stays valid below the new end of file
+        segment.channel.truncate(segment.size);
+        segment.channel.force(true);
+    }
+
+    private Segment createSegment(int first, int last) throws IOException {
+        Path path = dir.resolve(fileName(first, last));
+        Segment segment = new Segment(serials.incrementAndGet(), first, last, path);
+        segment.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        syncDirectory();
+        segments.put(segment.serial, segment);
+        return segment;
+    }
+
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Thread compactionThread = new Thread(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Log compaction failed: " + e.getMessage());
+            } finally {
+                compactionScheduled.set(false);
+            }
+        }, "log-compaction");
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
+
+    private void markDead(long location) {
+        Segment segment = segments.get(serialOf(location));
+        if (segment != null) {
+            segment.dead.addAndGet(recordLength(location, segment));
+        }
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    private static int recordLength(long location, Segment segment) {
+        int offset = offsetOf(location);
+        return HEADER_BYTES + (segment.buffer.getShort(offset + 5) & 0xffff) + segment.buffer.getInt(offset + 7);
+    }
+
+    private static int recordBytes(String shortURL, String longURL) {
+        // upper bound of the UTF-8 encoding
+        return HEADER_BYTES + 3 * (shortURL.length() + longURL.length());
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int recordLength) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset + 4, recordLength - 4));
+        return (int) crc.getValue();
+    }
+
+    private static String fileName(int first, int last) {
+        return String.format("%08d-%08d.seg", first, last);
+    }
+
+    private static long location(int serial, int offset) {
+        return ((long) serial << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int serialOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private static final class Segment {
+        final int serial;
+        final int first;
+        final int last;
+        final Path path;
+        final AtomicLong dead = new AtomicLong();
+        FileChannel channel;
+        MappedByteBuffer buffer;
+        // bytes of records; only the active segment grows, under writeLock
+        volatile int size;
+
+        Segment(int serial, int first, int last, Path path) {
+            this.serial = serial;
+            this.first = first;
+            this.last = last;
+            this.path = path;
+        }
+
+        String value(int offset) {
+            int keyLength = buffer.getShort(offset + 5) & 0xffff;
+            byte[] value = new byte[buffer.getInt(offset + 7)];
+            buffer.get(offset + HEADER_BYTES + keyLength, value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+}
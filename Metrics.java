@@ -0,0 +1,149 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * In-process metrics of one server: latency histograms, counters, and gauges read from the
+ * components that already keep statistics. Request threads only touch their histogram or
+ * counter; everything is read and formatted when /metrics is asked for, on the admin port, so
+ * scraping costs the request path nothing.
+ *
+ * The text format is Prometheus': histograms are summaries in microseconds with quantiles,
+ * _count, _sum and _max, and every name starts with the server's prefix.
+ *
+ *   shortener_request_us{endpoint="GET",quantile="0.99"} 412
+ *   shortener_cache_hits 1834
+ */
+public class Metrics {
+
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String prefix;
+    // name, with labels, to metric; sorted so that a family's series are listed together
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * The histogram name{labels}, e.g. histogram("request_us", "endpoint=\"GET\"").
+     * Callers keep the result in a field rather than looking it up per request.
+     */
+    public Histogram histogram(String name, String labels) {
+        return histograms.computeIfAbsent(series(name, labels), key -> new Histogram());
+    }
+
+    public LongAdder counter(String name, String labels) {
+        return counters.computeIfAbsent(series(name, labels), key -> new LongAdder());
+    }
+
+    public void gauge(String name, DoubleSupplier value) {
+        gauges.put(series(name, null), value);
+    }
+
+    /**
+     * Gauges for the queue and the busy threads of an executor; nothing for virtual threads.
+     */
+    public void executor(String name, ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            gauge(name + "_queued", () -> pool.getQueue().size());
+            gauge(name + "_active", pool::getActiveCount);
+        }
+    }
+
+    private String series(String name, String labels) {
+        return prefix + "_" + name + (labels == null || labels.isEmpty() ? "" : "{" + labels + "}");
+    }
+
+    public String render() {
+        StringBuilder text = new StringBuilder(8192);
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String series = entry.getKey();
+            int brace = series.indexOf('{');
+            String name = brace < 0 ? series : series.substring(0, brace);
+            String labels = brace < 0 ? "" : series.substring(brace + 1, series.length() - 1);
+            Histogram.Snapshot snapshot = entry.getValue().snapshot();
+            for (double quantile : QUANTILES) {
+                text.append(name).append('{').append(labels).append(labels.isEmpty() ? "" : ",")
+                        .append("quantile=\"").append(quantile).append("\"} ")
+                        .append(snapshot.quantile(quantile)).append('\n');
+            }
+            String suffix = brace < 0 ? "" : series.substring(brace);
+            text.append(name).append("_count").append(suffix).append(' ').append(snapshot.count).append('\n');
+            text.append(name).append("_sum").append(suffix).append(' ').append(snapshot.sum).append('\n');
+            text.append(name).append("_max").append(suffix).append(' ').append(snapshot.max).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, DoubleSupplier> entry : gauges.entrySet()) {
+            double value;
+            try {
+                value = entry.getValue().getAsDouble();
+            } catch (RuntimeException e) {
+                continue;
+            }
+            text.append(entry.getKey()).append(' ');
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                text.append((long) value);
+            } else {
+                text.append(value);
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Serves GET /metrics on port from a daemon thread, one connection at a time.
+     */
+    public void serve(int port) {
+        Thread admin = new Thread(() -> {
+            try (ServerSocket serverSocket = new ServerSocket(port)) {
+                System.out.println("Metrics on port " + port + " at /metrics");
+                while (true) {
+                    try (Socket socket = serverSocket.accept()) {
+                        socket.setSoTimeout(2000);
+                        respond(socket);
+                    } catch (IOException e) {
+                        // the scraper went away; wait for the next one
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Metrics server stopped: " + e.getMessage());
+            }
+        }, "metrics");
+        admin.setDaemon(true);
+        admin.start();
+    }
+
+    private void respond(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String requestLine = HttpIO.readLine(in);
+        HttpIO.readHeaders(in);
+        OutputStream out = socket.getOutputStream();
+        boolean found = requestLine != null && requestLine.startsWith("GET /metrics");
+        byte[] body = (found ? render() : "Not found\n").getBytes(StandardCharsets.UTF_8);
+        String head = (found ? "HTTP/1.1 200 OK" : "HTTP/1.1 404 Not Found") + HttpIO.CRLF
+                + "Content-Type: text/plain; version=0.0.4" + HttpIO.CRLF
+                + "Content-Length: " + body.length + HttpIO.CRLF
+                + "Connection: close" + HttpIO.CRLF + HttpIO.CRLF;
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+    }
+}
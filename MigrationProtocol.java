@@ -0,0 +1,274 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary protocol on the migration port of each URL Shortener node.
+ *
+ * A request is MAGIC, an operation byte and the HashRing ranges whose short codes it covers
+ * (none means all of them). Rows travel in chunks: an int row
+ * count followed by that many length-prefixed shortURL/longURL pairs. A zero count ends the
+ * stream and is followed by the row count and checksum of the whole stream; a negative
+ * count carries an error message instead. Chunks are written as they are read from
+ * storage, so TCP flow control keeps a slow receiver from being flooded.
+ *
+ *   EXPORT ranges                      -> chunks, end
+ *   IMPORT ranges, chunks, end         -> status, rows, checksum (of the rows received)
+ *   DIGEST ranges                      -> rows, checksum
+ *   DELETE ranges, rows, checksum      -> status, rows deleted (only if the digest matches)
+ *   PURGE ranges                       -> status, rows deleted
+ *   REPLACE ranges, count, rows        -> status, rows replaced
+ *
+ * IMPORT keeps short codes the target already has: while a move is under way the proxy sends
+ * writes to the new owner, so what is there is newer than the copy. Before the proxy switches,
+ * PURGE clears the target's leftovers from any earlier ownership of the ranges.
+ *
+ * REPLACE carries the rows the source changed after an earlier copy of the move, each as
+ * shortURL, the rowHash of the pair that copy sent, and the new longURL. The target overwrites
+ * only the codes still holding what the copy sent, so writes made on it since are kept.
+ */
+public class MigrationProtocol {
+
+    static final int PORT = 65535;
+    static final int MAGIC = 0x4d494733; // "MIG3"
+    static final int CHUNK_ROWS = Integer.getInteger("migration.chunkRows", 1000);
+
+    static final byte EXPORT = 1;
+    static final byte IMPORT = 2;
+    static final byte DIGEST = 3;
+    static final byte DELETE = 4;
+    static final byte PURGE = 5;
+    static final byte REPLACE = 6;
+    // rows one REPLACE may carry; they are held in memory on both sides
+    static final int MAX_REPLACE_ROWS = 1 << 20;
+
+    static final byte OK = 0;
+    static final byte MISMATCH = 1;
+    static final byte ERROR = 2;
+
+    /**
+     * Row count and order-independent checksum of a set of rows.
+     */
+    static class Digest {
+        long rows;
+        long checksum;
+
+        Digest() {
+        }
+
+        Digest(long rows, long checksum) {
+            this.rows = rows;
+            this.checksum = checksum;
+        }
+
+        void add(String shortURL, String longURL) {
+            rows++;
+            checksum += rowHash(shortURL, longURL);
+        }
+
+        boolean matches(Digest other) {
+            return rows == other.rows && checksum == other.checksum;
+        }
+
+        @Override
+        public String toString() {
+            return rows + " rows, checksum " + Long.toHexString(checksum);
+        }
+    }
+
+    /**
+     * Writes rows as chunks of CHUNK_ROWS, keeping a digest of everything written.
+     */
+    static class ChunkWriter implements Storage.Visitor {
+        private final DataOutputStream out;
+        private final Map<String, String> chunk = new LinkedHashMap<>();
+        final Digest digest = new Digest();
+
+        ChunkWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void visit(String shortURL, String longURL) throws IOException {
+            chunk.put(shortURL, longURL);
+            if (chunk.size() >= CHUNK_ROWS) {
+                flushChunk();
+            }
+        }
+
+        void writeAll(Map<String, String> rows) throws IOException {
+            for (Map.Entry<String, String> row : rows.entrySet()) {
+                visit(row.getKey(), row.getValue());
+            }
+        }
+
+        void finish() throws IOException {
+            flushChunk();
+            out.writeInt(0);
+            out.writeLong(digest.rows);
+            out.writeLong(digest.checksum);
+            out.flush();
+        }
+
+        void fail(String message) throws IOException {
+            out.writeInt(-1);
+            writeString(out, message);
+            out.flush();
+        }
+
+        private void flushChunk() throws IOException {
+            if (chunk.isEmpty()) {
+                return;
+            }
+            out.writeInt(chunk.size());
+            for (Map.Entry<String, String> row : chunk.entrySet()) {
+                writeString(out, row.getKey());
+                writeString(out, row.getValue());
+                digest.add(row.getKey(), row.getValue());
+            }
+            chunk.clear();
+            // the receiver starts on this chunk while the next one is read
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads a chunked stream and checks it against the sender's trailing digest.
+     */
+    static class ChunkReader {
+        private final DataInputStream in;
+        final Digest digest = new Digest();
+        Digest sent;
+
+        ChunkReader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * The next chunk, or null once the stream has ended.
+         */
+        Map<String, String> next() throws IOException {
+            if (sent != null) {
+                return null;
+            }
+            int rows = in.readInt();
+            if (rows < 0) {
+                throw new IOException("Sender failed: " + readString(in));
+            }
+            if (rows == 0) {
+                sent = new Digest(in.readLong(), in.readLong());
+                if (!sent.matches(digest)) {
+                    throw new IOException("Stream damaged: sent " + sent + ", received " + digest);
+                }
+                return null;
+            }
+            Map<String, String> chunk = new LinkedHashMap<>(rows * 2);
+            for (int i = 0; i < rows; i++) {
+                String shortURL = readString(in);
+                String longURL = readString(in);
+                chunk.put(shortURL, longURL);
+                digest.add(shortURL, longURL);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Connects to "host" on PORT or to "host:port".
+     */
+    static Socket connect(String address) throws IOException {
+        Socket socket = new Socket(Node.host(address), Node.port(address, PORT));
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    static DataInputStream input(Socket socket) throws IOException {
+        return new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+    }
+
+    static DataOutputStream output(Socket socket) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+    }
+
+    static void writeRequest(DataOutputStream out, byte operation, List<HashRing.Range> ranges)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(operation);
+        out.writeInt(ranges.size());
+        for (HashRing.Range range : ranges) {
+            out.writeLong(range.start);
+            out.writeLong(range.end);
+        }
+    }
+
+    static List<HashRing.Range> readRanges(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > 1 << 20) {
+            throw new IOException("Bad range count " + count);
+        }
+        List<HashRing.Range> ranges = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ranges.add(new HashRing.Range(in.readLong(), in.readLong()));
+        }
+        return ranges;
+    }
+
+    /**
+     * Passes on only the rows whose short code hashes into one of the ranges.
+     */
+    static Storage.Visitor within(List<HashRing.Range> ranges, Storage.Visitor visitor) {
+        if (ranges.isEmpty()) {
+            return visitor;
+        }
+        return (shortURL, longURL) -> {
+            long hash = HashRing.hash(shortURL);
+            for (HashRing.Range range : ranges) {
+                if (range.contains(hash)) {
+                    visitor.visit(shortURL, longURL);
+                    return;
+                }
+            }
+        };
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1 << 24) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // FNV-1a over both strings, finished with a 64-bit mixer; summed, so row order does not matter
+    static long rowHash(String shortURL, String longURL) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < shortURL.length(); i++) {
+            hash = (hash ^ shortURL.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ '\t') * 0x100000001b3L;
+        for (int i = 0; i < longURL.length(); i++) {
+            hash = (hash ^ longURL.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the MigrationProtocol for one URL Shortener node, one thread per connection so that
+ * several moves can run at once. Selecting rows by hash range means a full scan of storage.
+ */
+public class MigrationServer implements Runnable {
+
+    private final int port;
+    private final Storage storage;
+    private final MissFilter missFilter;
+    private final TinyLFUCache<String, String> cache;
+
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder rowsExported = new LongAdder();
+    private final LongAdder rowsImported = new LongAdder();
+    private final LongAdder rowsDeleted = new LongAdder();
+
+    MigrationServer(int port, Storage storage, MissFilter missFilter, TinyLFUCache<String, String> cache) {
+        this.port = port;
+        this.storage = storage;
+        this.missFilter = missFilter;
+        this.cache = cache;
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> handle(socket), "migration-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            System.err.println("Migration server stopped: " + e.getMessage());
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = MigrationProtocol.input(socket);
+            DataOutputStream out = MigrationProtocol.output(socket);
+            if (in.readInt() != MigrationProtocol.MAGIC) {
+                System.err.println("Migration: unknown protocol from " + socket.getRemoteSocketAddress());
+                return;
+            }
+            byte operation = in.readByte();
+            List<HashRing.Range> ranges = MigrationProtocol.readRanges(in);
+            long start = System.currentTimeMillis();
+            inProgress.incrementAndGet();
+            try {
+                perform(operation, ranges, in, out);
+            } finally {
+                inProgress.decrementAndGet();
+                operations.increment();
+            }
+            System.out.println("Migration " + operation + " of " + ranges.size() + " ranges done in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            System.err.println("Migration error: " + e.getMessage());
+        }
+    }
+
+    private void perform(byte operation, List<HashRing.Range> ranges, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        switch (operation) {
+            case MigrationProtocol.EXPORT:
+                export(ranges, out);
+                break;
+            case MigrationProtocol.IMPORT:
+                importRows(ranges, in, out);
+                break;
+            case MigrationProtocol.DIGEST:
+                MigrationProtocol.Digest digest = digest(ranges, null);
+                out.writeLong(digest.rows);
+                out.writeLong(digest.checksum);
+                out.flush();
+                break;
+            case MigrationProtocol.DELETE:
+                delete(ranges, new MigrationProtocol.Digest(in.readLong(), in.readLong()), out);
+                break;
+            case MigrationProtocol.PURGE:
+                delete(ranges, null, out);
+                break;
+            case MigrationProtocol.REPLACE:
+                replace(ranges, in, out);
+                break;
+            default:
+                throw new IOException("unknown operation " + operation);
+        }
+    }
+
+    private void export(List<HashRing.Range> ranges, DataOutputStream out) throws IOException {
+        MigrationProtocol.ChunkWriter writer = new MigrationProtocol.ChunkWriter(out);
+        try {
+            storage.scan("", MigrationProtocol.within(ranges, writer));
+        } catch (IOException e) {
+            writer.fail(e.getMessage());
+            throw e;
+        }
+        writer.finish();
+        rowsExported.add(writer.digest.rows);
+    }
+
+    private void importRows(List<HashRing.Range> ranges, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        MigrationProtocol.ChunkReader reader = new MigrationProtocol.ChunkReader(in);
+        byte status = MigrationProtocol.OK;
+        try {
+            Map<String, String> chunk;
+            while ((chunk = reader.next()) != null) {
+                // one transaction per chunk; the next chunk waits in the socket meanwhile
+                Map<String, String> stored = storage.putAllAbsent(chunk);
+                for (String shortURL : stored.keySet()) {
+                    missFilter.added(shortURL);
+                    cache.remove(shortURL);
+                }
+                rowsImported.add(stored.size());
+            }
+        } catch (IOException e) {
+            System.err.println("Migration import of " + ranges.size() + " ranges failed: " + e.getMessage());
+            status = MigrationProtocol.ERROR;
+        }
+        out.writeByte(status);
+        out.writeLong(reader.digest.rows);
+        out.writeLong(reader.digest.checksum);
+        out.flush();
+    }
+
+    /**
+     * Overwrites the rows whose current value hashes to what an earlier copy of the move sent.
+     */
+    private void replace(List<HashRing.Range> ranges, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MigrationProtocol.MAX_REPLACE_ROWS) {
+            throw new IOException("Bad row count " + count);
+        }
+        Map<String, String> pairs = new LinkedHashMap<>(count * 2);
+        Map<String, Long> copied = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String shortURL = MigrationProtocol.readString(in);
+            copied.put(shortURL, in.readLong());
+            pairs.put(shortURL, MigrationProtocol.readString(in));
+        }
+        byte status = MigrationProtocol.OK;
+        int replaced = 0;
+        try {
+            Map<String, String> expected = new HashMap<>();
+            for (Map.Entry<String, String> current : storage.getAll(pairs.keySet()).entrySet()) {
+                String shortURL = current.getKey();
+                if (MigrationProtocol.rowHash(shortURL, current.getValue()) == copied.get(shortURL)) {
+                    expected.put(shortURL, current.getValue());
+                }
+            }
+            // compared again as the rows are written, in case a write landed since the read
+            for (String shortURL : storage.replaceAll(pairs, expected).keySet()) {
+                cache.remove(shortURL);
+                replaced++;
+            }
+            rowsImported.add(replaced);
+        } catch (IOException e) {
+            System.err.println("Migration replace in " + ranges.size() + " ranges failed: " + e.getMessage());
+            status = MigrationProtocol.ERROR;
+        }
+        out.writeByte(status);
+        out.writeLong(replaced);
+        out.flush();
+    }
+
+    /**
+     * Deletes the rows in ranges if they match expected, or unconditionally if it is null.
+     */
+    private void delete(List<HashRing.Range> ranges, MigrationProtocol.Digest expected, DataOutputStream out)
+            throws IOException {
+        List<String> keys = new ArrayList<>();
+        MigrationProtocol.Digest actual = digest(ranges, keys);
+        if (expected != null && !actual.matches(expected)) {
+            // written to since it was copied: keep everything and let the caller copy again
+            out.writeByte(MigrationProtocol.MISMATCH);
+            out.writeLong(0);
+            out.flush();
+            return;
+        }
+        int deleted = storage.deleteAll(keys);
+        missFilter.removed();
+        rowsDeleted.add(deleted);
+        out.writeByte(MigrationProtocol.OK);
+        out.writeLong(deleted);
+        out.flush();
+    }
+
+    public int inProgress() {
+        return inProgress.get();
+    }
+
+    public long operationCount() {
+        return operations.sum();
+    }
+
+    public long rowsExported() {
+        return rowsExported.sum();
+    }
+
+    public long rowsImported() {
+        return rowsImported.sum();
+    }
+
+    public long rowsDeleted() {
+        return rowsDeleted.sum();
+    }
+
+    private MigrationProtocol.Digest digest(List<HashRing.Range> ranges, List<String> keys) throws IOException {
+        MigrationProtocol.Digest digest = new MigrationProtocol.Digest();
+        storage.scan("", MigrationProtocol.within(ranges, (shortURL, longURL) -> {
+            digest.add(shortURL, longURL);
+            if (keys != null) {
+                keys.add(shortURL);
+            }
+        }));
+        return digest;
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers lookups of short codes that do not exist without touching storage.
+ *
+ * A Bloom filter holds every stored short code: a code it has never seen is definitely
+ * missing. Codes that slip through (false positives, rows deleted by a migration) and
+ * then miss in the database are remembered in a bounded negative cache.
+ * The filter is rebuilt from storage at startup, after deletes, and when it
+ * outgrows the size it was built for.
+ */
+public class MissFilter {
+
+    // never size the filter for fewer codes than this
+    static final long MIN_EXPECTED_CODES = 1 << 20;
+
+    private final Storage storage;
+    private final double falsePositiveRate;
+    private final TinyLFUCache<String, Boolean> negative;
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+    private volatile BloomFilter known;
+    // also receives new codes while a rebuild is scanning the table
+    private volatile BloomFilter rebuilding;
+
+    MissFilter(Storage storage, double falsePositiveRate, int negativeEntries) {
+        this.storage = storage;
+        this.falsePositiveRate = falsePositiveRate;
+        this.negative = TinyLFUCache.ofEntries(negativeEntries);
+    }
+
+    /**
+     * True if the short code is certainly not in the database.
+     */
+    public boolean isKnownMissing(String shortURL) {
+        BloomFilter filter = known;
+        if (filter == null) {
+            // not loaded yet, ask the database
+            return false;
+        }
+        return !filter.mightContain(shortURL) || negative.getValue(shortURL) != null;
+    }
+
+    /**
+     * Taken before a database lookup and handed back to recordMissing.
+     */
+    public long stamp() {
+        return writes.get();
+    }
+
+    /**
+     * Remembers a database miss, unless a write happened since the lookup started
+     * and might have created the code in the meantime.
+     */
+    public void recordMissing(String shortURL, long stamp) {
+        negative.putValue(shortURL, Boolean.TRUE);
+        if (writes.get() != stamp) {
+            negative.remove(shortURL);
+        }
+    }
+
+    /**
+     * Must be called once a new code is committed to the database.
+     */
+    public void added(String shortURL) {
+        writes.incrementAndGet();
+        BloomFilter next = rebuilding;
+        BloomFilter filter = known;
+        if (filter != null) {
+            filter.add(shortURL);
+            if (filter.approximateCount() > filter.expectedInsertions()) {
+                scheduleRebuild();
+            }
+        }
+        if (next != null) {
+            next.add(shortURL);
+        }
+        negative.remove(shortURL);
+    }
+
+    /**
+     * Must be called after codes are deleted; their bits stay set until the next rebuild.
+     */
+    public void removed() {
+        scheduleRebuild();
+    }
+
+    /**
+     * Scans the stored codes into a new filter sized for twice the current row count and swaps it in.
+     */
+    public void rebuild() throws IOException {
+        long start = System.currentTimeMillis();
+        long rows = storage.count();
+
+        BloomFilter next = new BloomFilter(Math.max(rows * 2, MIN_EXPECTED_CODES), falsePositiveRate);
+        rebuilding = next;
+        try {
+            storage.scan("", (shortURL, longURL) -> next.add(shortURL));
+            known = next;
+        } finally {
+            rebuilding = null;
+        }
+        System.out.println("Miss filter built: " + rows + " short URLs, " + next.sizeInBytes() / 1024 + " KiB in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void scheduleRebuild() {
+        if (!rebuildScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Thread rebuildThread = new Thread(() -> {
+            try {
+                rebuild();
+            } catch (IOException e) {
+                System.err.println("Miss filter rebuild failed: " + e.getMessage());
+            } finally {
+                rebuildScheduled.set(false);
+            }
+        }, "miss-filter-rebuild");
+        rebuildThread.setDaemon(true);
+        rebuildThread.start();
+    }
+}
@@ -0,0 +1,462 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Non-blocking front end for the URL Shortener (-Dshortener.mode=nio).
+ * A small number of event-loop threads own all client sockets and answer cache hits
+ * directly; only requests that need storage are handed to the worker pool.
+ * Requests on one connection are answered strictly in order, so pipelining works
+ * the same way as in the blocking Handler.
+ */
+public class NioServer {
+
+    static final int BUFFER_SIZE = 8192;
+    // stop reading from a client that does not drain its responses
+    static final int MAX_PENDING_OUTPUT = 4 * BUFFER_SIZE;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final Storage storage;
+    private final TinyLFUCache<String, String> cache;
+
+    NioServer(int port, int eventLoops, ExecutorService workers, Storage storage,
+              TinyLFUCache<String, String> cache) throws IOException {
+        this.port = port;
+        this.storage = storage;
+        this.cache = cache;
+        this.workers = workers;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Accepts connections forever, spreading them round-robin over the event loops.
+     */
+    public void serve() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-loop-" + i).start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Server started (nio, " + loops.length + " event loops).\n"
+                    + "Listening for connections on port : " + port + " ...");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new ClientConnection(this, channel, key));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Runs the task on this loop's thread; used by workers to hand results back.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(1000);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        ClientConnection connection = (ClientConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        lastSweep = now;
+                        for (SelectionKey key : selector.keys()) {
+                            ClientConnection connection = (ClientConnection) key.attachment();
+                            if (connection != null && connection.isIdleSince(now - URLShortener.KEEP_ALIVE_TIMEOUT)) {
+                                connection.close();
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private class ClientConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+
+        // both buffers stay in write mode between events and live as long as the connection
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        private final RequestLine requestLine = new RequestLine();
+
+        private int requestCount = 0;
+        private long bodyToSkip = 0;
+        private boolean pending = false;
+        private boolean inputClosed = false;
+        private boolean closeAfterWrite = false;
+        private long lastActive = System.currentTimeMillis();
+
+        ClientConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            int bytesRead = channel.read(in);
+            if (bytesRead == -1) {
+                inputClosed = true;
+            }
+            lastActive = System.currentTimeMillis();
+            process();
+            flush();
+        }
+
+        /**
+         * Answers every complete request in the input buffer, stopping at the first one
+         * that has to wait for a worker.
+         */
+        private void process() throws IOException {
+            while (!pending && !closeAfterWrite) {
+                if (bodyToSkip > 0) {
+                    int skipped = (int) Math.min(bodyToSkip, in.position());
+                    consume(skipped);
+                    bodyToSkip -= skipped;
+                    if (bodyToSkip > 0) {
+                        return;
+                    }
+                }
+
+                skipBlankLines();
+                int headEnd = findHeadEnd();
+                if (headEnd < 0) {
+                    if (!in.hasRemaining()) {
+                        // request head does not fit the buffer
+                        closeAfterWrite = true;
+                    }
+                    return;
+                }
+
+                // the request line is parsed in place; headers follow it in the same buffer
+                byte[] data = in.array();
+                int lineEnd = 0;
+                while (data[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int headersStart = lineEnd + 1;
+                if (lineEnd > 0 && data[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                long start = System.nanoTime();
+                boolean valid = requestLine.parse(data, 0, lineEnd);
+                Map<String, String> headers = HttpIO.readHeaders(
+                        new ByteArrayInputStream(data, headersStart, headEnd - headersStart));
+                URLShortener.parseLatency.recordSince(start);
+                if (!valid) {
+                    URLShortener.accessLog.log(AccessLog.WARN, "Bad request line: " + requestLine);
+                    closeAfterWrite = true;
+                    return;
+                }
+                if (requestLine.isBatch()) {
+                    // a batch is answered once its whole body is in the input buffer
+                    long bodyLength = HttpIO.contentLength(headers);
+                    if (!Batch.accepts(bodyLength)) {
+                        append(Batch.tooLarge());
+                        closeAfterWrite = true;
+                        return;
+                    }
+                    int total = headEnd + (int) bodyLength;
+                    if (in.position() < total) {
+                        if (in.capacity() < total) {
+                            ByteBuffer larger = ByteBuffer.allocate(total);
+                            in.flip();
+                            larger.put(in);
+                            in = larger;
+                        }
+                        return;
+                    }
+                    List<String> lines = Batch.lines(
+                            new String(data, headEnd, (int) bodyLength, StandardCharsets.UTF_8));
+                    boolean isPut = requestLine.isPut();
+                    String httpVersion = requestLine.httpVersion();
+                    consume(total);
+                    if (in.capacity() > BUFFER_SIZE && in.position() <= BUFFER_SIZE) {
+                        // give back the room the body needed
+                        ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+                        in.flip();
+                        smaller.put(in);
+                        in = smaller;
+                    }
+                    if (lines == null) {
+                        append(Batch.tooLarge());
+                        closeAfterWrite = true;
+                        return;
+                    }
+                    handleBatch(isPut, lines, httpVersion, headers, start);
+                    continue;
+                }
+                boolean isPut = requestLine.isPut();
+                String shortResource = requestLine.shortResource();
+                String longResource = requestLine.longResource();
+                String httpVersion = requestLine.httpVersion();
+                consume(headEnd);
+                handle(isPut, shortResource, longResource, httpVersion, headers, start);
+            }
+        }
+
+        private void handle(boolean isPut, String shortResource, String longResource, String httpVersion,
+                            Map<String, String> headers, long start) throws IOException {
+            AccessLog accessLog = URLShortener.accessLog;
+            long bodyLength = HttpIO.contentLength(headers);
+            requestCount++;
+
+            boolean keepAlive = bodyLength >= 0 && requestCount < URLShortener.MAX_REQUESTS_PER_CONNECTION
+                    && HttpIO.isKeepAlive(httpVersion, headers);
+            bodyToSkip = Math.max(bodyLength, 0);
+            closeAfterWrite = !keepAlive;
+
+            if (!isPut) {
+                long cacheStart = System.nanoTime();
+                String cached = cache.getValue(shortResource);
+                URLShortener.cacheLatency.recordSince(cacheStart);
+                if (cached != null) {
+                    append(URLShortener.redirectResponse(cached, keepAlive));
+                    URLShortener.served("GET", shortResource, 307, start, "cache");
+                    return;
+                }
+                if (URLShortener.missFilter.isKnownMissing(shortResource)) {
+                    append(URLShortener.notFoundResponse(keepAlive));
+                    URLShortener.served("GET", shortResource, 404, start, "filter");
+                    return;
+                }
+            }
+
+            pending = true;
+            workers.execute(() -> {
+                if (isPut && shortResource == null) {
+                    // a create: the code is picked here, off the loop, and acknowledged once durable
+                    URLShortener.createAsync(longResource, headers, storage, cache).whenComplete((code, e) -> {
+                        if (e != null) {
+                            accessLog.log(AccessLog.WARN, "Server error: " + e.getMessage());
+                        } else {
+                            URLShortener.served("PUT", code, 201, start, "create");
+                        }
+                        byte[] result = e == null ? URLShortener.createdResponse(code, keepAlive) : null;
+                        loop.execute(() -> complete(result));
+                    });
+                    return;
+                }
+                if (isPut) {
+                    // acknowledged from the committer thread once the batch is durable
+                    URLShortener.recordAsync(shortResource, longResource, cache).whenComplete((ignored, e) -> {
+                        if (e != null) {
+                            accessLog.log(AccessLog.WARN, "Server error: " + e.getMessage());
+                        } else {
+                            URLShortener.served("PUT", shortResource, 200, start, "commit");
+                        }
+                        byte[] result = e == null ? URLShortener.recordedResponse(keepAlive) : null;
+                        loop.execute(() -> complete(result));
+                    });
+                    return;
+                }
+                byte[] response;
+                try {
+                    String found = URLShortener.lookup(shortResource, storage, cache);
+                    response = found != null
+                            ? URLShortener.redirectResponse(found, keepAlive)
+                            : URLShortener.notFoundResponse(keepAlive);
+                    URLShortener.served("GET", shortResource, found != null ? 307 : 404, start, "store");
+                } catch (Exception e) {
+                    accessLog.log(AccessLog.WARN, "Server error: " + e.getMessage());
+                    response = null;
+                }
+                byte[] result = response;
+                loop.execute(() -> complete(result));
+            });
+        }
+
+        private void handleBatch(boolean isPut, List<String> lines, String httpVersion, Map<String, String> headers,
+                                 long start) {
+            requestCount++;
+            boolean keepAlive = requestCount < URLShortener.MAX_REQUESTS_PER_CONNECTION
+                    && HttpIO.isKeepAlive(httpVersion, headers);
+            closeAfterWrite = !keepAlive;
+
+            pending = true;
+            workers.execute(() -> URLShortener.batchAsync(isPut, lines, storage, cache).whenComplete((results, e) -> {
+                if (e != null) {
+                    URLShortener.accessLog.log(AccessLog.WARN, "Server error: " + e.getMessage());
+                } else {
+                    URLShortener.served(isPut ? "BATCH-PUT" : "BATCH-GET", Integer.toString(lines.size()), 200,
+                            start, "batch");
+                }
+                byte[] result = e == null ? Batch.response(results, keepAlive) : null;
+                loop.execute(() -> complete(result));
+            }));
+        }
+
+        private void complete(byte[] response) {
+            pending = false;
+            try {
+                if (response == null) {
+                    close();
+                    return;
+                }
+                append(response);
+                process();
+                flush();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+
+            boolean hasOutput = out.position() > 0;
+            if (!hasOutput && !pending && (closeAfterWrite || inputClosed)) {
+                close();
+                return;
+            }
+
+            int interest = 0;
+            if (hasOutput) {
+                interest |= SelectionKey.OP_WRITE;
+            }
+            if (!inputClosed && in.hasRemaining() && out.position() < MAX_PENDING_OUTPUT) {
+                interest |= SelectionKey.OP_READ;
+            }
+            key.interestOps(interest);
+        }
+
+        private void append(byte[] response) {
+            if (out.remaining() < response.length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + response.length));
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            out.put(response);
+        }
+
+        /**
+         * Returns the length of the request head (including the blank line) at the
+         * start of the input buffer, or -1 if it has not fully arrived yet.
+         */
+        private int findHeadEnd() {
+            byte[] data = in.array();
+            int limit = in.position();
+            for (int i = 0; i < limit; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                if (i + 1 < limit && data[i + 1] == '\n') {
+                    return i + 2;
+                }
+                if (i + 2 < limit && data[i + 1] == '\r' && data[i + 2] == '\n') {
+                    return i + 3;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Drops stray CRLFs between pipelined requests.
+         */
+        private void skipBlankLines() {
+            byte[] data = in.array();
+            int blank = 0;
+            while (blank < in.position() && (data[blank] == '\r' || data[blank] == '\n')) {
+                blank++;
+            }
+            if (blank > 0) {
+                consume(blank);
+            }
+        }
+
+        private void consume(int length) {
+            in.flip();
+            in.position(length);
+            in.compact();
+        }
+
+        boolean isIdleSince(long deadline) {
+            return !pending && out.position() == 0 && lastActive < deadline;
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
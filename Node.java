@@ -0,0 +1,78 @@
+/**
+ * One URL Shortener node as listed in hosts.conf:
+ *
+ *   name [weight] [migration=port] [replica=name]
+ *
+ * The name is "host" or "host:port" and is what the ring hashes. Weight 0 lists a standby
+ * that takes no short codes of its own, typically the replica of another node.
+ */
+public final class Node {
+
+    static final int DEFAULT_PORT = 8080;
+
+    final String name;
+    final String host;
+    final int port;
+    final int weight;
+    final int migrationPort;
+    // name of the node that receives this one's writes, or null
+    final String replica;
+
+    Node(String name, int weight, int migrationPort, String replica) {
+        this.name = name;
+        this.host = host(name);
+        this.port = port(name, DEFAULT_PORT);
+        this.weight = weight;
+        this.migrationPort = migrationPort;
+        this.replica = replica;
+    }
+
+    /**
+     * A node reached on the default ports, for names not listed with options.
+     */
+    static Node of(String name) {
+        return new Node(name, 1, MigrationProtocol.PORT, null);
+    }
+
+    static Node parse(String line) {
+        String[] fields = line.trim().split("\\s+");
+        int weight = 1;
+        int migrationPort = MigrationProtocol.PORT;
+        String replica = null;
+        for (int i = 1; i < fields.length; i++) {
+            String field = fields[i];
+            if (field.startsWith("migration=")) {
+                migrationPort = Integer.parseInt(field.substring("migration=".length()));
+            } else if (field.startsWith("replica=")) {
+                replica = field.substring("replica=".length());
+            } else {
+                weight = Integer.parseInt(field);
+            }
+        }
+        if (weight < 0) {
+            throw new IllegalArgumentException("Bad weight for " + fields[0] + ": " + weight);
+        }
+        return new Node(fields[0], weight, migrationPort, replica);
+    }
+
+    String migrationAddress() {
+        return host + ":" + migrationPort;
+    }
+
+    static String host(String address) {
+        int colon = address.lastIndexOf(':');
+        return colon < 0 ? address : address.substring(0, colon);
+    }
+
+    static int port(String address, int defaultPort) {
+        int colon = address.lastIndexOf(':');
+        return colon < 0 ? defaultPort : Integer.parseInt(address.substring(colon + 1));
+    }
+
+    @Override
+    public String toString() {
+        return name + (weight == 1 ? "" : " " + weight)
+                + (migrationPort == MigrationProtocol.PORT ? "" : " migration=" + migrationPort)
+                + (replica == null ? "" : " replica=" + replica);
+    }
+}
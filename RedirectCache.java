@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Redirect targets cached in the proxy, so hot short codes are answered without a backend hop.
+ *
+ * Entries are the Location of a 307 the backend returned for a GET. A PUT forwarded for a code
+ * removes it, and a new host mapping drops everything. Another proxy may still change a code
+ * behind this one's back, so entries also expire after a TTL.
+ */
+public class RedirectCache {
+
+    private final TinyLFUCache<String, Entry> cache;
+    private final long ttlMillis;
+    // bumped on every invalidation; a lookup that raced one is not cached
+    private final AtomicLong invalidations = new AtomicLong();
+    // entries from before the last clear() are ignored
+    private volatile long generation;
+
+    public RedirectCache(int capacity, long ttlMillis) {
+        this.cache = TinyLFUCache.ofEntries(capacity);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * The cached Location for shortCode, or null.
+     */
+    public String get(String shortCode) {
+        Entry entry = cache.getValue(shortCode);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation != generation || System.currentTimeMillis() > entry.expires) {
+            cache.remove(shortCode);
+            return null;
+        }
+        return entry.location;
+    }
+
+    /**
+     * Call before asking the backend; pass the result to put with the answer.
+     */
+    public long stamp() {
+        return invalidations.get();
+    }
+
+    /**
+     * Caches location for shortCode, unless an invalidation happened since stamp was taken. The
+     * entry goes in before the stamp is checked, so an invalidate racing this put removes it.
+     */
+    public void put(String shortCode, String location, long stamp) {
+        long currentGeneration = generation;
+        cache.putValue(shortCode, new Entry(location, currentGeneration, System.currentTimeMillis() + ttlMillis));
+        if (invalidations.get() != stamp) {
+            cache.remove(shortCode);
+        }
+    }
+
+    public void invalidate(String shortCode) {
+        invalidations.incrementAndGet();
+        cache.remove(shortCode);
+    }
+
+    public synchronized void clear() {
+        invalidations.incrementAndGet();
+        generation++;
+    }
+
+    public long hitCount() {
+        return cache.hitCount();
+    }
+
+    public long missCount() {
+        return cache.missCount();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    @Override
+    public String toString() {
+        return "redirects " + cache;
+    }
+
+    private static final class Entry {
+        final String location;
+        final long generation;
+        final long expires;
+
+        Entry(String location, long generation, long expires) {
+            this.location = location;
+            this.generation = generation;
+            this.expires = expires;
+        }
+    }
+}
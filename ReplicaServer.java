@@ -0,0 +1,155 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replica side of the ReplicationProtocol: applies the records a primary ships, in order, to
+ * this node's storage, which keeps serving reads meanwhile.
+ *
+ * The epoch and seq of the last applied record are saved to the state file whenever the input
+ * runs dry. After a crash the file may be behind storage, never ahead, so at worst a few
+ * records are applied twice. A new connection replaces the current one, since it means the
+ * primary reconnected.
+ */
+public class ReplicaServer implements Runnable {
+
+    private final int port;
+    private final Storage storage;
+    private final MissFilter missFilter;
+    private final TinyLFUCache<String, String> cache;
+    private final Path stateFile;
+    private final Object applying = new Object();
+    private volatile Socket current;
+
+    private volatile long epoch;
+    private volatile long seq;
+    private volatile long applied;
+
+    ReplicaServer(int port, Storage storage, MissFilter missFilter, TinyLFUCache<String, String> cache,
+                  Path stateFile) throws IOException {
+        this.port = port;
+        this.storage = storage;
+        this.missFilter = missFilter;
+        this.cache = cache;
+        this.stateFile = stateFile;
+        if (Files.exists(stateFile)) {
+            String[] saved = Files.readString(stateFile).trim().split(" ");
+            epoch = Long.parseLong(saved[0]);
+            seq = Long.parseLong(saved[1]);
+        }
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Replica listening on port " + port + ", at epoch " + epoch + " seq " + seq);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Socket previous = current;
+                current = socket;
+                if (previous != null) {
+                    previous.close();
+                }
+                Thread connection = new Thread(() -> handle(socket), "replica-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            System.err.println("Replica server stopped: " + e.getMessage());
+        }
+    }
+
+    private void handle(Socket socket) {
+        // the replaced connection finishes its record before this one starts
+        synchronized (applying) {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = MigrationProtocol.input(socket);
+                DataOutputStream out = MigrationProtocol.output(socket);
+                if (in.readInt() != ReplicationProtocol.MAGIC) {
+                    System.err.println("Replica: unknown protocol from " + socket.getRemoteSocketAddress());
+                    return;
+                }
+                long primaryEpoch = in.readLong();
+                out.writeLong(epoch);
+                out.writeLong(seq);
+                out.flush();
+                System.out.println("Replicating from " + socket.getRemoteSocketAddress());
+
+                while (true) {
+                    ReplicationProtocol.Record record = ReplicationProtocol.Record.read(in);
+                    apply(record, primaryEpoch);
+                    if (in.available() == 0) {
+                        saveState();
+                        out.writeLong(seq);
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                if (socket == current) {
+                    System.err.println("Replica: primary connection lost: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void apply(ReplicationProtocol.Record record, long primaryEpoch) throws IOException {
+        switch (record.type) {
+            case ReplicationProtocol.PUT:
+                storage.putAll(record.pairs());
+                for (String shortURL : record.keys) {
+                    missFilter.added(shortURL);
+                    cache.remove(shortURL);
+                }
+                break;
+            case ReplicationProtocol.DELETE:
+                storage.deleteAll(Arrays.asList(record.keys));
+                for (String shortURL : record.keys) {
+                    cache.remove(shortURL);
+                }
+                missFilter.removed();
+                break;
+            case ReplicationProtocol.CLEAR:
+                // until the snapshot is complete, a restart must ask for a new one
+                epoch = 0;
+                seq = 0;
+                saveState();
+                List<String> keys = new ArrayList<>();
+                storage.scan("", (shortURL, longURL) -> keys.add(shortURL));
+                storage.deleteAll(keys);
+                for (String shortURL : keys) {
+                    cache.remove(shortURL);
+                }
+                missFilter.removed();
+                break;
+            default:
+                break;
+        }
+        // snapshot rows carry no position; the MARK after them does, even at seq 0
+        if (record.seq > 0 || record.type == ReplicationProtocol.MARK) {
+            epoch = primaryEpoch;
+            seq = record.seq;
+        }
+        applied++;
+    }
+
+    private void saveState() throws IOException {
+        Path temporary = Paths.get(stateFile + ".tmp");
+        Files.writeString(temporary, epoch + " " + seq + "\n");
+        Files.move(temporary, stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public String toString() {
+        return "replica[epoch=" + epoch + " seq=" + seq + " applied=" + applied + "]";
+    }
+}
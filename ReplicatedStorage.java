@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage whose writes are also shipped to a replica by a Replicator. Local writes and their
+ * log records are taken in the same order under one lock; waiting for the replica happens
+ * outside it, so a group commit waits once for its whole batch.
+ */
+public class ReplicatedStorage implements Storage {
+
+    private final Storage storage;
+    private final Replicator replicator;
+
+    public ReplicatedStorage(Storage storage, Replicator replicator) {
+        this.storage = storage;
+        this.replicator = replicator;
+    }
+
+    @Override
+    public String get(String shortURL) throws IOException {
+        return storage.get(shortURL);
+    }
+
+    @Override
+    public Map<String, String> getAll(Collection<String> shortURLs) throws IOException {
+        return storage.getAll(shortURLs);
+    }
+
+    @Override
+    public void put(String shortURL, String longURL) throws IOException {
+        putAll(Map.of(shortURL, longURL));
+    }
+
+    @Override
+    public void putAll(Map<String, String> pairs) throws IOException {
+        if (pairs.isEmpty()) {
+            return;
+        }
+        long seq;
+        synchronized (this) {
+            storage.putAll(pairs);
+            seq = replicator.appendPut(pairs);
+        }
+        replicator.awaitReplicated(seq);
+    }
+
+    @Override
+    public Map<String, String> putAllAbsent(Map<String, String> pairs) throws IOException {
+        Map<String, String> stored;
+        long seq;
+        synchronized (this) {
+            stored = storage.putAllAbsent(pairs);
+            if (stored.isEmpty()) {
+                return stored;
+            }
+            seq = replicator.appendPut(stored);
+        }
+        replicator.awaitReplicated(seq);
+        return stored;
+    }
+
+    @Override
+    public Map<String, String> replaceAll(Map<String, String> pairs, Map<String, String> expected)
+            throws IOException {
+        Map<String, String> stored;
+        long seq;
+        synchronized (this) {
+            stored = storage.replaceAll(pairs, expected);
+            if (stored.isEmpty()) {
+                return stored;
+            }
+            seq = replicator.appendPut(stored);
+        }
+        replicator.awaitReplicated(seq);
+        return stored;
+    }
+
+    @Override
+    public boolean delete(String shortURL) throws IOException {
+        return deleteAll(List.of(shortURL)) > 0;
+    }
+
+    @Override
+    public int deleteAll(Collection<String> shortURLs) throws IOException {
+        if (shortURLs.isEmpty()) {
+            return 0;
+        }
+        int deleted;
+        long seq;
+        synchronized (this) {
+            deleted = storage.deleteAll(shortURLs);
+            seq = replicator.appendDelete(shortURLs);
+        }
+        replicator.awaitReplicated(seq);
+        return deleted;
+    }
+
+    @Override
+    public void scan(String prefix, Visitor visitor) throws IOException {
+        storage.scan(prefix, visitor);
+    }
+
+    @Override
+    public long count() throws IOException {
+        return storage.count();
+    }
+
+    @Override
+    public void close() throws IOException {
+        replicator.close();
+        storage.close();
+    }
+
+    @Override
+    public String toString() {
+        return storage + ", " + replicator;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Log shipping from a URL Shortener node to its replica.
+ *
+ * The primary connects to the replica's replication port and sends MAGIC and its epoch, a
+ * random id of the running process. The replica answers with the epoch and sequence number of
+ * the last record it applied. If that is the primary's epoch and the record is still in the
+ * backlog, shipping resumes after it; otherwise the primary sends CLEAR, a snapshot of its
+ * storage as PUT records without sequence numbers, and MARK at the sequence number the
+ * snapshot started from, then resumes there. Replaying records the snapshot already
+ * contains is harmless, as every record sets keys to a final state.
+ *
+ *   record: long seq, byte type, int count, then count keys (DELETE) or key/value pairs (PUT)
+ *   ack:    long seq, the last record applied, sent by the replica whenever its input runs dry
+ */
+public class ReplicationProtocol {
+
+    static final int MAGIC = 0x52504c31; // "RPL1"
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte CLEAR = 3;
+    static final byte MARK = 4;
+
+    /**
+     * One batch of writes, applied by the replica as a unit. Immutable.
+     */
+    static final class Record {
+        // 0 for snapshot rows, which carry no position
+        final long seq;
+        final byte type;
+        final String[] keys;
+        final String[] values;
+
+        Record(long seq, byte type, String[] keys, String[] values) {
+            this.seq = seq;
+            this.type = type;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        static Record put(long seq, Map<String, String> pairs) {
+            String[] keys = new String[pairs.size()];
+            String[] values = new String[pairs.size()];
+            int i = 0;
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                keys[i] = pair.getKey();
+                values[i] = pair.getValue();
+                i++;
+            }
+            return new Record(seq, PUT, keys, values);
+        }
+
+        static Record delete(long seq, Collection<String> keys) {
+            return new Record(seq, DELETE, keys.toArray(new String[0]), null);
+        }
+
+        static Record marker(long seq, byte type) {
+            return new Record(seq, type, new String[0], null);
+        }
+
+        Map<String, String> pairs() {
+            Map<String, String> pairs = new LinkedHashMap<>(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                pairs.put(keys[i], values[i]);
+            }
+            return pairs;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(seq);
+            out.writeByte(type);
+            out.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                MigrationProtocol.writeString(out, keys[i]);
+                if (type == PUT) {
+                    MigrationProtocol.writeString(out, values[i]);
+                }
+            }
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            long seq = in.readLong();
+            byte type = in.readByte();
+            if (type < PUT || type > MARK) {
+                throw new IOException("Unknown record type " + type);
+            }
+            int count = in.readInt();
+            if (count < 0 || count > 1 << 24) {
+                throw new IOException("Bad record size " + count);
+            }
+            String[] keys = new String[count];
+            String[] values = type == PUT ? new String[count] : null;
+            for (int i = 0; i < count; i++) {
+                keys[i] = MigrationProtocol.readString(in);
+                if (values != null) {
+                    values[i] = MigrationProtocol.readString(in);
+                }
+            }
+            return new Record(seq, type, keys, values);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Primary side of the ReplicationProtocol: numbers every write batch, keeps the last
+ * backlog of them, and ships them in order to one replica, reconnecting as needed.
+ *
+ * In sync mode a write waits, up to timeoutMs, until the replica has applied it, so a PUT
+ * acknowledged to the client is on both nodes. While the replica is unreachable or still
+ * catching up, writes do not wait and the replica gets them once it is back.
+ */
+public class Replicator implements Runnable {
+
+    static final long RECONNECT_DELAY_MS = 1000;
+
+    private final String address;
+    private final Storage storage;
+    private final boolean sync;
+    private final long timeoutNanos;
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition acknowledged = lock.newCondition();
+    // record seq lives at backlog[seq % backlog.length] while seq > lastSeq - backlog.length
+    private final ReplicationProtocol.Record[] backlog;
+    private long lastSeq;
+    private long ackedSeq;
+    // connected and past any snapshot: writes wait for their ack
+    private boolean streaming;
+    private boolean closed;
+
+    private long resyncs;
+    private long timeouts;
+    private long unreplicated;
+
+    /**
+     * @param address    replica's replication address, "host:port"
+     * @param storage    the primary's storage, scanned for snapshots
+     * @param backlog    records kept for a replica that reconnects
+     * @param sync       whether writes wait for the replica
+     * @param timeoutMs  longest wait for the replica in sync mode
+     */
+    public Replicator(String address, Storage storage, int backlog, boolean sync, long timeoutMs) {
+        this.address = address;
+        this.storage = storage;
+        this.backlog = new ReplicationProtocol.Record[backlog];
+        this.sync = sync;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    /**
+     * Numbers and queues a batch that has just been applied locally; returns its seq.
+     * Callers hold a lock around the local write and this call, so seq order is apply order.
+     */
+    long appendPut(Map<String, String> pairs) {
+        lock.lock();
+        try {
+            return append(ReplicationProtocol.Record.put(lastSeq + 1, pairs));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long appendDelete(Collection<String> keys) {
+        lock.lock();
+        try {
+            return append(ReplicationProtocol.Record.delete(lastSeq + 1, keys));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long append(ReplicationProtocol.Record record) {
+        lastSeq = record.seq;
+        backlog[(int) (record.seq % backlog.length)] = record;
+        appended.signalAll();
+        return record.seq;
+    }
+
+    /**
+     * In sync mode, waits until the replica has applied seq, unless it is not streaming.
+     */
+    void awaitReplicated(long seq) {
+        if (!sync) {
+            return;
+        }
+        lock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (ackedSeq < seq && streaming) {
+                if (remaining <= 0) {
+                    timeouts++;
+                    return;
+                }
+                remaining = acknowledged.awaitNanos(remaining);
+            }
+            if (ackedSeq < seq) {
+                unreplicated++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!isClosed()) {
+            try (Socket socket = new Socket(Node.host(address), Node.port(address, 0))) {
+                socket.setTcpNoDelay(true);
+                ship(socket);
+            } catch (IOException e) {
+                if (!isClosed()) {
+                    System.err.println("Replication to " + address + " interrupted: " + e.getMessage());
+                }
+            } finally {
+                setStreaming(false);
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void ship(Socket socket) throws IOException {
+        DataOutputStream out = MigrationProtocol.output(socket);
+        DataInputStream in = MigrationProtocol.input(socket);
+        out.writeInt(ReplicationProtocol.MAGIC);
+        out.writeLong(epoch);
+        out.flush();
+        long replicaEpoch = in.readLong();
+        long replicaSeq = in.readLong();
+
+        long next;
+        lock.lock();
+        try {
+            boolean resumable = replicaEpoch == epoch && replicaSeq <= lastSeq
+                    && replicaSeq >= lastSeq - backlog.length;
+            next = resumable ? replicaSeq + 1 : -1;
+            if (resumable) {
+                ackedSeq = Math.max(ackedSeq, replicaSeq);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (next < 0) {
+            next = snapshot(out) + 1;
+        }
+        System.out.println("Replicating to " + address + " from seq " + next);
+
+        Thread acks = new Thread(() -> readAcks(in, socket), "replication-acks");
+        acks.setDaemon(true);
+        acks.start();
+        setStreaming(true);
+
+        List<ReplicationProtocol.Record> batch = new ArrayList<>();
+        while (!socket.isClosed()) {
+            lock.lock();
+            try {
+                while (next > lastSeq && !closed && !socket.isClosed()) {
+                    appended.await(1, TimeUnit.SECONDS);
+                }
+                if (closed) {
+                    return;
+                }
+                if (next <= lastSeq - backlog.length) {
+                    throw new IOException("replica fell more than " + backlog.length + " records behind");
+                }
+                for (; next <= lastSeq; next++) {
+                    batch.add(backlog[(int) (next % backlog.length)]);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            for (ReplicationProtocol.Record record : batch) {
+                record.write(out);
+            }
+            out.flush();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sends the whole storage and returns the seq it is consistent with once replayed from there.
+     */
+    private long snapshot(DataOutputStream out) throws IOException {
+        long start = System.currentTimeMillis();
+        long from;
+        lock.lock();
+        try {
+            from = lastSeq;
+            resyncs++;
+        } finally {
+            lock.unlock();
+        }
+        ReplicationProtocol.Record.marker(0, ReplicationProtocol.CLEAR).write(out);
+        long[] rows = new long[1];
+        Map<String, String> chunk = new LinkedHashMap<>();
+        storage.scan("", (shortURL, longURL) -> {
+            chunk.put(shortURL, longURL);
+            if (chunk.size() >= MigrationProtocol.CHUNK_ROWS) {
+                ReplicationProtocol.Record.put(0, chunk).write(out);
+                rows[0] += chunk.size();
+                chunk.clear();
+            }
+        });
+        if (!chunk.isEmpty()) {
+            ReplicationProtocol.Record.put(0, chunk).write(out);
+            rows[0] += chunk.size();
+        }
+        ReplicationProtocol.Record.marker(from, ReplicationProtocol.MARK).write(out);
+        out.flush();
+        System.out.println("Replication snapshot to " + address + ": " + rows[0] + " rows in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return from;
+    }
+
+    private void readAcks(DataInputStream in, Socket socket) {
+        try {
+            while (true) {
+                long seq = in.readLong();
+                lock.lock();
+                try {
+                    ackedSeq = Math.max(ackedSeq, seq);
+                    acknowledged.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.err.println("Replication to " + address + " lost: " + e.getMessage());
+            }
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void setStreaming(boolean streaming) {
+        lock.lock();
+        try {
+            this.streaming = streaming;
+            acknowledged.signalAll();
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("replication[to=%s %s seq=%d acked=%d resyncs=%d timeouts=%d unreplicated=%d]",
+                    address, streaming ? "streaming" : "down", lastSeq, ackedSeq, resyncs, timeouts, unreplicated);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the request lines both servers accept, straight from the bytes read off the socket:
+ *
+ *   PUT /?short=SHORT&long=LONG HTTP/1.x    records a short URL
+ *   PUT /?long=LONG HTTP/1.x                creates one, the server picking the code
+ *   POST /batch/get HTTP/1.x                looks up the codes in the body (see Batch)
+ *   POST /batch/put HTTP/1.x                records the pairs in the body
+ *   METHOD /SHORT HTTP/1.x                  looks one up
+ *
+ * The parser only records offsets into the caller's buffer, so parsing allocates nothing;
+ * shortResource() and longResource() percent-decode on demand and must be called before
+ * the buffer is reused. One instance is meant to be reused for every request on a connection.
+ */
+public class RequestLine {
+
+    static final String HTTP_1_0 = "HTTP/1.0";
+    static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final byte[] SHORT_PARAM = "short".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LONG_PARAM = "long".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SHORT_SEPARATOR = "&short=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BATCH_GET = Batch.GET_PATH.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BATCH_PUT = Batch.PUT_PATH.getBytes(StandardCharsets.US_ASCII);
+
+    // field encodings reported by scan()
+    private static final int MALFORMED = -1;
+    private static final int PLAIN = 0;
+    private static final int ENCODED = 1;
+
+    private byte[] buffer;
+    private int lineStart;
+    private int lineEnd;
+
+    private boolean isPut;
+    private boolean isCreate;
+    private boolean isBatch;
+    private String httpVersion;
+    private int shortStart;
+    private int shortEnd;
+    private int shortEncoding;
+    private int longStart;
+    private int longEnd;
+    private int longEncoding;
+
+    /**
+     * Parses buffer[offset, offset + length) without the line terminator.
+     * Returns false, cheaply, for anything that is not one of the two accepted forms.
+     */
+    public boolean parse(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.lineStart = offset;
+        this.lineEnd = offset + length;
+        this.isPut = false;
+        this.isCreate = false;
+        this.isBatch = false;
+        this.httpVersion = null;
+        this.shortStart = this.shortEnd = this.longStart = this.longEnd = 0;
+
+        int end = lineEnd;
+        int i = offset;
+
+        // method
+        while (i < end && isTokenChar(buffer[i])) {
+            i++;
+        }
+        if (i == offset || i == end || !isSpace(buffer[i])) {
+            return false;
+        }
+        isPut = i - offset == 3 && buffer[offset] == 'P' && buffer[offset + 1] == 'U' && buffer[offset + 2] == 'T';
+        boolean isPost = i - offset == 4 && buffer[offset] == 'P' && buffer[offset + 1] == 'O'
+                && buffer[offset + 2] == 'S' && buffer[offset + 3] == 'T';
+        i = skipSpaces(buffer, i, end);
+
+        // request target
+        int targetStart = i;
+        while (i < end && isVisible(buffer[i])) {
+            i++;
+        }
+        int targetEnd = i;
+        if (targetEnd - targetStart < 2 || buffer[targetStart] != '/' || i == end || !isSpace(buffer[i])) {
+            return false;
+        }
+        i = skipSpaces(buffer, i, end);
+
+        // version: exactly HTTP/1.0 or HTTP/1.1
+        if (end - i != 8 || buffer[i] != 'H' || buffer[i + 1] != 'T' || buffer[i + 2] != 'T' || buffer[i + 3] != 'P'
+                || buffer[i + 4] != '/' || buffer[i + 5] != '1' || buffer[i + 6] != '.') {
+            return false;
+        }
+        if (buffer[i + 7] == '1') {
+            httpVersion = HTTP_1_1;
+        } else if (buffer[i + 7] == '0') {
+            httpVersion = HTTP_1_0;
+        } else {
+            return false;
+        }
+
+        if (isPost && regionEquals(buffer, targetStart, targetEnd, BATCH_PUT)) {
+            isBatch = true;
+            isPut = true;
+            return true;
+        }
+        if (isPost && regionEquals(buffer, targetStart, targetEnd, BATCH_GET)) {
+            isBatch = true;
+            return true;
+        }
+        return isPut ? parseQuery(targetStart + 1, targetEnd) : parsePath(targetStart + 1, targetEnd);
+    }
+
+    private boolean parsePath(int start, int end) {
+        int query = indexOf(buffer, (byte) '?', start, end);
+        shortStart = start;
+        shortEnd = query < 0 ? end : query;
+        shortEncoding = scan(buffer, shortStart, shortEnd);
+        return shortEnd > shortStart && shortEncoding != MALFORMED;
+    }
+
+    /**
+     * Reads short and long from the query string. The long URL is often sent unencoded and may
+     * contain '&' itself, so its value runs to the end of the query unless a "&short=" follows.
+     */
+    private boolean parseQuery(int start, int end) {
+        if (start >= end || buffer[start] != '?') {
+            return false;
+        }
+        int p = start + 1;
+        while (p < end) {
+            int next = indexOf(buffer, (byte) '&', p, end);
+            if (next < 0) {
+                next = end;
+            }
+            int eq = indexOf(buffer, (byte) '=', p, next);
+            if (eq > 0) {
+                if (regionEquals(buffer, p, eq, SHORT_PARAM)) {
+                    shortStart = eq + 1;
+                    shortEnd = next;
+                } else if (regionEquals(buffer, p, eq, LONG_PARAM)) {
+                    int shortParam = indexOf(buffer, SHORT_SEPARATOR, eq + 1, end);
+                    next = shortParam < 0 ? end : shortParam;
+                    longStart = eq + 1;
+                    longEnd = next;
+                }
+            }
+            p = next + 1;
+        }
+        if (longEnd <= longStart) {
+            return false;
+        }
+        if (shortStart == 0) {
+            isCreate = true;
+            longEncoding = scan(buffer, longStart, longEnd);
+            return longEncoding != MALFORMED;
+        }
+        if (shortEnd <= shortStart) {
+            return false;
+        }
+        shortEncoding = scan(buffer, shortStart, shortEnd);
+        longEncoding = scan(buffer, longStart, longEnd);
+        return shortEncoding != MALFORMED && longEncoding != MALFORMED;
+    }
+
+    public boolean isPut() {
+        return isPut;
+    }
+
+    /**
+     * A PUT without a short code.
+     */
+    public boolean isCreate() {
+        return isCreate;
+    }
+
+    /**
+     * A POST to one of the batch endpoints; isPut() tells which. The items are in the body.
+     */
+    public boolean isBatch() {
+        return isBatch;
+    }
+
+    public String httpVersion() {
+        return httpVersion;
+    }
+
+    /**
+     * The short code, or null for a create or a batch.
+     */
+    public String shortResource() {
+        if (isCreate || isBatch) {
+            return null;
+        }
+        return decode(buffer, shortStart, shortEnd, shortEncoding);
+    }
+
+    public String longResource() {
+        return isPut && !isBatch ? decode(buffer, longStart, longEnd, longEncoding) : null;
+    }
+
+    /**
+     * The raw line, for logging.
+     */
+    @Override
+    public String toString() {
+        return buffer == null ? "" : new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Checks the percent-escapes of a field and reports whether decoding is needed at all.
+     * Escaped control bytes (CR, LF, NUL, ...) are malformed: decoded values end up in
+     * response headers such as Location.
+     */
+    private static int scan(byte[] buffer, int start, int end) {
+        int encoding = PLAIN;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '%') {
+                if (i + 2 >= end || hexValue(buffer[i + 1]) < 0 || hexValue(buffer[i + 2]) < 0) {
+                    return MALFORMED;
+                }
+                int value = (hexValue(buffer[i + 1]) << 4) | hexValue(buffer[i + 2]);
+                if (value < 0x20 || value == 0x7f) {
+                    return MALFORMED;
+                }
+                encoding = ENCODED;
+                i += 2;
+            } else if (b < 0) {
+                encoding = ENCODED;
+            }
+        }
+        return encoding;
+    }
+
+    private static String decode(byte[] buffer, int start, int end, int encoding) {
+        if (encoding == PLAIN) {
+            // ASCII only: the cheapest String construction there is
+            return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        byte[] decoded = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == '%') {
+                b = (byte) ((hexValue(buffer[i + 1]) << 4) | hexValue(buffer[i + 2]));
+                i += 2;
+            }
+            decoded[length++] = b;
+        }
+        return new String(decoded, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static boolean isTokenChar(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || b == '-' || b == '_';
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    // printable, non-space; bytes >= 0x80 are allowed and decoded as UTF-8
+    private static boolean isVisible(byte b) {
+        return b < 0 || (b > ' ' && b != 0x7f);
+    }
+
+    private static int skipSpaces(byte[] buffer, int i, int end) {
+        while (i < end && isSpace(buffer[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(byte[] buffer, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] buffer, byte[] value, int start, int end) {
+        for (int i = start; i <= end - value.length; i++) {
+            if (regionEquals(buffer, i, i + value.length, value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] buffer, int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (buffer[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The head of a URL Server response, read into a reusable buffer and parsed in place, so that
+ * relaying a response allocates nothing. The proxy needs only the status, the headers that
+ * frame the message and, for redirects and creates, the Location; every other header line is
+ * passed through byte for byte. One instance is meant to be reused for every response relayed
+ * on a client connection.
+ */
+public class ResponseHead {
+
+    static final int MAX_HEAD_LENGTH = 16384;
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEEP_ALIVE = "keep-alive".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE = "close".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOCATION = "location".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HTTP_1_1 = "HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONNECTION_KEEP_ALIVE =
+            "Connection: keep-alive\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final byte[] buffer = new byte[MAX_HEAD_LENGTH];
+    // head bytes up to the blank line that ends it
+    private int length;
+    private int status;
+    private long contentLength;
+    private boolean keepAlive;
+    private int locationStart;
+    private int locationEnd;
+
+    /**
+     * Reads the next response head off in, which must support mark: the head is read in bulk
+     * and whatever follows it is given back. Returns false if the stream ends before any byte.
+     */
+    public boolean read(InputStream in) throws IOException {
+        in.mark(buffer.length);
+        int filled = 0;
+        int end = -1;
+        while (end < 0) {
+            int bytesRead = in.read(buffer, filled, buffer.length - filled);
+            if (bytesRead == -1) {
+                if (filled == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed inside a response head");
+            }
+            end = headEnd(Math.max(0, filled - 3), filled + bytesRead);
+            filled += bytesRead;
+            if (end < 0 && filled == buffer.length) {
+                throw new IOException("Response head longer than " + buffer.length + " bytes");
+            }
+        }
+        in.reset();
+        HttpIO.skip(in, end);
+        length = end;
+        parse();
+        return true;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    /**
+     * The body length, 0 when absent, or -1 when the body runs until the connection closes.
+     */
+    public long contentLength() {
+        return contentLength;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * The Location header, or null.
+     */
+    public String location() {
+        return locationStart < 0 ? null
+                : new String(buffer, locationStart, locationEnd - locationStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Writes the head as it came, except that the connection headers are replaced by one that
+     * says whether the client connection stays open.
+     */
+    public void writeTo(OutputStream out, boolean keepAlive) throws IOException {
+        int lineStart = 0;
+        while (true) {
+            int lineEnd = lineEnd(lineStart);
+            if (lineEnd == lineStart) {
+                break;
+            }
+            int nameEnd = indexOf(buffer, (byte) ':', lineStart, lineEnd);
+            if (lineStart == 0 || nameEnd < 0 || (!nameEquals(lineStart, nameEnd, CONNECTION)
+                    && !nameEquals(lineStart, nameEnd, KEEP_ALIVE))) {
+                out.write(buffer, lineStart, next(lineEnd) - lineStart);
+            }
+            lineStart = next(lineEnd);
+        }
+        out.write(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+    }
+
+    /**
+     * The end of the head, past its blank line, if it is complete within buffer[0, limit).
+     */
+    private int headEnd(int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            if (i + 1 < limit && buffer[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (i + 2 < limit && buffer[i + 1] == '\r' && buffer[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private void parse() throws IOException {
+        int statusEnd = lineEnd(0);
+        int space = indexOf(buffer, (byte) ' ', 0, statusEnd);
+        if (space < 0 || statusEnd - space < 4) {
+            throw new IOException("Bad status line from URL Server");
+        }
+        status = 0;
+        for (int i = space + 1; i <= space + 3; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IOException("Bad status line from URL Server");
+            }
+            status = status * 10 + digit;
+        }
+        boolean http11 = space == HTTP_1_1.length && regionEquals(0, space, HTTP_1_1);
+
+        contentLength = 0;
+        keepAlive = http11;
+        locationStart = -1;
+        boolean closeDelimited = false;
+        int lineStart = next(statusEnd);
+        while (lineStart < length) {
+            int lineEnd = lineEnd(lineStart);
+            if (lineEnd == lineStart) {
+                break;
+            }
+            int nameEnd = indexOf(buffer, (byte) ':', lineStart, lineEnd);
+            if (nameEnd > lineStart) {
+                int valueStart = nameEnd + 1;
+                while (valueStart < lineEnd && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+                    valueStart++;
+                }
+                int valueEnd = lineEnd;
+                while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t')) {
+                    valueEnd--;
+                }
+                if (nameEquals(lineStart, nameEnd, CONTENT_LENGTH)) {
+                    contentLength = parseLength(valueStart, valueEnd);
+                    closeDelimited |= contentLength < 0;
+                } else if (nameEquals(lineStart, nameEnd, TRANSFER_ENCODING)) {
+                    closeDelimited = true;
+                } else if (nameEquals(lineStart, nameEnd, CONNECTION)) {
+                    if (containsIgnoreCase(valueStart, valueEnd, CLOSE)) {
+                        keepAlive = false;
+                    } else if (containsIgnoreCase(valueStart, valueEnd, KEEP_ALIVE)) {
+                        keepAlive = true;
+                    }
+                } else if (nameEquals(lineStart, nameEnd, LOCATION)) {
+                    locationStart = valueStart;
+                    locationEnd = valueEnd;
+                }
+            }
+            lineStart = next(lineEnd);
+        }
+        if (closeDelimited) {
+            contentLength = -1;
+        }
+    }
+
+    private long parseLength(int start, int end) {
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // end of the line starting at start, before its CR LF or LF
+    private int lineEnd(int start) {
+        int newline = indexOf(buffer, (byte) '\n', start, length);
+        int end = newline < 0 ? length : newline;
+        return end > start && buffer[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    // start of the line after the one ending at lineEnd
+    private int next(int lineEnd) {
+        return lineEnd < length && buffer[lineEnd] == '\r' ? lineEnd + 2 : lineEnd + 1;
+    }
+
+    private boolean nameEquals(int start, int end, byte[] lowerCaseName) {
+        while (end > start && (buffer[end - 1] == ' ' || buffer[end - 1] == '\t')) {
+            end--;
+        }
+        return end - start == lowerCaseName.length && equalsIgnoreCase(start, lowerCaseName);
+    }
+
+    private boolean containsIgnoreCase(int start, int end, byte[] lowerCaseToken) {
+        for (int i = start; i <= end - lowerCaseToken.length; i++) {
+            if (equalsIgnoreCase(i, lowerCaseToken)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean equalsIgnoreCase(int start, byte[] lowerCaseValue) {
+        for (int i = 0; i < lowerCaseValue.length; i++) {
+            byte b = buffer[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseValue[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEquals(int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (buffer[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buffer, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
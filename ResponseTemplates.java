@@ -0,0 +1,230 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Pre-encoded responses for the pages the URL Shortener serves.
+ * Each page is read once (and again only when the file changes on disk), and its headers
+ * are encoded once per second, when the Date header changes. A response is then a single
+ * byte array: 404s and PUT acks are shared as-is, redirects only splice in the Location.
+ */
+public class ResponseTemplates {
+
+    // how often the page files are checked for changes (ms)
+    static final long RELOAD_CHECK_INTERVAL = 1000;
+
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
+
+    private final File webRoot;
+    private final String keepAliveHeader;
+    private final Template redirect;
+    private final Template notFound;
+    private final Template recorded;
+    private final Template created;
+    private volatile long nextReloadCheck = 0;
+
+    ResponseTemplates(File webRoot, String redirectFile, String notFoundFile, String recordedFile,
+                      int keepAliveTimeout, int maxRequests) throws IOException {
+        this.webRoot = webRoot;
+        this.keepAliveHeader = "Keep-Alive: timeout=" + keepAliveTimeout / 1000 + ", max=" + maxRequests + "\r\n";
+        this.redirect = new Template("HTTP/1.1 307 Temporary Redirect\r\nLocation: ", redirectFile);
+        this.notFound = new Template("HTTP/1.1 404 File Not Found\r\n", notFoundFile);
+        this.recorded = new Template("HTTP/1.1 200 OK\r\n", recordedFile);
+        this.created = new Template("HTTP/1.1 201 Created\r\nLocation: /", recordedFile);
+    }
+
+    public byte[] redirect(String location, boolean keepAlive) {
+        return withLocation(redirect, location, keepAlive);
+    }
+
+    /**
+     * The answer to a create: the new code as the Location, "/code", and the recorded page.
+     */
+    public byte[] created(String shortCode, boolean keepAlive) {
+        return withLocation(created, shortCode, keepAlive);
+    }
+
+    private byte[] withLocation(Template template, String location, boolean keepAlive) {
+        byte[] prefix = template.prefix;
+        byte[] tail = rendered(template).tail(keepAlive);
+
+        // plain printable ASCII locations are copied char by char, anything else is encoded
+        byte[] encodedLocation = null;
+        int locationLength = location.length();
+        for (int i = 0; i < locationLength; i++) {
+            char c = location.charAt(i);
+            if (c >= 0x7f || c < 0x20) {
+                encodedLocation = encodeLocation(location);
+                locationLength = encodedLocation.length;
+                break;
+            }
+        }
+
+        byte[] response = new byte[prefix.length + locationLength + CRLF.length + tail.length];
+        System.arraycopy(prefix, 0, response, 0, prefix.length);
+        int position = prefix.length;
+        if (encodedLocation == null) {
+            for (int i = 0; i < locationLength; i++) {
+                response[position++] = (byte) location.charAt(i);
+            }
+        } else {
+            System.arraycopy(encodedLocation, 0, response, position, locationLength);
+            position += locationLength;
+        }
+        response[position++] = '\r';
+        response[position++] = '\n';
+        System.arraycopy(tail, 0, response, position, tail.length);
+        return response;
+    }
+
+    /**
+     * The location as UTF-8, with control bytes percent-encoded: whatever storage holds, a CR or
+     * LF must not end the header line early.
+     */
+    static byte[] encodeLocation(String location) {
+        byte[] utf8 = location.getBytes(StandardCharsets.UTF_8);
+        int controls = 0;
+        for (byte b : utf8) {
+            if (b >= 0 && (b < 0x20 || b == 0x7f)) {
+                controls++;
+            }
+        }
+        if (controls == 0) {
+            return utf8;
+        }
+        byte[] encoded = new byte[utf8.length + 2 * controls];
+        int position = 0;
+        for (byte b : utf8) {
+            if (b >= 0 && (b < 0x20 || b == 0x7f)) {
+                encoded[position++] = '%';
+                encoded[position++] = (byte) HEX_DIGITS.charAt(b >> 4);
+                encoded[position++] = (byte) HEX_DIGITS.charAt(b & 15);
+            } else {
+                encoded[position++] = b;
+            }
+        }
+        return encoded;
+    }
+
+    public byte[] notFound(boolean keepAlive) {
+        return rendered(notFound).full(keepAlive);
+    }
+
+    public byte[] recorded(boolean keepAlive) {
+        return rendered(recorded).full(keepAlive);
+    }
+
+    private Rendered rendered(Template template) {
+        long now = System.currentTimeMillis();
+        if (now >= nextReloadCheck) {
+            nextReloadCheck = now + RELOAD_CHECK_INTERVAL;
+            reloadChanged();
+        }
+        long second = now / 1000;
+        Rendered rendered = template.rendered;
+        if (rendered == null || rendered.second != second || rendered.page != template.page) {
+            rendered = new Rendered(second, template.page, template.prefix, keepAliveHeader);
+            template.rendered = rendered;
+        }
+        return rendered;
+    }
+
+    private void reloadChanged() {
+        for (Template template : new Template[]{redirect, notFound, recorded, created}) {
+            try {
+                template.reloadIfChanged();
+            } catch (IOException e) {
+                System.err.println("Could not reload " + template.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private class Template {
+        final byte[] prefix;
+        final File file;
+        volatile Page page;
+        volatile Rendered rendered;
+
+        Template(String prefix, String fileName) throws IOException {
+            this.prefix = prefix.getBytes(StandardCharsets.ISO_8859_1);
+            this.file = new File(webRoot, fileName);
+            this.page = Page.read(file);
+        }
+
+        void reloadIfChanged() throws IOException {
+            Page current = page;
+            if (file.lastModified() != current.lastModified || file.length() != current.body.length) {
+                page = Page.read(file);
+                System.out.println("Reloaded " + file);
+            }
+        }
+    }
+
+    private static class Page {
+        final byte[] body;
+        final long lastModified;
+
+        Page(byte[] body, long lastModified) {
+            this.body = body;
+            this.lastModified = lastModified;
+        }
+
+        static Page read(File file) throws IOException {
+            long lastModified = file.lastModified();
+            return new Page(Files.readAllBytes(file.toPath()), lastModified);
+        }
+    }
+
+    /**
+     * Everything after the status line (and Location) for one page during one second.
+     */
+    private static class Rendered {
+        final long second;
+        final Page page;
+        private final byte[] keepAliveTail;
+        private final byte[] closeTail;
+        private final byte[] keepAliveFull;
+        private final byte[] closeFull;
+
+        Rendered(long second, Page page, byte[] prefix, String keepAliveHeader) {
+            this.second = second;
+            this.page = page;
+            String headers = "Server: Java HTTP Server/Shortener : 1.0\r\n"
+                    + "Date: " + HTTP_DATE.format(Instant.ofEpochSecond(second)) + "\r\n"
+                    + "Content-type: text/html\r\n"
+                    + "Content-length: " + page.body.length + "\r\n";
+            this.keepAliveTail = encode(null, headers + "Connection: keep-alive\r\n" + keepAliveHeader, page.body);
+            this.closeTail = encode(null, headers + "Connection: close\r\n", page.body);
+            this.keepAliveFull = encode(prefix, headers + "Connection: keep-alive\r\n" + keepAliveHeader, page.body);
+            this.closeFull = encode(prefix, headers + "Connection: close\r\n", page.body);
+        }
+
+        byte[] tail(boolean keepAlive) {
+            return keepAlive ? keepAliveTail : closeTail;
+        }
+
+        byte[] full(boolean keepAlive) {
+            return keepAlive ? keepAliveFull : closeFull;
+        }
+
+        private static byte[] encode(byte[] prefix, String headers, byte[] body) {
+            byte[] head = headers.getBytes(StandardCharsets.ISO_8859_1);
+            int prefixLength = prefix == null ? 0 : prefix.length;
+            byte[] encoded = new byte[prefixLength + head.length + CRLF.length + body.length];
+            if (prefix != null) {
+                System.arraycopy(prefix, 0, encoded, 0, prefixLength);
+            }
+            System.arraycopy(head, 0, encoded, prefixLength, head.length);
+            System.arraycopy(CRLF, 0, encoded, prefixLength + head.length, CRLF.length);
+            System.arraycopy(body, 0, encoded, prefixLength + head.length + CRLF.length, body.length);
+            return encoded;
+        }
+    }
+}
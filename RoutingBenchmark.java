@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares how evenly the old first-character table and the HashRing spread short codes
+ * over hosts, and how many codes move when a host joins or leaves.
+ *
+ *   java RoutingBenchmark [hosts] [vnodes] [keys]
+ */
+public class RoutingBenchmark {
+
+    static final String BASE62 = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    public static void main(String[] args) {
+        int hostCount = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int vnodes = args.length > 1 ? Integer.parseInt(args[1]) : HashRing.DEFAULT_VNODES;
+        int keyCount = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+
+        List<String> hosts = new ArrayList<>();
+        for (int i = 1; i <= hostCount; i++) {
+            hosts.add("dh2010pc" + String.format("%02d", i));
+        }
+        Random random = new Random(42);
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            char[] code = new char[7];
+            for (int j = 0; j < code.length; j++) {
+                code[j] = BASE62.charAt(random.nextInt(BASE62.length()));
+            }
+            keys[i] = new String(code);
+        }
+        System.out.println(hostCount + " hosts, " + keyCount + " random 7-character base62 codes\n");
+
+        Map<String, String> table = firstCharTable(hosts);
+        report("first character", weights(hosts, 1), keys, key -> table.get(key.substring(0, 1)));
+
+        for (int v : new int[]{1, 10, 40, 160, 640}) {
+            HashRing ring = new HashRing(weights(hosts, 1), v);
+            report("ring, " + v + " vnodes", ring.weights(), keys, ring::route);
+        }
+
+        Map<String, Integer> weighted = weights(hosts, 1);
+        weighted.put(hosts.get(0), 2);
+        HashRing weightedRing = new HashRing(weighted, vnodes);
+        report("ring, " + vnodes + " vnodes, " + hosts.get(0) + " x2", weighted, keys, weightedRing::route);
+
+        HashRing ring = new HashRing(weights(hosts, 1), vnodes);
+        List<String> grown = new ArrayList<>(hosts);
+        grown.add("dh2010pc" + String.format("%02d", hostCount + 1));
+        List<String> shrunk = new ArrayList<>(hosts.subList(0, hostCount - 1));
+
+        Map<String, String> grownTable = firstCharTable(grown);
+        System.out.printf("add a host:    first character moves %.1f%%, ring moves %.1f%% (1/N = %.1f%%)%n",
+                100.0 * moved(keys, key -> table.get(key.substring(0, 1)),
+                        key -> grownTable.get(key.substring(0, 1))),
+                movement(ring, new HashRing(weights(grown, 1), vnodes), keys), 100.0 / grown.size());
+        Map<String, String> shrunkTable = firstCharTable(shrunk);
+        System.out.printf("remove a host: first character moves %.1f%%, ring moves %.1f%% (1/N = %.1f%%)%n",
+                100.0 * moved(keys, key -> table.get(key.substring(0, 1)),
+                        key -> shrunkTable.get(key.substring(0, 1))),
+                movement(ring, new HashRing(weights(shrunk, 1), vnodes), keys), 100.0 / hostCount);
+    }
+
+    interface Router {
+        String route(String key);
+    }
+
+    // the table the proxy used before the ring: lowercase letters and digits split in runs
+    static Map<String, String> firstCharTable(List<String> hosts) {
+        char[] alphabet = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+        int run = alphabet.length / hosts.size();
+        Map<String, String> table = new HashMap<>();
+        for (int i = 0; i < hosts.size(); i++) {
+            int end = i == hosts.size() - 1 ? alphabet.length : (i + 1) * run;
+            for (int j = i * run; j < end; j++) {
+                table.put(String.valueOf(alphabet[j]), hosts.get(i));
+            }
+        }
+        return table;
+    }
+
+    static Map<String, Integer> weights(List<String> hosts, int weight) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String host : hosts) {
+            weights.put(host, weight);
+        }
+        return weights;
+    }
+
+    // skew is each host's count over its fair share by weight
+    static void report(String name, Map<String, Integer> weights, String[] keys, Router router) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        int totalWeight = 0;
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            counts.put(weight.getKey(), 0);
+            totalWeight += weight.getValue();
+        }
+        int unroutable = 0;
+        for (String key : keys) {
+            String host = router.route(key);
+            if (host == null) {
+                unroutable++;
+            } else {
+                counts.merge(host, 1, Integer::sum);
+            }
+        }
+        double routed = keys.length - unroutable;
+        double max = 0;
+        double squares = 0;
+        StringBuilder shares = new StringBuilder();
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            double skew = count.getValue() / (routed * weights.get(count.getKey()) / totalWeight);
+            max = Math.max(max, skew);
+            squares += (skew - 1) * (skew - 1);
+            shares.append(String.format(" %.1f%%", 100.0 * count.getValue() / keys.length));
+        }
+        System.out.printf("%-32s max/fair %.3f  stddev %4.1f%%  unroutable %4.1f%%  shares%s%n", name,
+                max, 100.0 * Math.sqrt(squares / counts.size()), 100.0 * unroutable / keys.length, shares);
+    }
+
+    static double moved(String[] keys, Router before, Router after) {
+        int moved = 0;
+        for (String key : keys) {
+            String from = before.route(key);
+            if (from != null && !from.equals(after.route(key))) {
+                moved++;
+            }
+        }
+        return (double) moved / keys.length;
+    }
+
+    // percentage of keys that change owner; also checks movesTo lists exactly those keys
+    static double movement(HashRing before, HashRing after, String[] keys) {
+        List<HashRing.Move> moves = before.movesTo(after);
+        int moved = 0;
+        for (String key : keys) {
+            String from = before.route(key);
+            String to = after.route(key);
+            HashRing.Move listed = null;
+            for (HashRing.Move move : moves) {
+                if (move.contains(key)) {
+                    listed = move;
+                    break;
+                }
+            }
+            if (!from.equals(to)) {
+                moved++;
+                if (listed == null || !listed.from.equals(from) || !listed.to.equals(to)) {
+                    throw new IllegalStateException(key + " moves " + from + " -> " + to + " but is listed in " + listed);
+                }
+            } else if (listed != null) {
+                throw new IllegalStateException(key + " stays on " + from + " but is listed in " + listed);
+            }
+        }
+        return 100.0 * moved / keys.length;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * The proxy's routing state: the ring requests go to and, while data is moving to it, the
+ * ring it replaces. Immutable; HostWatcher publishes a new version through an AtomicReference
+ * and request threads read whichever version is current without taking a lock.
+ *
+ * Writes always go to the owner in ring. Reads go there first and, for codes whose owner
+ * changes, fall back to the previous owner, which still has every row not yet copied.
+ */
+public final class RoutingTable {
+
+    final long version;
+    final HashRing ring;
+    // null once every move has finished
+    final HashRing previous;
+
+    RoutingTable(long version, HashRing ring, HashRing previous) {
+        this.version = version;
+        this.ring = ring;
+        this.previous = previous;
+    }
+
+    /**
+     * The host owning shortCode, or null if the ring has no hosts.
+     */
+    public String route(String shortCode) {
+        return ring.route(shortCode);
+    }
+
+    /**
+     * The host that owned shortCode before the move under way, or null if it has not moved.
+     */
+    public String previousOwner(String shortCode) {
+        if (previous == null) {
+            return null;
+        }
+        String owner = previous.route(shortCode);
+        return owner == null || owner.equals(ring.route(shortCode)) ? null : owner;
+    }
+
+    public boolean isMigrating() {
+        return previous != null;
+    }
+
+    /**
+     * This table switched to next, keeping previous as the fallback, or none if it is null.
+     */
+    RoutingTable next(HashRing next, HashRing previous) {
+        return new RoutingTable(version + 1, next, previous);
+    }
+
+    @Override
+    public String toString() {
+        return "routing v" + version + " " + ring.weights() + (previous == null ? "" : ", migrating from "
+                + previous.weights());
+    }
+}
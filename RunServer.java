@@ -1,128 +1,423 @@
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * runs a single-threaded proxy server on
- * the specified local port. It never returns.
+ * Serves one client connection of the proxy. The client connection is kept
+ * open across requests; backend connections come from the shared BackendPool.
  */
 public class RunServer extends Thread {
-    private final Map<String, String> hostMapping;
-    private Socket server = null;
+    private static final byte[] UNAVAILABLE_KEEP_ALIVE = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n"
+            + "Content-Length: 0\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] UNAVAILABLE_CLOSE = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n"
+            + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] BAD_GATEWAY_KEEP_ALIVE = ("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n"
+            + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] BAD_GATEWAY_CLOSE = ("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n"
+            + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    // what send and forward did with a request
+    private static final int CLOSE = 0;
+    private static final int KEEP_ALIVE = 1;
+    private static final int NOT_FOUND = 2;
+    private static final int UNAVAILABLE = 3;
+
+    // how long, and how many bytes, a closing client connection is drained for after its output is shut down
+    private static final int CLOSE_LINGER_MS = 200;
+    private static final int CLOSE_DRAIN_BYTES = 65536;
+
+    private final AtomicReference<RoutingTable> routing;
+    private final ResponseHead responseHead = new ResponseHead();
     private Socket client;
-    private final int remoteport = 8080;
+    // the client has closed its side: nothing to drain when closing ours
+    private boolean clientClosed;
+    // System.nanoTime() when the request being served arrived
+    private long requestStart;
 
-    RunServer(Socket client, Map<String, String> HostMapping) {
+    RunServer(Socket client, AtomicReference<RoutingTable> routing) {
         this.client = client;
-        this.hostMapping = HostMapping;
+        this.routing = routing;
     }
 
     public void run() {
         byte[] reply = new byte[4096];
 
-        // Make a connection to the real server.
         try {
+            client.setSoTimeout(SimpleProxyServer.KEEP_ALIVE_TIMEOUT);
+
             // Get client streams.
-            final InputStream streamFromClient = client.getInputStream();
-            final OutputStream streamToClient = client.getOutputStream();
+            final BufferedInputStream streamFromClient = new BufferedInputStream(client.getInputStream());
+            final BufferedOutputStream streamToClient = new BufferedOutputStream(client.getOutputStream());
 
-            BufferedReader streamFromClientBuffer = new BufferedReader(new InputStreamReader(streamFromClient));
-            BufferedOutputStream streamToClientBuffer = new BufferedOutputStream(streamToClient);
+            byte[] line = new byte[HttpIO.MAX_LINE_LENGTH];
+            RequestLine requestLine = new RequestLine();
+            int requestCount = 0;
+            boolean keepAlive = true;
+            while (keepAlive) {
+                int length;
+                try {
+                    length = HttpIO.readLine(streamFromClient, line);
+                } catch (SocketTimeoutException e) {
+                    // idle client
+                    break;
+                }
 
-            String input = streamFromClientBuffer.readLine();
+                if (length < 0) {
+                    clientClosed = true;
+                    break;
+                }
+                if (length == 0) continue;
 
-            if (input == null) return;
+                requestStart = System.nanoTime();
+                boolean valid = requestLine.parse(line, 0, length);
+                Map<String, String> headers = HttpIO.readHeaders(streamFromClient);
+                long bodyLength = HttpIO.contentLength(headers);
+                SimpleProxyServer.parseLatency.recordSince(requestStart);
+                requestCount++;
 
-            Pattern pput = Pattern.compile("^PUT\\s+/\\?short=(\\S+)&long=(\\S+)\\s+(\\S+)$");
-            Matcher mput = pput.matcher(input);
+                AccessLog accessLog = SimpleProxyServer.accessLog;
+                if (!valid) {
+                    accessLog.log(AccessLog.WARN, "Error: Unknown http request: " + requestLine);
+                    break;
+                }
 
-            Pattern pget = Pattern.compile("^(\\S+)\\s+/(\\S+)\\s+(\\S+)$");
-            Matcher mget = pget.matcher(input);
+                String shortResource = requestLine.shortResource();
+                String method = requestLine.isBatch() ? (requestLine.isPut() ? "BATCH-PUT" : "BATCH-GET")
+                        : requestLine.isPut() ? "PUT" : "GET";
 
-            String shortResource;
-            String longResource;
+                keepAlive = bodyLength >= 0 && requestCount < SimpleProxyServer.MAX_REQUESTS_PER_CONNECTION
+                        && HttpIO.isKeepAlive(requestLine.httpVersion(), headers);
 
-            if (mput.matches()) {
-                shortResource = mput.group(1);
-                longResource = mput.group(2);
+                RedirectCache redirects = SimpleProxyServer.redirects;
+                String location = null;
+                if (redirects != null && shortResource != null && !requestLine.isPut()) {
+                    long cacheStart = System.nanoTime();
+                    location = redirects.get(shortResource);
+                    SimpleProxyServer.cacheLatency.recordSince(cacheStart);
+                }
+                if (requestLine.isBatch()) {
+                    List<String> lines = Batch.accepts(bodyLength)
+                            ? Batch.lines(Batch.read(streamFromClient, bodyLength)) : null;
+                    if (lines == null) {
+                        streamToClient.write(Batch.tooLarge());
+                        break;
+                    }
+                    String[] results = SimpleProxyServer.batches.route(routing.get(), requestLine.isPut(), lines);
+                    streamToClient.write(Batch.response(results, keepAlive));
+                    SimpleProxyServer.served(method, Integer.toString(lines.size()), 200, requestStart, "batch");
+                } else if (location != null) {
+                    HttpIO.skip(streamFromClient, Math.max(bodyLength, 0));
+                    streamToClient.write(SimpleProxyServer.templates.redirect(location, keepAlive));
+                    SimpleProxyServer.served(method, shortResource, 307, requestStart, "proxy-cache");
+                } else {
+                    RoutingTable table = routing.get();
+                    // a read of a code being moved tries its new owner, then the old one
+                    String previousOwner = requestLine.isPut() ? null : table.previousOwner(shortResource);
+                    int result = requestLine.isCreate()
+                            ? create(table, requestLine.longResource(), line, length, headers,
+                                    Math.max(bodyLength, 0), streamFromClient, streamToClient, keepAlive, reply)
+                            : send(table, table.route(shortResource), shortResource, requestLine.isPut(),
+                                    previousOwner == null, line, length, headers, Math.max(bodyLength, 0),
+                                    streamFromClient, streamToClient, keepAlive, reply);
+                    if (previousOwner != null && result != KEEP_ALIVE && result != CLOSE) {
+                        result = send(table, previousOwner, shortResource, false, true, line, length, headers, 0,
+                                streamFromClient, streamToClient, keepAlive, reply);
+                    }
+                    if (result == KEEP_ALIVE || result == CLOSE) {
+                        keepAlive = result == KEEP_ALIVE;
+                    } else {
+                        streamToClient.write(keepAlive ? UNAVAILABLE_KEEP_ALIVE : UNAVAILABLE_CLOSE);
+                        SimpleProxyServer.served(method, shortResource, 503, requestStart, "unavailable");
+                    }
+                }
 
-                System.out.println("--- Received PUT Request ---");
-                System.out.println("Short URL: " + shortResource);
-                System.out.println("Long URL: " + longResource);
+                // answer a pipelined batch with a single flush
+                if (!keepAlive || streamFromClient.available() == 0) {
+                    streamToClient.flush();
+                }
             }
-            else if (mget.matches()) {
-                shortResource = mget.group(2);
+            streamToClient.flush();
 
-                System.out.println("--- Received GET Request ---");
-                System.out.println("Short URL: " + shortResource);
+        } catch (IOException e) {
+            SimpleProxyServer.accessLog.log(AccessLog.WARN, "Client connection error: " + e);
+        } finally {
+            closeClient();
+            AccessLog accessLog = SimpleProxyServer.accessLog;
+            if (accessLog.isEnabled(AccessLog.DEBUG)) {
+                Thread thread = Thread.currentThread();
+                accessLog.log(AccessLog.DEBUG, "Thread: " + thread.getName() + " with ID " + thread.threadId()
+                        + " exit successfully.");
             }
-            else {
-                System.out.println("Error: Unknown http request");
-                System.out.println("Thread exited");
-                return;
+        }
+    }
+
+    /**
+     * Closes the client connection once what was written has reached it. Closing a socket with
+     * unread input resets the connection, which can destroy responses the client has not read yet,
+     * so unless the client already closed its side, the output is shut down first and the client
+     * given a moment to see the end of the responses and close too.
+     */
+    private void closeClient() {
+        try {
+            if (!clientClosed && !client.isClosed()) {
+                client.shutdownOutput();
+                client.setSoTimeout(CLOSE_LINGER_MS);
+                InputStream in = client.getInputStream();
+                byte[] drain = new byte[4096];
+                int drained = 0;
+                int bytesRead;
+                while (drained < CLOSE_DRAIN_BYTES && (bytesRead = in.read(drain)) > 0) {
+                    drained += bytesRead;
+                }
             }
+        } catch (IOException ignore) {
+            // reset or slow to close: close anyway
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            String firstChar = String.valueOf(shortResource.charAt(0));
-            String host = hostMapping.get(firstChar);
+    /**
+     * Forwards a create to the owner of the long URL on the ring, so that every create of it
+     * reaches the same dedup index, or to the next available host if that one is down. The host
+     * is told its shard and the ring in headers, and picks a code it owns. Returns what forward
+     * returns, or UNAVAILABLE if no server got the request.
+     */
+    private int create(RoutingTable table, String longResource, byte[] line, int lineLength,
+                       Map<String, String> headers, long bodyLength, InputStream streamFromClient,
+                       OutputStream streamToClient, boolean keepAlive, byte[] reply) throws IOException {
+        HealthChecker health = SimpleProxyServer.health;
+        List<String> hosts = table.ring.hosts();
+        String owner = table.ring.route(longResource);
+        if (owner != null) {
+            hosts.remove(owner);
+            hosts.add(0, owner);
+        }
+        String failure = "no URL Server for creates";
+        for (String host : hosts) {
+            if (!health.isAvailable(host)) {
+                failure = host + " is down";
+                continue;
+            }
+            Map<String, String> shardHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            shardHeaders.putAll(headers);
+            shardHeaders.put(URLShortener.SHARD_OWNER_HEADER, host);
+            shardHeaders.put(URLShortener.SHARD_RING_HEADER, table.ring.toSpec());
+            try {
+                int result = forward(host, null, true, true, line, lineLength, shardHeaders, bodyLength,
+                        streamFromClient, streamToClient, keepAlive, reply);
+                health.success(host);
+                return result;
+            } catch (BackendUnavailableException e) {
+                health.failure(host);
+                failure = e.getMessage();
+            }
+        }
+        HttpIO.skip(streamFromClient, bodyLength);
+        SimpleProxyServer.accessLog.log(AccessLog.WARN, "Proxy Error: " + failure);
+        return UNAVAILABLE;
+    }
 
-            // Connect to URL Server
+    /**
+     * Forwards a request to host or, for a read, to its replica when host is down or cannot be
+     * reached; reports the outcome to the health checker. Returns what forward returns, or
+     * UNAVAILABLE if no server got the request. Either way the request body has been consumed.
+     */
+    private int send(RoutingTable table, String host, String shortResource, boolean isPut, boolean relayNotFound,
+                     byte[] line, int lineLength, Map<String, String> headers, long bodyLength,
+                     InputStream streamFromClient, OutputStream streamToClient, boolean keepAlive, byte[] reply)
+            throws IOException {
+        HealthChecker health = SimpleProxyServer.health;
+        String failure;
+        if (host == null) {
+            failure = "no URL Server for " + shortResource;
+        } else if (!health.isAvailable(host)) {
+            // known to be down: no connect attempt
+            failure = host + " is down";
+        } else {
             try {
-                server = new Socket(host, remoteport);
-            } catch (Exception e) {
-                HostWatcher.serverCrashedNotifier(host);
-                return;
+                int result = forward(host, shortResource, isPut, relayNotFound, line, lineLength, headers,
+                        bodyLength, streamFromClient, streamToClient, keepAlive, reply);
+                health.success(host);
+                return result;
+            } catch (BackendUnavailableException e) {
+                health.failure(host);
+                failure = e.getMessage();
             }
+        }
 
-            final InputStream streamFromServer = server.getInputStream();
-            final OutputStream streamToServer = server.getOutputStream();
-            BufferedReader streamFromServerBuffer = new BufferedReader(new InputStreamReader(streamFromServer));
-            BufferedOutputStream streamToServerBuffer = new BufferedOutputStream(streamToServer);
+        // no response was relayed and the body is still unread: reads fail over to the replica, which
+        // has every acknowledged write, even if host may have got the request
+        HttpIO.skip(streamFromClient, bodyLength);
+        String replica = host == null ? null : table.ring.node(host).replica;
+        if (!isPut && replica != null && health.isAvailable(replica)) {
+            SimpleProxyServer.accessLog.log(AccessLog.WARN, "Reading " + shortResource + " from replica "
+                    + replica + ": " + failure);
+            try {
+                int result = forward(replica, shortResource, false, relayNotFound, line, lineLength, headers, 0,
+                        streamFromClient, streamToClient, keepAlive, reply);
+                health.success(replica);
+                return result;
+            } catch (BackendUnavailableException replicaError) {
+                health.failure(replica);
+                failure = replicaError.getMessage();
+            }
+        }
+        SimpleProxyServer.accessLog.log(AccessLog.WARN, "Proxy Error: " + failure);
+        return UNAVAILABLE;
+    }
 
-            // Send request to URL Server
-            String EOF = "\n";
-            streamToServerBuffer.write((input + EOF).getBytes());
-            streamToServerBuffer.flush();
+    /**
+     * Sends one request to a URL Server and relays its response, keeping the redirect cache in
+     * step; shortResource is null for a create. Returns KEEP_ALIVE or CLOSE, whether the client connection can stay open afterwards,
+     * or NOT_FOUND if the server answered 404 and relayNotFound is false: then nothing was relayed.
+     * Throws BackendUnavailableException if no response was relayed and the request may be sent
+     * again: none of its body was consumed and, for a create, it was not sent in full. A create the
+     * server may have stored is never sent twice; if its response is lost, the client gets a 502.
+     */
+    private int forward(String host, String shortResource, boolean isPut, boolean relayNotFound, byte[] line,
+                        int lineLength, Map<String, String> headers, long bodyLength, InputStream streamFromClient,
+                        OutputStream streamToClient, boolean keepAlive, byte[] reply) throws IOException {
+        RedirectCache redirects = SimpleProxyServer.redirects;
+        long stamp = 0;
+        if (redirects != null && shortResource != null) {
+            if (isPut) {
+                redirects.invalidate(shortResource);
+            } else {
+                stamp = redirects.stamp();
+            }
+        }
+
+        // the backend hop: borrowing a connection until the response is relayed
+        long hopStart = System.nanoTime();
+        BackendPool.Connection server;
+        try {
+            server = SimpleProxyServer.backends.borrow(host);
+        } catch (IOException e) {
+            throw new BackendUnavailableException(host + ": " + e.getMessage());
+        }
+        boolean retried = false;
+
+        // a create is not idempotent: once it was sent in full, it must not be sent again
+        boolean resendable = shortResource != null;
+        while (true) {
+            boolean requestSent = false;
+            boolean responseStarted = false;
 
-            int bytesRead;
             try {
-                boolean printHttpStatus = true;
+                // Send request to URL Server
+                StringBuilder request = new StringBuilder(256);
+                request.append(HttpIO.CRLF);
+                appendHeaders(request, headers);
+                request.append("Connection: keep-alive").append(HttpIO.CRLF).append(HttpIO.CRLF);
+                server.out.write(line, 0, lineLength);
+                server.out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+                HttpIO.copy(streamFromClient, server.out, bodyLength, reply);
+                server.out.flush();
+                requestSent = true;
+
+                ResponseHead head = responseHead;
+                if (!head.read(server.in)) {
+                    throw new EOFException("URL Server closed the connection");
+                }
+                responseStarted = true;
 
-                while ((bytesRead = streamFromServer.read(reply)) != -1) {
-                    if (printHttpStatus) {
-                        String httpStatus = new String(reply, StandardCharsets.UTF_8);
-                        System.out.println(httpStatus.substring(0, httpStatus.indexOf("\n")));
+                long responseLength = head.contentLength();
+                int status = head.status();
+                if (redirects != null && shortResource != null) {
+                    // the PUT is applied now; drop anything a GET cached while it was in flight
+                    if (isPut) {
+                        redirects.invalidate(shortResource);
+                    } else if (status == 307 && head.location() != null) {
+                        redirects.put(shortResource, head.location(), stamp);
                     }
-                    streamToClientBuffer.write(reply, 0, bytesRead);
-                    streamToClientBuffer.flush();
-                    printHttpStatus = false;
                 }
-            } catch (IOException e) {
-                System.out.println("Proxy Error: " + e.getMessage());
-            }
+                boolean serverKeepAlive = responseLength >= 0 && head.isKeepAlive();
+                if (!relayNotFound && status == 404) {
+                    if (responseLength >= 0) {
+                        HttpIO.skip(server.in, responseLength);
+                    }
+                    SimpleProxyServer.backends.release(server, serverKeepAlive);
+                    SimpleProxyServer.backendLatency.recordSince(hopStart);
+                    return NOT_FOUND;
+                }
+                // without a length the response is delimited by closing the client connection
+                keepAlive = keepAlive && responseLength >= 0;
 
-            streamToServerBuffer.close();
-            streamToClientBuffer.close();
-            streamFromServerBuffer.close();
-            streamFromClientBuffer.close();
+                // relayed without a flush: the client stream is flushed once per batch of pipelined requests
+                head.writeTo(streamToClient, keepAlive);
+                if (responseLength >= 0) {
+                    HttpIO.copy(server.in, streamToClient, responseLength, reply);
+                } else {
+                    int bytesRead;
+                    while ((bytesRead = server.in.read(reply)) != -1) {
+                        streamToClient.write(reply, 0, bytesRead);
+                    }
+                }
 
-        } catch (IOException e) {
-            System.out.println(e);
-        } finally {
-            try {
-                if (server != null)
-                    server.close();
-                if (client != null)
-                    client.close();
+                SimpleProxyServer.backends.release(server, serverKeepAlive);
+                SimpleProxyServer.backendLatency.recordSince(hopStart);
+                String code = shortResource;
+                if (code == null && head.location() != null) {
+                    // a create: the code the URL Server picked
+                    code = head.location().substring(1);
+                }
+                SimpleProxyServer.served(isPut ? "PUT" : "GET", code, status, requestStart, host);
+                return keepAlive ? KEEP_ALIVE : CLOSE;
             } catch (IOException e) {
-                e.printStackTrace();
+                SimpleProxyServer.backends.release(server, false);
+                // a pooled connection may have been closed by the URL Server while idle, and so
+                // may the others; retry once on a fresh connection if nothing has been relayed yet
+                boolean resend = !responseStarted && bodyLength == 0 && (resendable || !requestSent);
+                if (server.isReused() && !retried && resend) {
+                    retried = true;
+                    SimpleProxyServer.backends.evictIdle(host);
+                    try {
+                        server = SimpleProxyServer.backends.borrow(host);
+                    } catch (IOException retryError) {
+                        throw new BackendUnavailableException(host + ": " + retryError.getMessage());
+                    }
+                    continue;
+                }
+                if (resend) {
+                    throw new BackendUnavailableException(host + ": " + e.getMessage());
+                }
+                SimpleProxyServer.accessLog.log(AccessLog.WARN, "Proxy Error: " + host + ": " + e.getMessage());
+                if (shortResource == null && requestSent && !responseStarted) {
+                    // the create may have been stored: answer it here rather than create a second code
+                    streamToClient.write(keepAlive ? BAD_GATEWAY_KEEP_ALIVE : BAD_GATEWAY_CLOSE);
+                    SimpleProxyServer.served("PUT", null, 502, requestStart, host);
+                    return keepAlive ? KEEP_ALIVE : CLOSE;
+                }
+                return CLOSE;
+            }
+        }
+    }
+
+    private static void appendHeaders(StringBuilder message, Map<String, String> headers) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (name.equalsIgnoreCase("connection") || name.equalsIgnoreCase("keep-alive")) {
+                continue;
             }
-            String threadName = Thread.currentThread().getName();
-            long threadID = Thread.currentThread().threadId();
+            message.append(name).append(": ").append(header.getValue()).append(HttpIO.CRLF);
+        }
+    }
+
+    private static class BackendUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
 
-            System.out.println("Thread: " + threadName + " with ID " + threadID + " exit successfully.\n");
+        BackendUnavailableException(String message) {
+            super(message);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,36 +1,194 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.nio.file.*;
 
 public class SimpleProxyServer {
 
-    static final int NUM_THREADS = 8;
-    static final ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(NUM_THREADS);
+    // "platform": fixed pool of NUM_THREADS, "virtual": one virtual thread per client connection
+    static final String EXECUTOR_MODE = System.getProperty("proxy.executor", "platform");
+    static final int NUM_THREADS = Integer.getInteger("proxy.threads", 8);
+    static final ExecutorService threadPool = ConnectionExecutor.create(EXECUTOR_MODE, NUM_THREADS);
+    // threads sending the parts of batch requests to their URL Shortener nodes at the same time
+    static final int BATCH_THREADS = Integer.getInteger("proxy.batchThreads", 16);
+    static final ExecutorService batchPool = ConnectionExecutor.create(EXECUTOR_MODE, BATCH_THREADS);
+    static final BatchRouter batches = new BatchRouter(batchPool);
     static final Path path = Paths.get("./hosts.conf");
-    static final Map<String, String> hostMapping = Collections.synchronizedMap(new LinkedHashMap<>());
+    static final AtomicReference<RoutingTable> routing = new AtomicReference<>(
+            new RoutingTable(0, new HashRing(Collections.emptyMap(), HashRing.DEFAULT_VNODES), null));
+
+    // persistent client connections: idle timeout (ms) and maximum requests served per connection
+    static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("proxy.keepAliveTimeout", 5000);
+    static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("proxy.maxRequestsPerConnection", 1000);
+
+    // connections to each URL Shortener: in use at once, kept idle, idle ms before closing (under
+    // shortener.keepAliveTimeout) or checking before reuse, and ms to connect, to wait for a response
+    // (a hung backend then frees its connection and reads fail over) or to wait for a free connection
+    static final int BACKEND_PORT = 8080;
+    static final int BACKEND_MAX_CONNECTIONS = Integer.getInteger("proxy.backendMaxConnections", 64);
+    static final int BACKEND_MAX_IDLE = Integer.getInteger("proxy.backendMaxIdle", 16);
+    static final int BACKEND_IDLE_TIMEOUT = Integer.getInteger("proxy.backendIdleTimeout", 4000);
+    static final int BACKEND_VALIDATE_AFTER = Integer.getInteger("proxy.backendValidateAfter", 1000);
+    static final int BACKEND_CONNECT_TIMEOUT = Integer.getInteger("proxy.backendConnectTimeout", 2000);
+    static final int BACKEND_READ_TIMEOUT = Integer.getInteger("proxy.backendReadTimeout", 10000);
+    static final int BACKEND_BORROW_TIMEOUT = Integer.getInteger("proxy.backendBorrowTimeout", 5000);
+    // short codes whose redirect the proxy answers itself, 0 to always ask the backend, and how long (ms)
+    // an entry is trusted; PUTs through this proxy invalidate at once, PUTs through another only after the TTL
+    static final int REDIRECT_CACHE_ENTRIES = Integer.getInteger("proxy.redirectCacheEntries", 0);
+    static final long REDIRECT_CACHE_TTL = Long.getLong("proxy.redirectCacheTtl", 60000);
+    static RedirectCache redirects;
+    static ResponseTemplates templates;
+
+    // ms between health probes and before one times out; failures in a row that open a host's circuit
+    // breaker, successful probes that close it again, and the longest ms between probes of an open one
+    static final long HEALTH_INTERVAL = Long.getLong("proxy.healthInterval", 1000);
+    static final int HEALTH_TIMEOUT = Integer.getInteger("proxy.healthTimeout", 500);
+    static final int BREAKER_FAILURES = Integer.getInteger("proxy.breakerFailures", 3);
+    static final int BREAKER_RECOVERIES = Integer.getInteger("proxy.breakerRecoveries", 2);
+    static final long BREAKER_MAX_BACKOFF = Long.getLong("proxy.breakerMaxBackoff", 30000);
+    static HealthChecker health;
+
+    // request log: file ("-" for standard output), lowest level recorded (DEBUG adds connection events),
+    // share of successful requests kept, records buffered before new ones are dropped, and the size in
+    // bytes at which the file is rotated and rotated files kept
+    static final String ACCESS_LOG = System.getProperty("proxy.accessLog", "proxy.access.log");
+    static final String LOG_LEVEL = System.getProperty("proxy.logLevel", "INFO");
+    static final double LOG_SAMPLE = Double.parseDouble(System.getProperty("proxy.logSample", "1"));
+    static final int LOG_BUFFER = Integer.getInteger("proxy.logBuffer", 65536);
+    static final long LOG_MAX_BYTES = Long.getLong("proxy.logMaxBytes", 64L << 20);
+    static final int LOG_FILES = Integer.getInteger("proxy.logFiles", 5);
+    static AccessLog accessLog;
+
+    // latency histograms per endpoint and per phase, and gauges, served on the admin port; 0 disables it
+    static final int ADMIN_PORT = Integer.getInteger("proxy.adminPort", 9081);
+    static final Metrics metrics = new Metrics("proxy");
+    static final Histogram getLatency = metrics.histogram("request_us", "endpoint=\"GET\"");
+    static final Histogram putLatency = metrics.histogram("request_us", "endpoint=\"PUT\"");
+    static final Histogram batchGetLatency = metrics.histogram("request_us", "endpoint=\"BATCH-GET\"");
+    static final Histogram batchPutLatency = metrics.histogram("request_us", "endpoint=\"BATCH-PUT\"");
+    static final Histogram parseLatency = metrics.histogram("phase_us", "phase=\"parse\"");
+    static final Histogram cacheLatency = metrics.histogram("phase_us", "phase=\"cache\"");
+    static final Histogram backendLatency = metrics.histogram("phase_us", "phase=\"backend\"");
+
+    // seconds between pool statistics lines, 0 for none
+    static final int POOL_STATS_INTERVAL = Integer.getInteger("proxy.poolStatsInterval", 60);
+    static final BackendPool backends = new BackendPool(BACKEND_PORT, BACKEND_MAX_CONNECTIONS, BACKEND_MAX_IDLE,
+            BACKEND_IDLE_TIMEOUT, BACKEND_VALIDATE_AFTER, BACKEND_CONNECT_TIMEOUT, BACKEND_READ_TIMEOUT,
+            BACKEND_BORROW_TIMEOUT);
 
     public static void main(String[] args) {
 
         int localport = 8081;
         System.out.println("Starting proxy on port " + localport);
 
-        Thread HostWatcherThread = new Thread(new HostWatcher(path, hostMapping));
+        try {
+            accessLog = AccessLog.start(ACCESS_LOG, LOG_BUFFER, LOG_LEVEL, LOG_SAMPLE, LOG_MAX_BYTES, LOG_FILES);
+            System.out.println("Access log: " + accessLog);
+        } catch (IOException e) {
+            System.err.println("Could not open the access log: " + e.getMessage());
+            System.exit(-1);
+        }
+
+        if (REDIRECT_CACHE_ENTRIES > 0) {
+            try {
+                templates = new ResponseTemplates(URLShortener.WEB_ROOT, URLShortener.REDIRECT,
+                        URLShortener.FILE_NOT_FOUND, URLShortener.REDIRECT_RECORDED,
+                        KEEP_ALIVE_TIMEOUT, MAX_REQUESTS_PER_CONNECTION);
+                redirects = new RedirectCache(REDIRECT_CACHE_ENTRIES, REDIRECT_CACHE_TTL);
+                System.out.println("Redirect cache: " + REDIRECT_CACHE_ENTRIES + " entries, ttl "
+                        + REDIRECT_CACHE_TTL + " ms");
+            } catch (IOException e) {
+                System.err.println("Redirect cache disabled, could not load the pages: " + e.getMessage());
+            }
+        }
+
+        HostWatcher hostWatcher = new HostWatcher(path, routing);
+        Thread HostWatcherThread = new Thread(hostWatcher);
         HostWatcherThread.start();
         System.out.println("Launched HostWatcher");
 
+        health = new HealthChecker(hostWatcher, HEALTH_INTERVAL, HEALTH_TIMEOUT, BREAKER_FAILURES,
+                BREAKER_RECOVERIES, BREAKER_MAX_BACKOFF);
+        Thread healthThread = new Thread(health, "health-checker");
+        healthThread.setDaemon(true);
+        healthThread.start();
+
+        if (ADMIN_PORT > 0) {
+            registerGauges(hostWatcher);
+            metrics.serve(ADMIN_PORT);
+        }
+
+        if (POOL_STATS_INTERVAL > 0) {
+            ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "pool-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            stats.scheduleAtFixedRate(() -> System.out.println(backends + " " + health
+                    + (redirects == null ? "" : " " + redirects) + " " + accessLog), POOL_STATS_INTERVAL,
+                    POOL_STATS_INTERVAL, TimeUnit.SECONDS);
+        }
+
         try (ServerSocket ss = new ServerSocket(localport)) {
             // Start listening
             while (true) {
-                threadPool.execute(new RunServer(ss.accept(), hostMapping));
+                threadPool.execute(new RunServer(ss.accept(), routing));
             }
         } catch (IOException e) {
             System.err.println("Could not listen on port " + localport);
             System.exit(-1);
         }
     }
+
+    static void registerGauges(HostWatcher hostWatcher) {
+        metrics.executor("connection_threads", threadPool);
+        metrics.executor("batch_threads", batchPool);
+        metrics.gauge("backend_connections_created", backends::createdCount);
+        metrics.gauge("backend_connections_reused", backends::reusedCount);
+        metrics.gauge("backend_connections_stale", backends::staleCount);
+        metrics.gauge("backend_borrow_waits", backends::waitCount);
+        metrics.gauge("backend_borrow_exhausted", backends::exhaustedCount);
+        metrics.gauge("backend_connect_failures", backends::connectFailureCount);
+        metrics.gauge("breakers_open", health::openCount);
+        if (redirects != null) {
+            metrics.gauge("cache_hits", redirects::hitCount);
+            metrics.gauge("cache_misses", redirects::missCount);
+            metrics.gauge("cache_size", redirects::size);
+        }
+        metrics.gauge("routing_version", () -> routing.get().version);
+        metrics.gauge("routing_migrating", () -> routing.get().isMigrating() ? 1 : 0);
+        metrics.gauge("migration_moves_planned", hostWatcher::movesPlanned);
+        metrics.gauge("migration_moves_done", hostWatcher::movesDone);
+        metrics.gauge("migration_moves_failed", hostWatcher::movesFailed);
+        metrics.gauge("migration_rows", hostWatcher::rowsMigrated);
+        metrics.gauge("access_log_dropped", accessLog::droppedCount);
+    }
+
+    /**
+     * Accounts for a request answered with status: its latency and its access log record.
+     */
+    static void served(String method, String shortCode, int status, long start, String source) {
+        latency(method).recordSince(start);
+        accessLog.access(method, shortCode, status, start, source);
+    }
+
+    private static Histogram latency(String method) {
+        switch (method) {
+            case "PUT":
+                return putLatency;
+            case "BATCH-GET":
+                return batchGetLatency;
+            case "BATCH-PUT":
+                return batchPutLatency;
+            default:
+                return getLatency;
+        }
+    }
 }
 
 
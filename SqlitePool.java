@@ -0,0 +1,207 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SQLite access for one URL Shortener node.
+ *
+ * The database runs in WAL mode, so readers never wait for the writer. Reads borrow one of
+ * several read-only connections; all writes go through the single write connection, which
+ * is what SQLite allows anyway. Every connection keeps its prepared statements, so each
+ * query is parsed once per connection instead of once per request.
+ */
+public class SqlitePool {
+
+    public interface Work<T> {
+        T run(PooledConnection connection) throws SQLException;
+    }
+
+    private final Pool readers;
+    private final Pool writer;
+
+    /**
+     * @param url          JDBC URL of the database file
+     * @param readers      number of read connections
+     * @param synchronous  PRAGMA synchronous for the write connection (FULL, NORMAL, ...)
+     */
+    public SqlitePool(String url, int readers, String synchronous) throws SQLException {
+        // the writer switches the file to WAL before any reader opens it
+        PooledConnection writeConnection = new PooledConnection(DriverManager.getConnection(url));
+        writeConnection.pragma("journal_mode = WAL");
+        writeConnection.pragma("synchronous = " + synchronous);
+        writeConnection.pragma("busy_timeout = 5000");
+        writeConnection.pragma("cache_size = -16000");
+        writeConnection.pragma("temp_store = MEMORY");
+        this.writer = new Pool("write", 1);
+        this.writer.idle.add(writeConnection);
+
+        this.readers = new Pool("read", readers);
+        for (int i = 0; i < readers; i++) {
+            PooledConnection readConnection = new PooledConnection(DriverManager.getConnection(url));
+            readConnection.pragma("busy_timeout = 5000");
+            readConnection.pragma("cache_size = -16000");
+            readConnection.pragma("mmap_size = 268435456");
+            readConnection.pragma("query_only = ON");
+            this.readers.idle.add(readConnection);
+        }
+    }
+
+    public <T> T read(Work<T> work) throws SQLException {
+        return readers.run(work);
+    }
+
+    public <T> T write(Work<T> work) throws SQLException {
+        return writer.run(work);
+    }
+
+    public Pool readPool() {
+        return readers;
+    }
+
+    public Pool writePool() {
+        return writer;
+    }
+
+    /**
+     * Closes the idle connections; call once no work is running.
+     */
+    public void close() throws SQLException {
+        readers.close();
+        writer.close();
+    }
+
+    @Override
+    public String toString() {
+        return readers + " " + writer;
+    }
+
+    /**
+     * A fixed set of connections with wait-time accounting.
+     */
+    public static class Pool {
+        private final String name;
+        private final int size;
+        private final BlockingQueue<PooledConnection> idle;
+
+        private final LongAdder borrows = new LongAdder();
+        private final LongAdder waits = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        Pool(String name, int size) {
+            this.name = name;
+            this.size = size;
+            this.idle = new ArrayBlockingQueue<>(size);
+        }
+
+        <T> T run(Work<T> work) throws SQLException {
+            PooledConnection connection = borrow();
+            try {
+                return work.run(connection);
+            } finally {
+                idle.add(connection);
+            }
+        }
+
+        private PooledConnection borrow() throws SQLException {
+            borrows.increment();
+            PooledConnection connection = idle.poll();
+            if (connection != null) {
+                return connection;
+            }
+            long start = System.nanoTime();
+            try {
+                connection = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a " + name + " connection", e);
+            }
+            long waited = System.nanoTime() - start;
+            waits.increment();
+            waitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            return connection;
+        }
+
+        void close() throws SQLException {
+            PooledConnection connection;
+            while ((connection = idle.poll()) != null) {
+                connection.connection.close();
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int available() {
+            return idle.size();
+        }
+
+        public long borrowCount() {
+            return borrows.sum();
+        }
+
+        public long waitCount() {
+            return waits.sum();
+        }
+
+        public long totalWaitNanos() {
+            return waitNanos.sum();
+        }
+
+        public long maxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[size=%d available=%d borrows=%d waits=%d waitMs=%.1f maxWaitMs=%.1f]",
+                    name, size, available(), borrowCount(), waitCount(),
+                    totalWaitNanos() / 1e6, maxWaitNanos() / 1e6);
+        }
+    }
+
+    /**
+     * A connection and its prepared statements. Only one thread uses it at a time.
+     */
+    public static class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Returns the cached statement for sql, preparing it on first use.
+         * Callers must not close it.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+
+        void pragma(String pragma) throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA " + pragma);
+            }
+        }
+    }
+}
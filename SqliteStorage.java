@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage in the URL table of a SQLite database, through a SqlitePool.
+ */
+public class SqliteStorage implements Storage {
+
+    static final String CREATE_SQL = "CREATE TABLE IF NOT EXISTS URL (shortURL TEXT PRIMARY KEY, longURL TEXT)";
+    static final String SELECT_SQL = "SELECT longURL FROM URL WHERE shortURL = ?";
+    static final String INSERT_SQL = "INSERT OR REPLACE INTO URL (shortURL, longURL) VALUES (?, ?)";
+    static final String INSERT_ABSENT_SQL = "INSERT OR IGNORE INTO URL (shortURL, longURL) VALUES (?, ?)";
+    static final String REPLACE_SQL = "UPDATE URL SET longURL = ? WHERE shortURL = ? AND longURL = ?";
+    static final String DELETE_SQL = "DELETE FROM URL WHERE shortURL = ?";
+    static final String COUNT_SQL = "SELECT COUNT(*) FROM URL";
+    // multi-key reads bind this many codes per statement, repeating the last one to fill it,
+    // so that a single cached statement serves every batch
+    static final int GET_ALL_KEYS = 100;
+    static final String GET_ALL_SQL = "SELECT shortURL, longURL FROM URL WHERE shortURL IN ("
+            + "?, ".repeat(GET_ALL_KEYS - 1) + "?)";
+    // prefix scans walk the primary key index a page at a time
+    static final String FIRST_PAGE_SQL =
+            "SELECT shortURL, longURL FROM URL WHERE shortURL >= ? ORDER BY shortURL LIMIT ?";
+    static final String NEXT_PAGE_SQL =
+            "SELECT shortURL, longURL FROM URL WHERE shortURL > ? ORDER BY shortURL LIMIT ?";
+    static final int SCAN_PAGE_ROWS = 1000;
+
+    private final SqlitePool db;
+
+    public SqliteStorage(SqlitePool db) throws IOException {
+        this.db = db;
+        try {
+            db.write(connection -> connection.prepare(CREATE_SQL).executeUpdate());
+        } catch (SQLException e) {
+            throw new IOException("Could not create the URL table: " + e.getMessage(), e);
+        }
+    }
+
+    public SqlitePool pool() {
+        return db;
+    }
+
+    @Override
+    public String get(String shortURL) throws IOException {
+        try {
+            return db.read(connection -> {
+                PreparedStatement statement = connection.prepare(SELECT_SQL);
+                statement.setString(1, shortURL);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    return resultSet.next() ? resultSet.getString(1) : null;
+                }
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Map<String, String> getAll(Collection<String> shortURLs) throws IOException {
+        if (shortURLs.isEmpty()) {
+            return new HashMap<>();
+        }
+        List<String> keys = new ArrayList<>(shortURLs);
+        try {
+            return db.read(connection -> {
+                PreparedStatement statement = connection.prepare(GET_ALL_SQL);
+                Map<String, String> found = new HashMap<>();
+                for (int from = 0; from < keys.size(); from += GET_ALL_KEYS) {
+                    int to = Math.min(from + GET_ALL_KEYS, keys.size());
+                    for (int i = 0; i < GET_ALL_KEYS; i++) {
+                        statement.setString(i + 1, keys.get(Math.min(from + i, to - 1)));
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            found.put(resultSet.getString(1), resultSet.getString(2));
+                        }
+                    }
+                }
+                return found;
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void put(String shortURL, String longURL) throws IOException {
+        try {
+            db.write(connection -> {
+                PreparedStatement statement = connection.prepare(INSERT_SQL);
+                statement.setString(1, shortURL);
+                statement.setString(2, longURL);
+                return statement.executeUpdate();
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void putAll(Map<String, String> pairs) throws IOException {
+        if (pairs.isEmpty()) {
+            return;
+        }
+        try {
+            db.write(pooled -> {
+                Connection connection = pooled.connection();
+                connection.setAutoCommit(false);
+                try {
+                    PreparedStatement statement = pooled.prepare(INSERT_SQL);
+                    for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                        statement.setString(1, pair.getKey());
+                        statement.setString(2, pair.getValue());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Map<String, String> putAllAbsent(Map<String, String> pairs) throws IOException {
+        if (pairs.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        try {
+            return db.write(pooled -> {
+                Connection connection = pooled.connection();
+                connection.setAutoCommit(false);
+                try {
+                    PreparedStatement statement = pooled.prepare(INSERT_ABSENT_SQL);
+                    List<Map.Entry<String, String>> batch = new ArrayList<>(pairs.entrySet());
+                    for (Map.Entry<String, String> pair : batch) {
+                        statement.setString(1, pair.getKey());
+                        statement.setString(2, pair.getValue());
+                        statement.addBatch();
+                    }
+                    int[] counts = statement.executeBatch();
+                    connection.commit();
+                    Map<String, String> stored = new LinkedHashMap<>();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] > 0) {
+                            stored.put(batch.get(i).getKey(), batch.get(i).getValue());
+                        }
+                    }
+                    return stored;
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Map<String, String> replaceAll(Map<String, String> pairs, Map<String, String> expected)
+            throws IOException {
+        List<Map.Entry<String, String>> batch = new ArrayList<>();
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            if (expected.containsKey(pair.getKey())) {
+                batch.add(pair);
+            }
+        }
+        if (batch.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        try {
+            return db.write(pooled -> {
+                Connection connection = pooled.connection();
+                connection.setAutoCommit(false);
+                try {
+                    PreparedStatement statement = pooled.prepare(REPLACE_SQL);
+                    for (Map.Entry<String, String> pair : batch) {
+                        statement.setString(1, pair.getValue());
+                        statement.setString(2, pair.getKey());
+                        statement.setString(3, expected.get(pair.getKey()));
+                        statement.addBatch();
+                    }
+                    int[] counts = statement.executeBatch();
+                    connection.commit();
+                    Map<String, String> stored = new LinkedHashMap<>();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] > 0) {
+                            stored.put(batch.get(i).getKey(), batch.get(i).getValue());
+                        }
+                    }
+                    return stored;
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean delete(String shortURL) throws IOException {
+        try {
+            return db.write(connection -> {
+                PreparedStatement statement = connection.prepare(DELETE_SQL);
+                statement.setString(1, shortURL);
+                return statement.executeUpdate() > 0;
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int deleteAll(Collection<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        try {
+            return db.write(pooled -> {
+                Connection connection = pooled.connection();
+                connection.setAutoCommit(false);
+                try {
+                    PreparedStatement statement = pooled.prepare(DELETE_SQL);
+                    for (String key : keys) {
+                        statement.setString(1, key);
+                        statement.addBatch();
+                    }
+                    int deleted = 0;
+                    for (int count : statement.executeBatch()) {
+                        deleted += Math.max(count, 0);
+                    }
+                    connection.commit();
+                    return deleted;
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void scan(String prefix, Visitor visitor) throws IOException {
+        String last = null;
+        while (true) {
+            String after = last;
+            List<String[]> page;
+            try {
+                page = db.read(connection -> {
+                    PreparedStatement statement = connection.prepare(after == null ? FIRST_PAGE_SQL : NEXT_PAGE_SQL);
+                    statement.setString(1, after == null ? prefix : after);
+                    statement.setInt(2, SCAN_PAGE_ROWS);
+                    List<String[]> rows = new ArrayList<>(SCAN_PAGE_ROWS);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            rows.add(new String[]{resultSet.getString(1), resultSet.getString(2)});
+                        }
+                    }
+                    return rows;
+                });
+            } catch (SQLException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            // the read connection is back in the pool before the visitor runs
+            for (String[] row : page) {
+                if (!row[0].startsWith(prefix)) {
+                    return;
+                }
+                visitor.visit(row[0], row[1]);
+            }
+            if (page.size() < SCAN_PAGE_ROWS) {
+                return;
+            }
+            last = page.get(page.size() - 1)[0];
+        }
+    }
+
+    @Override
+    public long count() throws IOException {
+        try {
+            return db.read(connection -> {
+                try (ResultSet resultSet = connection.prepare(COUNT_SQL).executeQuery()) {
+                    return resultSet.next() ? resultSet.getLong(1) : 0L;
+                }
+            });
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            db.close();
+        } catch (SQLException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "sqlite " + db;
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Persistent short code to long URL mapping of one URL Shortener node.
+ *
+ * Implementations are thread-safe, and a write is durable once the call returns.
+ * Selected per node with shortener.storage: "sqlite" (SqliteStorage) or "log" (LogStorage).
+ */
+public interface Storage extends Closeable {
+
+    interface Visitor {
+        void visit(String shortURL, String longURL) throws IOException;
+    }
+
+    /**
+     * The long URL stored for shortURL, or null.
+     */
+    String get(String shortURL) throws IOException;
+
+    /**
+     * The long URLs stored for the given short codes, in one read; codes not stored are absent.
+     */
+    Map<String, String> getAll(Collection<String> shortURLs) throws IOException;
+
+    void put(String shortURL, String longURL) throws IOException;
+
+    /**
+     * Stores all pairs as one unit: a single transaction or sync for the whole batch.
+     */
+    void putAll(Map<String, String> pairs) throws IOException;
+
+    /**
+     * Like putAll, but keeps the codes already stored; returns the pairs that were stored.
+     */
+    Map<String, String> putAllAbsent(Map<String, String> pairs) throws IOException;
+
+    /**
+     * Stores, as one unit, each pair whose code is still mapped to its long URL in expected;
+     * codes without an expected value are skipped. Returns the pairs that were stored.
+     */
+    Map<String, String> replaceAll(Map<String, String> pairs, Map<String, String> expected) throws IOException;
+
+    /**
+     * Returns true if shortURL was stored.
+     */
+    boolean delete(String shortURL) throws IOException;
+
+    /**
+     * Deletes the given short codes as one unit and returns how many were stored.
+     */
+    int deleteAll(Collection<String> shortURLs) throws IOException;
+
+    /**
+     * Visits every pair whose short code starts with prefix ("" for all of them).
+     * The visitor may be slow; it is not called under a lock.
+     */
+    void scan(String prefix, Visitor visitor) throws IOException;
+
+    long count() throws IOException;
+}
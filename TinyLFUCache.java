@@ -0,0 +1,390 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent bounded cache replacing LRUCacheSync on the redirect path.
+ *
+ * Reads are a ConcurrentHashMap lookup plus two relaxed writes (a reference bit and a
+ * frequency counter), so they never take a lock. Writes lock one of several segments,
+ * each of which evicts with CLOCK (second chance) over its own entries. A new entry only
+ * gets in if a count-min sketch says it is used more often than the entry it would evict
+ * (TinyLFU admission), so a scan of one-off short codes cannot flush the hot links.
+ *
+ * Capacity is a total weight: one per entry by default, or an estimated size in bytes.
+ */
+public class TinyLFUCache<K, V> {
+
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    static final int MAX_SEGMENTS = 16;
+    // smallest segment worth splitting off when weighing by entries
+    static final int MIN_SEGMENT_ENTRIES = 8;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final Weigher<K, V> weigher;
+    private final FrequencySketch sketch;
+    private final long capacity;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param capacity          maximum total weight
+     * @param weigher           weight of an entry
+     * @param expectedEntries   rough number of entries at capacity, sizes the frequency sketch
+     */
+    public TinyLFUCache(long capacity, Weigher<K, V> weigher, int expectedEntries) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && expectedEntries / (segmentCount * 2) >= MIN_SEGMENT_ENTRIES) {
+            segmentCount *= 2;
+        }
+        this.map = new ConcurrentHashMap<>(Math.max(16, expectedEntries), 0.75f, segmentCount);
+        @SuppressWarnings("unchecked")
+        Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long share = capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0);
+            segments[i] = new Segment<>(share, map, evictions);
+        }
+        this.segments = segments;
+        this.segmentMask = segmentCount - 1;
+        this.sketch = new FrequencySketch(Math.max(expectedEntries, 16));
+    }
+
+    /**
+     * A cache holding up to capacity entries.
+     */
+    public static <K, V> TinyLFUCache<K, V> ofEntries(int capacity) {
+        return new TinyLFUCache<>(capacity, (key, value) -> 1, capacity);
+    }
+
+    /**
+     * A cache of short/long URL pairs bounded by their estimated heap footprint.
+     */
+    public static TinyLFUCache<String, String> ofBytes(long capacityBytes) {
+        int expectedEntries = (int) Math.min(Integer.MAX_VALUE, capacityBytes / stringWeight("", ""));
+        return new TinyLFUCache<>(capacityBytes, TinyLFUCache::stringWeight, Math.max(expectedEntries, 1));
+    }
+
+    /**
+     * Estimated bytes held by one entry: the characters (compact Latin-1 strings) plus
+     * String, node and hash-table overhead.
+     */
+    static int stringWeight(String key, String value) {
+        return key.length() + value.length() + 128;
+    }
+
+    public V getValue(K key) {
+        sketch.increment(key);
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        if (!node.referenced) {
+            node.referenced = true;
+        }
+        hits.increment();
+        return node.value;
+    }
+
+    /**
+     * Inserts or replaces a mapping; a null value removes the key.
+     * A new key may be turned away by the admission filter.
+     */
+    public void putValue(K key, V value) {
+        putValue(key, value, false);
+    }
+
+    /**
+     * Like putValue(key, value), but with admit a new key always gets in: for entries just
+     * written, which the sketch has not seen read yet and would otherwise turn away.
+     */
+    public void putValue(K key, V value, boolean admit) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        Segment<K, V> segment = segmentFor(key);
+        int weight = weigher.weigh(key, value);
+        if (weight > segment.capacity) {
+            return;
+        }
+
+        segment.lock.lock();
+        try {
+            Node<K, V> existing = map.get(key);
+            if (existing != null) {
+                segment.weight += weight - existing.weight;
+                existing.value = value;
+                existing.weight = weight;
+                existing.referenced = true;
+                segment.evictOverflow(existing);
+                return;
+            }
+
+            // admission is decided once, against the first victim, before anything is evicted
+            boolean admitted = admit;
+            while (segment.weight + weight > segment.capacity) {
+                Node<K, V> victim = segment.nextVictim();
+                if (victim == null) {
+                    break;
+                }
+                if (!admitted) {
+                    if (sketch.frequency(key) <= sketch.frequency(victim.key)) {
+                        // the candidate is colder than what it would replace
+                        segment.clock.addLast(victim);
+                        rejections.increment();
+                        return;
+                    }
+                    admitted = true;
+                }
+                segment.evict(victim);
+            }
+
+            Node<K, V> node = new Node<>(key, value, weight);
+            map.put(key, node);
+            segment.clock.addLast(node);
+            segment.weight += weight;
+            segment.count++;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Node<K, V> node = map.remove(key);
+            if (node != null) {
+                segment.unlink(node);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public long rejectionCount() {
+        return rejections.sum();
+    }
+
+    public double hitRate() {
+        long hitCount = hitCount();
+        long total = hitCount + missCount();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d hits=%d misses=%d hitRate=%.3f evictions=%d rejections=%d",
+                size(), hitCount(), missCount(), hitRate(), evictionCount(), rejectionCount());
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        return segments[spread(key.hashCode()) & segmentMask];
+    }
+
+    static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        volatile V value;
+        volatile boolean referenced;
+        int weight;     // guarded by the segment lock
+        boolean removed;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Segment<K, V> {
+        final ReentrantLock lock = new ReentrantLock();
+        final long capacity;
+        final ConcurrentHashMap<K, Node<K, V>> map;
+        final LongAdder evictions;
+        // CLOCK ring: the head is the hand; removed nodes are skipped lazily
+        final ArrayDeque<Node<K, V>> clock = new ArrayDeque<>();
+        long weight = 0;
+        int count = 0;
+
+        Segment(long capacity, ConcurrentHashMap<K, Node<K, V>> map, LongAdder evictions) {
+            this.capacity = capacity;
+            this.map = map;
+            this.evictions = evictions;
+        }
+
+        /**
+         * Advances the clock hand to the first entry not referenced since the last sweep
+         * and takes it off the ring. Returns null if the segment is empty.
+         */
+        Node<K, V> nextVictim() {
+            Node<K, V> node;
+            while ((node = clock.pollFirst()) != null) {
+                if (node.removed) {
+                    continue;
+                }
+                if (node.referenced) {
+                    node.referenced = false;
+                    clock.addLast(node);
+                    continue;
+                }
+                return node;
+            }
+            return null;
+        }
+
+        void evictOverflow(Node<K, V> keep) {
+            while (weight > capacity) {
+                Node<K, V> victim = nextVictim();
+                if (victim == null) {
+                    return;
+                }
+                if (victim == keep) {
+                    clock.addLast(victim);
+                    if (count == 1) {
+                        return;
+                    }
+                    continue;
+                }
+                evict(victim);
+            }
+        }
+
+        void evict(Node<K, V> victim) {
+            map.remove(victim.key, victim);
+            victim.removed = true;
+            weight -= victim.weight;
+            count--;
+            evictions.increment();
+        }
+
+        void unlink(Node<K, V> node) {
+            node.removed = true;
+            weight -= node.weight;
+            count--;
+            if (clock.size() > 2 * count + 16) {
+                clock.removeIf(n -> n.removed);
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four per key, halved every 10 * entries increments
+     * so old popularity fades. Counters are updated with CAS and never block.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final AtomicLongArray table;
+        private final int tableMask;
+        private final int sampleSize;
+        private final AtomicInteger additions = new AtomicInteger();
+
+        FrequencySketch(int expectedEntries) {
+            int size = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+            this.table = new AtomicLongArray(size);
+            this.tableMask = size - 1;
+            this.sampleSize = 10 * Math.max(expectedEntries, 16);
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                long h = indexHash(hash, i);
+                long counters = table.get((int) h & tableMask);
+                frequency = Math.min(frequency, (int) ((counters >>> offset(h)) & 15L));
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                long h = indexHash(hash, i);
+                added |= incrementAt((int) h & tableMask, offset(h));
+            }
+            if (added && additions.incrementAndGet() >= sampleSize) {
+                reset();
+            }
+        }
+
+        private boolean incrementAt(int index, int offset) {
+            long mask = 15L << offset;
+            while (true) {
+                long counters = table.get(index);
+                if ((counters & mask) == mask) {
+                    return false;
+                }
+                if (table.compareAndSet(index, counters, counters + (1L << offset))) {
+                    return true;
+                }
+            }
+        }
+
+        private void reset() {
+            int current = additions.get();
+            if (current < sampleSize || !additions.compareAndSet(current, current / 2)) {
+                return;
+            }
+            for (int i = 0; i < table.length(); i++) {
+                long counters;
+                do {
+                    counters = table.get(i);
+                } while (!table.compareAndSet(i, counters, (counters >>> 1) & RESET_MASK));
+            }
+        }
+
+        private static long indexHash(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return h + (h >>> 32);
+        }
+
+        // one of the 16 nibbles of a table slot
+        private static int offset(long h) {
+            return (int) ((h >>> 40) & 15L) << 2;
+        }
+    }
+}
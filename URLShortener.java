@@ -1,13 +1,16 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
 import java.sql.*;
-import java.util.Date;
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class URLShortener {
 
@@ -19,43 +22,162 @@ public class URLShortener {
     static final String REDIRECT = "redirect.html";
     static final String NOT_FOUND = "notfound.html";
     static String DATABASE;
-    // port to listen connection
-    static final int PORT = 8080;
-
-    // verbose mode
-    static final boolean verbose = false;
-
-    static final int NUM_THREADS = 8;
-    static final ThreadPoolExecutor threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(NUM_THREADS);
-    static final int CACHE_CAPACITY = 100;
+    static ResponseTemplates templates;
+    // port to listen connection, and the ports for shard migration and for receiving replication
+    // (0: not a replica); several nodes can run on one machine with different ports and shortener.dataDir
+    static final int PORT = Integer.getInteger("shortener.port", Node.DEFAULT_PORT);
+    static final int MIGRATION_PORT = Integer.getInteger("shortener.migrationPort", MigrationProtocol.PORT);
+    static final int REPLICATION_PORT = Integer.getInteger("shortener.replicationPort", 0);
+    static final String DATA_DIR = System.getProperty("shortener.dataDir", "/virtual");
+
+    // replica ("host:port" of its replication port) that every write is shipped to; in sync mode a PUT
+    // is acknowledged once the replica has it, or after REPLICATION_TIMEOUT_MS if it is slow
+    static final String REPLICATE_TO = System.getProperty("shortener.replicateTo");
+    static final boolean REPLICATION_SYNC = !"false".equals(System.getProperty("shortener.replicationSync"));
+    static final long REPLICATION_TIMEOUT_MS = Long.getLong("shortener.replicationTimeoutMs", 1000);
+    static final int REPLICATION_BACKLOG = Integer.getInteger("shortener.replicationBacklog", 65536);
+
+    // request log: file ("-" for standard output, default <name>.access.log), lowest level recorded
+    // (DEBUG adds connection events), share of successful requests kept, records buffered before
+    // new ones are dropped, and the size in bytes at which the file is rotated and rotated files kept
+    static final String ACCESS_LOG = System.getProperty("shortener.accessLog");
+    static final String LOG_LEVEL = System.getProperty("shortener.logLevel", "INFO");
+    static final double LOG_SAMPLE = Double.parseDouble(System.getProperty("shortener.logSample", "1"));
+    static final int LOG_BUFFER = Integer.getInteger("shortener.logBuffer", 65536);
+    static final long LOG_MAX_BYTES = Long.getLong("shortener.logMaxBytes", 64L << 20);
+    static final int LOG_FILES = Integer.getInteger("shortener.logFiles", 5);
+    static AccessLog accessLog;
+
+    // latency histograms per endpoint and per phase, and gauges, served on the admin port; 0 disables it
+    static final int ADMIN_PORT = Integer.getInteger("shortener.adminPort", 9080);
+    static final Metrics metrics = new Metrics("shortener");
+    static final Histogram getLatency = metrics.histogram("request_us", "endpoint=\"GET\"");
+    static final Histogram putLatency = metrics.histogram("request_us", "endpoint=\"PUT\"");
+    static final Histogram batchGetLatency = metrics.histogram("request_us", "endpoint=\"BATCH-GET\"");
+    static final Histogram batchPutLatency = metrics.histogram("request_us", "endpoint=\"BATCH-PUT\"");
+    static final Histogram parseLatency = metrics.histogram("phase_us", "phase=\"parse\"");
+    static final Histogram cacheLatency = metrics.histogram("phase_us", "phase=\"cache\"");
+    static final Histogram dbLatency = metrics.histogram("phase_us", "phase=\"db\"");
+    static final Histogram commitLatency = metrics.histogram("phase_us", "phase=\"commit\"");
+
+    // "platform": fixed pool of NUM_THREADS handlers, "virtual": one virtual thread per connection
+    static final String EXECUTOR_MODE = System.getProperty("shortener.executor", "platform");
+    static final int NUM_THREADS = Integer.getInteger("shortener.threads", 8);
+    static final ExecutorService threadPool = ConnectionExecutor.create(EXECUTOR_MODE, NUM_THREADS);
+    // redirect cache bound: entry count, or estimated bytes when shortener.cacheBytes is set
+    static final int CACHE_CAPACITY = Integer.getInteger("shortener.cacheEntries", 100);
+    static final long CACHE_BYTES = Long.getLong("shortener.cacheBytes", 0);
+
+    // persistent connections: idle timeout (ms) and maximum requests served per connection
+    static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("shortener.keepAliveTimeout", 5000);
+    static final int MAX_REQUESTS_PER_CONNECTION = Integer.getInteger("shortener.maxRequestsPerConnection", 1000);
+
+    // "blocking": one pooled thread per connection, "nio": selector event loops (see NioServer)
+    static final String SERVER_MODE = System.getProperty("shortener.mode", "blocking");
+    static final int EVENT_LOOPS = Integer.getInteger("shortener.eventLoops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    static final int DB_WORKERS = Integer.getInteger("shortener.dbWorkers", NUM_THREADS);
+    // platform threads that run JDBC calls for the NIO loops and for virtual threads
+    static final ExecutorService dbPool = Executors.newFixedThreadPool(DB_WORKERS);
+
+    // "sqlite": URL table in <dataDir>/<host>.sqlite, "log": LogStorage in <dataDir>/<host>.log
+    static final String STORAGE = System.getProperty("shortener.storage", "sqlite");
+    static final int LOG_SEGMENT_BYTES = Integer.getInteger("shortener.logSegmentBytes", 64 << 20);
+    // SQLite read connections (writes share a single connection) and PRAGMA synchronous for writes
+    static final int DB_READERS = Integer.getInteger("shortener.dbReaders", 4);
+    static final String DB_SYNCHRONOUS = System.getProperty("shortener.dbSynchronous", "FULL");
+    // PUTs are committed in batches of up to COMMIT_BATCH, waiting at most COMMIT_LINGER_MS for more
+    static final int COMMIT_BATCH = Integer.getInteger("shortener.commitBatch", 512);
+    static final long COMMIT_LINGER_MS = Long.getLong("shortener.commitLingerMs", 2);
+    static final int COMMIT_QUEUE = Integer.getInteger("shortener.commitQueue", 8192);
+    static GroupCommitter committer;
+
+    // lookups of codes that do not exist are answered by a Bloom filter and a negative cache
+    static final double BLOOM_FALSE_POSITIVE_RATE =
+            Double.parseDouble(System.getProperty("shortener.bloomFalsePositiveRate", "0.01"));
+    static final int NEGATIVE_CACHE_ENTRIES = Integer.getInteger("shortener.negativeCacheEntries", 10000);
+    static MissFilter missFilter;
+
+    // creates (PUT /?long=LONG): this node's slot in the ID space, unique among the nodes, counter
+    // values leased per sync of <dataDir>/<host>.ids, and whether a long URL already stored here
+    // gets its existing code back
+    static final int NODE_ID = Integer.getInteger("shortener.nodeId", 0);
+    static final int ID_BLOCK = Integer.getInteger("shortener.idBlock", 10000);
+    static final boolean DEDUP = "true".equals(System.getProperty("shortener.dedup"));
+    // sent by the proxy with a create: the node it is for and the ring, so codes land in its shard
+    static final String SHARD_OWNER_HEADER = "X-Shard-Owner";
+    static final String SHARD_RING_HEADER = "X-Shard-Ring";
+    static IdAllocator ids;
+    static DedupIndex dedup;
+    private static volatile HashRing shardRing;
 
     public static void main(String[] args) {
 
-        LRUCacheSync<String, String> LRUCache = new LRUCacheSync<>(CACHE_CAPACITY);
+        TinyLFUCache<String, String> cache = CACHE_BYTES > 0
+                ? TinyLFUCache.ofBytes(CACHE_BYTES)
+                : TinyLFUCache.ofEntries(CACHE_CAPACITY);
 
-        DATABASE = "jdbc:sqlite:/virtual/" + args[0] + ".sqlite";
+        DATABASE = "jdbc:sqlite:" + DATA_DIR + "/" + args[0] + ".sqlite";
 
         try {
-            ServerSocket serverConnect = new ServerSocket(PORT);
-            System.out.println("Server started.\nListening for connections on port : " + PORT + " ...");
+            accessLog = AccessLog.start(ACCESS_LOG != null ? ACCESS_LOG : args[0] + ".access.log", LOG_BUFFER,
+                    LOG_LEVEL, LOG_SAMPLE, LOG_MAX_BYTES, LOG_FILES);
+            System.out.println("Access log: " + accessLog);
+            templates = new ResponseTemplates(WEB_ROOT, REDIRECT, FILE_NOT_FOUND, REDIRECT_RECORDED,
+                    KEEP_ALIVE_TIMEOUT, MAX_REQUESTS_PER_CONNECTION);
+
+            Storage local = openStorage(args[0]);
+            Storage storage = local;
+            if (REPLICATE_TO != null) {
+                Replicator replicator = new Replicator(REPLICATE_TO, storage, REPLICATION_BACKLOG,
+                        REPLICATION_SYNC, REPLICATION_TIMEOUT_MS);
+                storage = new ReplicatedStorage(storage, replicator);
+                Thread replicationThread = new Thread(replicator, "replication");
+                replicationThread.setDaemon(true);
+                replicationThread.start();
+            }
+            System.out.println("Storage: " + STORAGE + (REPLICATE_TO == null ? "" : ", replicated to " + REPLICATE_TO
+                    + (REPLICATION_SYNC ? " (sync)" : " (async)")));
+            committer = new GroupCommitter(storage, COMMIT_BATCH, COMMIT_LINGER_MS, COMMIT_QUEUE);
+            missFilter = new MissFilter(storage, BLOOM_FALSE_POSITIVE_RATE, NEGATIVE_CACHE_ENTRIES);
+            missFilter.rebuild();
+            ids = new IdAllocator(NODE_ID, ID_BLOCK, Paths.get(DATA_DIR, args[0] + ".ids"));
+            System.out.println("Short code allocation: " + ids);
+            if (DEDUP) {
+                dedup = new DedupIndex();
+                dedup.rebuild(storage);
+            }
 
-            Connection dbConnect = DriverManager.getConnection(DATABASE);
-            Thread dataMigrateThread = new Thread(() -> {
-                try {
-                    migrateData(dbConnect);
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
-            });
+            MigrationServer migrationServer = new MigrationServer(MIGRATION_PORT, storage, missFilter, cache);
+            Thread dataMigrateThread = new Thread(migrationServer, "migration");
             dataMigrateThread.start();
 
+            if (ADMIN_PORT > 0) {
+                registerGauges(cache, migrationServer, local);
+                metrics.serve(ADMIN_PORT);
+            }
+
+            if (REPLICATION_PORT > 0) {
+                Thread replicaThread = new Thread(new ReplicaServer(REPLICATION_PORT, storage, missFilter, cache,
+                        Paths.get(DATA_DIR, args[0] + ".replication")), "replica");
+                replicaThread.start();
+            }
+
+            if (SERVER_MODE.equals("nio")) {
+                new NioServer(PORT, EVENT_LOOPS, dbPool, storage, cache).serve();
+                return;
+            }
+
+            ServerSocket serverConnect = new ServerSocket(PORT);
+            System.out.println("Server started.\nListening for connections on port : " + PORT + " ...");
+
             // we listen until user halts server execution
             while (true) {
-                if (verbose) {
-                    System.out.println("Connection opened. (" + new Date() + ")");
-                }
                 Socket clientConnect = serverConnect.accept();
-                threadPool.execute(new Handler(clientConnect, dbConnect, LRUCache));
+                if (accessLog.isEnabled(AccessLog.DEBUG)) {
+                    accessLog.log(AccessLog.DEBUG, "Connection opened from " + clientConnect.getRemoteSocketAddress());
+                }
+                threadPool.execute(new Handler(clientConnect, storage, cache));
             }
         } catch (IOException e) {
             System.err.println("Server Connection error : " + e.getMessage());
@@ -64,214 +186,445 @@ public class URLShortener {
         }
     }
 
-    private static String find(String shortURL, Connection dbConnect) throws SQLException {
+    static void registerGauges(TinyLFUCache<String, String> cache, MigrationServer migrationServer, Storage local) {
+        metrics.gauge("cache_hits", cache::hitCount);
+        metrics.gauge("cache_misses", cache::missCount);
+        metrics.gauge("cache_evictions", cache::evictionCount);
+        metrics.gauge("cache_size", cache::size);
+        metrics.executor("connection_threads", threadPool);
+        metrics.executor("db_threads", dbPool);
+        metrics.gauge("commit_queued", committer::queued);
+        metrics.gauge("commit_batches", committer::batchCount);
+        metrics.gauge("commit_writes", committer::writeCount);
+        metrics.gauge("commit_failures", committer::failureCount);
+        metrics.gauge("migration_in_progress", migrationServer::inProgress);
+        metrics.gauge("migration_operations", migrationServer::operationCount);
+        metrics.gauge("migration_rows_exported", migrationServer::rowsExported);
+        metrics.gauge("migration_rows_imported", migrationServer::rowsImported);
+        metrics.gauge("migration_rows_deleted", migrationServer::rowsDeleted);
+        metrics.gauge("access_log_dropped", accessLog::droppedCount);
+        metrics.gauge("ids_allocated", ids::allocatedCount);
+        metrics.gauge("ids_skipped", ids::skippedCount);
+        metrics.gauge("id_leases", ids::leaseCount);
+        if (dedup != null) {
+            metrics.gauge("dedup_entries", dedup::size);
+            metrics.gauge("dedup_hits", dedup::hitCount);
+        }
+        if (local instanceof SqliteStorage) {
+            SqlitePool pool = ((SqliteStorage) local).pool();
+            registerPoolGauges("db_read", pool.readPool());
+            registerPoolGauges("db_write", pool.writePool());
+        }
+    }
 
-        PreparedStatement statement = dbConnect.prepareStatement("SELECT longURL FROM URL WHERE shortURL = ?");
-        statement.setString(1, shortURL);
-        return statement.executeQuery().getString("longURL");
+    private static void registerPoolGauges(String name, SqlitePool.Pool pool) {
+        metrics.gauge(name + "_available", pool::available);
+        metrics.gauge(name + "_borrows", pool::borrowCount);
+        metrics.gauge(name + "_waits", pool::waitCount);
+        metrics.gauge(name + "_wait_us_total", () -> pool.totalWaitNanos() / 1000);
+        metrics.gauge(name + "_wait_us_max", () -> pool.maxWaitNanos() / 1000);
+    }
 
+    /**
+     * Accounts for a request answered with status: its latency and its access log record.
+     */
+    static void served(String method, String shortCode, int status, long start, String source) {
+        latency(method).recordSince(start);
+        accessLog.access(method, shortCode, status, start, source);
     }
 
-    private static void save(String shortURL, String longURL, Connection dbConnect) throws SQLException {
+    private static Histogram latency(String method) {
+        switch (method) {
+            case "PUT":
+                return putLatency;
+            case "BATCH-GET":
+                return batchGetLatency;
+            case "BATCH-PUT":
+                return batchPutLatency;
+            default:
+                return getLatency;
+        }
+    }
 
-        PreparedStatement statement = dbConnect
-                .prepareStatement("INSERT OR REPLACE INTO URL (shortURL, longURL) VALUES (?, ?)");
-        statement.setString(1, shortURL);
-        statement.setString(2, longURL);
-        statement.executeUpdate();
+    static Storage openStorage(String host) throws IOException, SQLException {
+        switch (STORAGE) {
+            case "sqlite":
+                return new SqliteStorage(new SqlitePool(DATABASE, DB_READERS, DB_SYNCHRONOUS));
+            case "log":
+                return new LogStorage(new File(DATA_DIR, host + ".log"), LOG_SEGMENT_BYTES);
+            default:
+                throw new IllegalArgumentException("Unknown shortener.storage: " + STORAGE);
+        }
     }
 
-    private static byte[] readFileData(File file, int fileLength) throws IOException {
-        FileInputStream fileIn = null;
-        byte[] fileData = new byte[fileLength];
+    /**
+     * Cache-miss path shared by both server modes: skips storage for codes known to be
+     * missing, otherwise reads the long URL and remembers the answer.
+     */
+    static String lookup(String shortURL, Storage storage, TinyLFUCache<String, String> cache)
+            throws IOException {
+        if (missFilter.isKnownMissing(shortURL)) {
+            return null;
+        }
+        long stamp = missFilter.stamp();
+        long start = System.nanoTime();
+        String longURL = onDbThread(() -> storage.get(shortURL));
+        dbLatency.recordSince(start);
+        if (longURL == null) {
+            missFilter.recordMissing(shortURL, stamp);
+        } else {
+            cache.putValue(shortURL, longURL);
+        }
+        return longURL;
+    }
 
+    /**
+     * Makes the pair readable through the cache right away, then returns once its group commit
+     * is durable.
+     */
+    static void record(String shortURL, String longURL, TinyLFUCache<String, String> cache)
+            throws IOException {
         try {
-            fileIn = new FileInputStream(file);
-            fileIn.read(fileData);
-        } finally {
-            if (fileIn != null)
-                fileIn.close();
+            recordAsync(shortURL, longURL, cache).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the commit", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         }
+    }
 
-        return fileData;
+    static CompletableFuture<Void> recordAsync(String shortURL, String longURL,
+                                               TinyLFUCache<String, String> cache) {
+        // Update cache with the new (shortURL, longURL) pair
+        cache.putValue(shortURL, longURL, true);
+        long start = System.nanoTime();
+        return committer.submit(shortURL, longURL).whenComplete((ignored, e) -> {
+            commitLatency.recordSince(start);
+            if (e != null) {
+                // not stored, so stop serving it
+                cache.remove(shortURL);
+            } else {
+                // only now can a lookup or a filter rebuild find the row
+                missFilter.added(shortURL);
+            }
+        });
     }
 
-    static void migrateData(Connection dbConnect) throws SQLException {
+    /**
+     * Creates a short URL for longURL and completes with its code once it is durable, or at once
+     * with the existing code when deduplicating finds one. New codes are not stored yet and, when
+     * the proxy names this node's shard in headers, land in it.
+     */
+    static CompletableFuture<String> createAsync(String longURL, Map<String, String> headers, Storage storage,
+                                                 TinyLFUCache<String, String> cache) {
         try {
-            ServerSocket serverConnect = new ServerSocket(65535);
-            while (true) {
-                // accept connection from client
-                // (socket that connects to the server)
-                Socket clientConnect = serverConnect.accept();
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientConnect.getInputStream()));
-                String line = in.readLine();
-                String[] tokens = line.split(" ");
-                if (Objects.equals(tokens[0], "GET")) {
-                    PreparedStatement statement = dbConnect
-                            .prepareStatement("SELECT longURL, shortURL FROM URL WHERE shortURL LIKE ?");
-                    statement.setString(1, tokens[1] + "%");
-                    StringBuilder result = new StringBuilder();
-                    ResultSet resultSet = statement.executeQuery();
-                    while (resultSet.next()) {
-                        result.append(resultSet.getString("shortURL")).append(" ")
-                                .append(resultSet.getString("longURL")).append("\n");
-                    }
-                    BufferedOutputStream dataOut = new BufferedOutputStream(clientConnect.getOutputStream());
-                    dataOut.write(result.toString().getBytes());
-                    dataOut.flush();
-                    dataOut.close();
-                } else if (Objects.equals(tokens[0], "POST")) {
-                    String data;
-                    try {
-                        while ((data = in.readLine()) != null) {
-                            String[] dataTokens = data.split(" ");
-                            String shortURL = dataTokens[0];
-                            String longURL = dataTokens[1];
-                            save(shortURL, longURL, dbConnect);
-                        }
-                    } catch (Exception ignore) {
-                    }
-                } else if (Objects.equals(tokens[0], "DELETE")) {
-                    String shortURLStart = tokens[1];
-                    PreparedStatement statement = dbConnect.prepareStatement("DELETE FROM URL WHERE shortURL LIKE ?");
-                    statement.setString(1, shortURLStart);
-                    statement.executeUpdate();
+            DedupIndex.Reader reader = code -> read(code, storage, cache);
+            if (dedup != null) {
+                String existing = dedup.find(longURL, reader);
+                if (existing != null) {
+                    return CompletableFuture.completedFuture(existing);
                 }
-                clientConnect.close();
             }
+            String owner = headers.get(SHARD_OWNER_HEADER);
+            String spec = headers.get(SHARD_RING_HEADER);
+            HashRing ring = owner != null && spec != null ? shardRing(spec) : null;
+            String code = ids.allocate(candidate -> (ring == null || owner.equals(ring.route(candidate)))
+                    && read(candidate, storage, cache) == null);
+            if (dedup != null) {
+                String existing = dedup.claim(longURL, code, reader);
+                if (!existing.equals(code)) {
+                    return CompletableFuture.completedFuture(existing);
+                }
+            }
+            return recordAsync(code, longURL, cache).thenApply(ignored -> code);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
+    static String create(String longURL, Map<String, String> headers, Storage storage,
+                         TinyLFUCache<String, String> cache) throws IOException {
+        try {
+            return createAsync(longURL, headers, storage, cache).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the commit", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static String read(String shortURL, Storage storage, TinyLFUCache<String, String> cache)
+            throws IOException {
+        String longURL = cache.getValue(shortURL);
+        return longURL != null ? longURL : lookup(shortURL, storage, cache);
+    }
+
+    /**
+     * The ring the proxy sent, parsed once per routing change.
+     */
+    private static HashRing shardRing(String spec) {
+        HashRing ring = shardRing;
+        if (ring == null || !ring.toSpec().equals(spec)) {
+            ring = HashRing.fromSpec(spec);
+            shardRing = ring;
+        }
+        return ring;
+    }
+
+    /**
+     * Answers the lines of a batch (see Batch). Gets take one pass over the cache and read
+     * whatever the miss filter cannot rule out in a single storage call. Puts are queued to the
+     * group committer together, so they share its transactions, and complete once all are durable.
+     */
+    static CompletableFuture<String[]> batchAsync(boolean isPut, List<String> lines, Storage storage,
+                                                  TinyLFUCache<String, String> cache) {
+        String[] results = new String[lines.size()];
+        if (isPut) {
+            List<CompletableFuture<Void>> writes = new ArrayList<>(lines.size());
+            for (int i = 0; i < results.length; i++) {
+                String[] pair = Batch.pair(lines.get(i));
+                if (pair == null) {
+                    results[i] = Batch.BAD_LINE;
+                    continue;
+                }
+                int index = i;
+                writes.add(recordAsync(pair[0], pair[1], cache).whenComplete((ignored, e) ->
+                        results[index] = e == null ? Batch.STORED : Batch.FAILED));
+            }
+            return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]))
+                    .handle((ignored, e) -> results);
+        }
+
+        List<String> misses = new ArrayList<>();
+        long cacheStart = System.nanoTime();
+        for (int i = 0; i < results.length; i++) {
+            String shortURL = lines.get(i);
+            String longURL = shortURL.isEmpty() ? null : cache.getValue(shortURL);
+            if (shortURL.isEmpty()) {
+                results[i] = Batch.BAD_LINE;
+            } else if (longURL != null) {
+                results[i] = Batch.FOUND + longURL;
+            } else if (missFilter.isKnownMissing(shortURL)) {
+                results[i] = Batch.NOT_FOUND;
+            } else {
+                misses.add(shortURL);
+            }
+        }
+        cacheLatency.recordSince(cacheStart);
+        if (misses.isEmpty()) {
+            return CompletableFuture.completedFuture(results);
+        }
+        try {
+            long stamp = missFilter.stamp();
+            long start = System.nanoTime();
+            Map<String, String> found = onDbThread(() -> storage.getAll(misses));
+            dbLatency.recordSince(start);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) {
+                    continue;
+                }
+                String shortURL = lines.get(i);
+                String longURL = found.get(shortURL);
+                if (longURL == null) {
+                    missFilter.recordMissing(shortURL, stamp);
+                    results[i] = Batch.NOT_FOUND;
+                } else {
+                    cache.putValue(shortURL, longURL);
+                    results[i] = Batch.FOUND + longURL;
+                }
+            }
+            return CompletableFuture.completedFuture(results);
         } catch (IOException e) {
-            e.printStackTrace();
+            return CompletableFuture.failedFuture(e);
         }
     }
 
-    public static class Handler extends Thread {
-        Connection dbConnect;
-        Socket clientConnect;
-        BufferedReader in = null;
-        PrintWriter out = null;
-        BufferedOutputStream dataOut = null;
+    static String[] batch(boolean isPut, List<String> lines, Storage storage, TinyLFUCache<String, String> cache)
+            throws IOException {
+        try {
+            return batchAsync(isPut, lines, storage, cache).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the commit", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
 
-        LRUCacheSync<String, String> LRUCache;
+    interface StorageCall<T> {
+        T call() throws IOException;
+    }
 
-        Handler(Socket clientConnect, Connection dbConnect, LRUCacheSync<String, String> LRUCache) {
-            this.LRUCache = LRUCache;
-            this.clientConnect = clientConnect;
-            this.dbConnect = dbConnect;
+    /**
+     * Runs a JDBC call. The SQLite driver blocks inside synchronized methods and native code,
+     * which would pin the carrier of a virtual thread, so virtual threads hand the call to
+     * dbPool and park until it completes.
+     */
+    static <T> T onDbThread(StorageCall<T> call) throws IOException {
+        if (!Thread.currentThread().isVirtual()) {
+            return call.call();
         }
+        try {
+            return dbPool.submit(call::call).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for storage", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
 
-        public void run() {
-            try {
-                InputStream streamFromClient = clientConnect.getInputStream();
-                OutputStream streamToClient = clientConnect.getOutputStream();
-                in = new BufferedReader(new InputStreamReader(streamFromClient));
-                out = new PrintWriter(streamToClient);
-                dataOut = new BufferedOutputStream(streamToClient);
+    static byte[] redirectResponse(String longResource, boolean keepAlive) {
+        return templates.redirect(longResource, keepAlive);
+    }
 
-                String input = in.readLine();
+    static byte[] notFoundResponse(boolean keepAlive) {
+        return templates.notFound(keepAlive);
+    }
 
-                if (verbose) {
-                    System.out.println("first line: " + input);
-                }
-                System.out.println("\nInput: " + input);
+    static byte[] recordedResponse(boolean keepAlive) {
+        return templates.recorded(keepAlive);
+    }
 
-                Pattern pput = Pattern.compile("^PUT\\s+/\\?short=(\\S+)&long=(\\S+)\\s+(\\S+)$");
-                Matcher mput = pput.matcher(input.toString());
-                if (mput.matches()) {
+    static byte[] createdResponse(String shortCode, boolean keepAlive) {
+        return templates.created(shortCode, keepAlive);
+    }
 
-                    String shortResource = mput.group(1);
-                    String longResource = mput.group(2);
-                    String httpVersion = mput.group(3);
-                    System.out.println("shortResource: " + shortResource);
-                    System.out.println("longResource: " + shortResource);
+    public static class Handler extends Thread {
+        Storage storage;
+        Socket clientConnect;
+        BufferedInputStream in = null;
+        BufferedOutputStream dataOut = null;
 
-                    save(shortResource, longResource, this.dbConnect);
+        TinyLFUCache<String, String> cache;
 
-                    // Update cache with the new (shortResource, longResource) pair
-                    if (!Objects.equals(this.LRUCache.getValue(shortResource), longResource)) {
-                        this.LRUCache.putValue(shortResource, longResource);
+        Handler(Socket clientConnect, Storage storage, TinyLFUCache<String, String> cache) {
+            this.cache = cache;
+            this.clientConnect = clientConnect;
+            this.storage = storage;
+        }
+
+        public void run() {
+            try {
+                clientConnect.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+                in = new BufferedInputStream(clientConnect.getInputStream());
+                dataOut = new BufferedOutputStream(clientConnect.getOutputStream());
+
+                byte[] line = new byte[HttpIO.MAX_LINE_LENGTH];
+                RequestLine requestLine = new RequestLine();
+                int requestCount = 0;
+                boolean keepAlive = true;
+                while (keepAlive) {
+                    int length;
+                    try {
+                        length = HttpIO.readLine(in, line);
+                    } catch (SocketTimeoutException e) {
+                        // idle connection
+                        break;
+                    }
+                    if (length < 0) {
+                        break;
+                    }
+                    if (length == 0) {
+                        // stray CRLF between pipelined requests
+                        continue;
                     }
 
-                    File file = new File(WEB_ROOT, REDIRECT_RECORDED);
-                    int fileLength = (int) file.length();
-                    String contentMimeType = "text/html";
-                    // read content to return to client
-                    byte[] fileData = readFileData(file, fileLength);
+                    long start = System.nanoTime();
+                    boolean valid = requestLine.parse(line, 0, length);
+                    Map<String, String> headers = HttpIO.readHeaders(in);
+                    long bodyLength = HttpIO.contentLength(headers);
+                    parseLatency.recordSince(start);
+                    requestCount++;
 
-                    out.println("HTTP/1.1 200 OK");
-                    setHttpResponseHeaders(fileLength, contentMimeType, fileData);
-                } else {
-                    Pattern pget = Pattern.compile("^(\\S+)\\s+/(\\S+)\\s+(\\S+)$");
-                    Matcher mget = pget.matcher(input.toString());
-                    if (mget.matches()) {
-
-                        String method = mget.group(1);
-                        String shortResource = mget.group(2);
-                        String httpVersion = mget.group(3);
-                        System.out.println("shortResource: " + shortResource);
-
-                        String longResource = this.LRUCache.getValue(shortResource);
-                        System.out.println("Cache longResource: " + longResource);
-
-                        if (longResource == null) {
-                            longResource = find(shortResource, this.dbConnect);
-                            this.LRUCache.putValue(shortResource, longResource);
-                            System.out.println("DB longResource: " + longResource);
+                    if (!valid) {
+                        accessLog.log(AccessLog.WARN, "Bad request line: " + requestLine);
+                        break;
+                    }
+                    keepAlive = bodyLength >= 0 && requestCount < MAX_REQUESTS_PER_CONNECTION
+                            && HttpIO.isKeepAlive(requestLine.httpVersion(), headers);
+                    List<String> batchLines = null;
+                    if (requestLine.isBatch()) {
+                        batchLines = Batch.accepts(bodyLength) ? Batch.lines(Batch.read(in, bodyLength)) : null;
+                        if (batchLines == null) {
+                            dataOut.write(Batch.tooLarge());
+                            break;
                         }
+                    } else if (bodyLength > 0) {
+                        HttpIO.skip(in, bodyLength);
+                    }
 
-                        if (longResource != null) {
-                            File file = new File(WEB_ROOT, REDIRECT);
-                            int fileLength = (int) file.length();
-                            String contentMimeType = "text/html";
-
-                            // read content to return to client
-                            byte[] fileData = readFileData(file, fileLength);
-
-                            // out.println("HTTP/1.1 301 Moved Permanently");
-                            out.println("HTTP/1.1 307 Temporary Redirect");
-                            out.println("Location: " + longResource);
-                            setHttpResponseHeaders(fileLength, contentMimeType, fileData);
-                        } else {
-                            File file = new File(WEB_ROOT, FILE_NOT_FOUND);
-                            int fileLength = (int) file.length();
-                            String content = "text/html";
-                            byte[] fileData = readFileData(file, fileLength);
-
-                            out.println("HTTP/1.1 404 File Not Found");
-                            setHttpResponseHeaders(fileLength, content, fileData);
-                        }
+                    handleRequest(requestLine, batchLines, headers, keepAlive, start);
+
+                    // answer a pipelined batch with a single flush
+                    if (!keepAlive || in.available() == 0) {
+                        dataOut.flush();
                     }
                 }
+                dataOut.flush();
             } catch (Exception e) {
-                System.err.println("Server error: " + e.getMessage());
+                accessLog.log(AccessLog.WARN, "Server error: " + e.getMessage());
             } finally {
                 try {
-                    in.close();
-                    out.close();
                     if (clientConnect != null) {
                         clientConnect.close(); // we close socket connection
                     }
                 } catch (Exception e) {
-                    System.err.println("Error closing stream : " + e.getMessage());
+                    accessLog.log(AccessLog.WARN, "Error closing stream : " + e.getMessage());
                 }
 
-                if (verbose) {
-                    System.out.println("Connection closed.\n");
-                }
+                accessLog.log(AccessLog.DEBUG, "Connection closed");
             }
         }
 
-        private void setHttpResponseHeaders(int fileLength, String contentMimeType, byte[] fileData)
-                throws IOException {
-            out.println("Server: Java HTTP Server/Shortener : 1.0");
-            out.println("Date: " + new Date());
-            out.println("Content-type: " + contentMimeType);
-            out.println("Content-length: " + fileLength);
-            out.println();
-            out.flush();
-
-            dataOut.write(fileData, 0, fileLength);
-            dataOut.flush();
+        private void handleRequest(RequestLine request, List<String> batchLines, Map<String, String> headers,
+                                   boolean keepAlive, long start) throws IOException {
+            if (request.isBatch()) {
+                dataOut.write(Batch.response(batch(request.isPut(), batchLines, this.storage, this.cache), keepAlive));
+                served(request.isPut() ? "BATCH-PUT" : "BATCH-GET", Integer.toString(batchLines.size()), 200, start,
+                        "batch");
+                return;
+            }
+            if (request.isCreate()) {
+                String code = create(request.longResource(), headers, this.storage, this.cache);
+                dataOut.write(createdResponse(code, keepAlive));
+                served("PUT", code, 201, start, "create");
+                return;
+            }
+            String shortResource = request.shortResource();
+            if (request.isPut()) {
+                String longResource = request.longResource();
+                record(shortResource, longResource, this.cache);
+                dataOut.write(recordedResponse(keepAlive));
+                served("PUT", shortResource, 200, start, "commit");
+                return;
+            }
+
+            long cacheStart = System.nanoTime();
+            String longResource = this.cache.getValue(shortResource);
+            cacheLatency.recordSince(cacheStart);
+            String source = "cache";
+            if (longResource == null) {
+                longResource = lookup(shortResource, this.storage, this.cache);
+                source = "store";
+            }
+
+            dataOut.write(longResource != null ? redirectResponse(longResource, keepAlive) : notFoundResponse(keepAlive));
+            served("GET", shortResource, longResource != null ? 307 : 404, start, source);
         }
     }
 }
@@ -0,0 +1,143 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import bench.Targets;
+
+/**
+ * The server classes behind bench.Targets; see there for why this class exists.
+ */
+public final class BenchTargets {
+
+    private BenchTargets() {
+    }
+
+    /**
+     * "lru-sync": LRUCacheSync, one lock for the whole cache; "tinylfu": the segmented TinyLFUCache
+     * the shortener serves from.
+     */
+    public static Targets.Cache cache(String kind, int capacity) {
+        switch (kind) {
+            case "lru-sync": {
+                LRUCacheSync<String, String> cache = new LRUCacheSync<>(capacity);
+                return new Targets.Cache() {
+                    @Override
+                    public String get(String key) {
+                        return cache.getValue(key);
+                    }
+
+                    @Override
+                    public void put(String key, String value) {
+                        cache.putValue(key, value);
+                    }
+                };
+            }
+            case "tinylfu": {
+                TinyLFUCache<String, String> cache = TinyLFUCache.ofEntries(capacity);
+                return new Targets.Cache() {
+                    @Override
+                    public String get(String key) {
+                        return cache.getValue(key);
+                    }
+
+                    @Override
+                    public void put(String key, String value) {
+                        cache.putValue(key, value);
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown cache: " + kind);
+        }
+    }
+
+    /**
+     * What URLShortener.Handler and RunServer do with each request head: read the request line
+     * into the connection's buffer, parse it in place, read the headers and decode the short code.
+     */
+    public static Targets.Parser parser() {
+        byte[] line = new byte[HttpIO.MAX_LINE_LENGTH];
+        RequestLine requestLine = new RequestLine();
+        return request -> {
+            InputStream in = new ByteArrayInputStream(request);
+            int length = HttpIO.readLine(in, line);
+            if (!requestLine.parse(line, 0, length)) {
+                throw new IOException("Bad request line");
+            }
+            Map<String, String> headers = HttpIO.readHeaders(in);
+            if (!HttpIO.isKeepAlive(requestLine.httpVersion(), headers)) {
+                throw new IOException("Not keep-alive");
+            }
+            return requestLine.isPut() ? requestLine.longResource() : requestLine.shortResource();
+        };
+    }
+
+    /**
+     * "sqlite": SqliteStorage in directory/bench.sqlite; "log": LogStorage in directory/bench.log.
+     */
+    public static Targets.Store store(String kind, String directory, String synchronous)
+            throws IOException, SQLException {
+        Storage storage;
+        switch (kind) {
+            case "sqlite":
+                storage = new SqliteStorage(new SqlitePool("jdbc:sqlite:" + directory + "/bench.sqlite",
+                        URLShortener.DB_READERS, synchronous));
+                break;
+            case "log":
+                storage = new LogStorage(new File(directory, "bench.log"), URLShortener.LOG_SEGMENT_BYTES);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown storage: " + kind);
+        }
+        return new Targets.Store() {
+            @Override
+            public String find(String shortURL) throws IOException {
+                return storage.get(shortURL);
+            }
+
+            @Override
+            public void save(String shortURL, String longURL) throws IOException {
+                storage.put(shortURL, longURL);
+            }
+
+            @Override
+            public void saveAll(Map<String, String> pairs) throws IOException {
+                storage.putAll(pairs);
+            }
+
+            @Override
+            public void close() throws IOException {
+                storage.close();
+            }
+        };
+    }
+
+    /**
+     * The lookup RunServer makes for a GET: the current RoutingTable, its owner for the code and,
+     * while a move is under way (one host has just joined), the previous owner.
+     */
+    public static Targets.Router router(int hosts, boolean migrating) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (int i = 1; i <= hosts; i++) {
+            weights.put("dh2010pc" + String.format("%02d", i), 1);
+        }
+        HashRing ring = new HashRing(weights, HashRing.DEFAULT_VNODES);
+        HashRing previous = null;
+        if (migrating) {
+            Map<String, Integer> before = new LinkedHashMap<>(weights);
+            before.remove(weights.keySet().iterator().next());
+            previous = new HashRing(before, HashRing.DEFAULT_VNODES);
+        }
+        AtomicReference<RoutingTable> routing = new AtomicReference<>(new RoutingTable(1, ring, previous));
+        return shortCode -> {
+            RoutingTable table = routing.get();
+            String previousOwner = table.previousOwner(shortCode);
+            return previousOwner != null ? previousOwner : table.route(shortCode);
+        };
+    }
+}
@@ -0,0 +1,35 @@
+package bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line, which takes JMH's options, once per thread
+ * count in -Dbench.threads (default 1,4,16) unless -t gives one. With -rff, each run writes its
+ * own file, suffixed with the thread count.
+ */
+public class BenchMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListWithParams()
+                || options.shouldListProfilers() || options.shouldListResultFormats()
+                || options.getThreads().hasValue()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        for (String count : System.getProperty("bench.threads", "1,4,16").split(",")) {
+            int threads = Integer.parseInt(count.trim());
+            System.out.println("# ---- " + threads + " thread" + (threads == 1 ? "" : "s") + " ----");
+            ChainedOptionsBuilder run = new OptionsBuilder().parent(options).threads(threads);
+            if (options.getResult().hasValue()) {
+                run.result(options.getResult().get() + "." + threads + "t");
+                run.resultFormat(options.getResultFormat().orElse(ResultFormatType.CSV));
+            }
+            new Runner(run.build()).run();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The shortener's URL cache shared by every connection thread: read-through gets, as a GET
+ * does, and puts, as a PUT does, with a working set larger than the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    @Param({"lru-sync", "tinylfu"})
+    public String cache;
+
+    @Param({"uniform", "zipf"})
+    public String distribution;
+
+    @Param({"100000"})
+    public int keys;
+
+    @Param({"10000"})
+    public int capacity;
+
+    Targets.Cache target;
+    String[] codes;
+    String[] urls;
+
+    @Setup
+    public void setup() {
+        target = Targets.cache(cache, capacity);
+        codes = Keys.codes(keys, 42);
+        urls = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            urls[i] = "http://example.com/" + codes[i];
+        }
+        // warm: the hottest keys of the distribution end up cached
+        ThreadCursor warm = new ThreadCursor();
+        warm.setup(this);
+        for (int i = 0; i < capacity * 4; i++) {
+            get(warm);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadCursor extends Cursor {
+        @Setup
+        public void setup(CacheBenchmark benchmark) {
+            init(benchmark.distribution, benchmark.keys);
+        }
+    }
+
+    @Benchmark
+    public String get(ThreadCursor cursor) {
+        int key = cursor.next();
+        String url = target.get(codes[key]);
+        if (url == null) {
+            url = urls[key];
+            target.put(codes[key], url);
+        }
+        return url;
+    }
+
+    @Benchmark
+    public void put(ThreadCursor cursor) {
+        int key = cursor.next();
+        target.put(codes[key], urls[key]);
+    }
+}
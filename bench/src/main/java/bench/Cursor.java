@@ -0,0 +1,24 @@
+package bench;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One thread's walk through the keys of a benchmark. Subclasses are the thread-scoped JMH
+ * states and call init from their setup with the benchmark's parameters.
+ */
+abstract class Cursor {
+
+    private static final AtomicInteger seeds = new AtomicInteger();
+
+    private int[] sequence;
+    private int position;
+
+    void init(String distribution, int keys) {
+        sequence = Keys.sequence(distribution, keys, 1000 + seeds.getAndIncrement());
+        position = 0;
+    }
+
+    int next() {
+        return sequence[position++ & (Keys.SEQUENCE_LENGTH - 1)];
+    }
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Short codes and the order benchmarks visit them in.
+ *
+ * "uniform" picks every key equally often; "zipf" picks the key of rank k with probability
+ * proportional to 1 / k^0.99, the skew of real short link traffic, where a few codes take most
+ * of the reads. Each thread gets its own sequence, so threads do not move in lockstep.
+ */
+final class Keys {
+
+    static final String BASE62 = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+    static final double ZIPF_EXPONENT = 0.99;
+    // indexes drawn in advance per thread, so drawing costs nothing inside the measurement
+    static final int SEQUENCE_LENGTH = 1 << 16;
+
+    private Keys() {
+    }
+
+    /**
+     * count distinct random 7-character base62 codes.
+     */
+    static String[] codes(int count, long seed) {
+        Random random = new Random(seed);
+        Set<String> codes = new LinkedHashSet<>();
+        char[] code = new char[7];
+        while (codes.size() < count) {
+            for (int i = 0; i < code.length; i++) {
+                code[i] = BASE62.charAt(random.nextInt(BASE62.length()));
+            }
+            codes.add(new String(code));
+        }
+        return codes.toArray(new String[0]);
+    }
+
+    /**
+     * SEQUENCE_LENGTH indexes into keys codes, drawn from distribution.
+     */
+    static int[] sequence(String distribution, int keys, long seed) {
+        Random random = new Random(seed);
+        int[] sequence = new int[SEQUENCE_LENGTH];
+        switch (distribution) {
+            case "uniform":
+                for (int i = 0; i < sequence.length; i++) {
+                    sequence[i] = random.nextInt(keys);
+                }
+                break;
+            case "zipf":
+                double[] cumulative = new double[keys];
+                double total = 0;
+                for (int k = 0; k < keys; k++) {
+                    total += 1 / Math.pow(k + 1, ZIPF_EXPONENT);
+                    cumulative[k] = total;
+                }
+                for (int i = 0; i < sequence.length; i++) {
+                    int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                    sequence[i] = Math.min(rank < 0 ? -rank - 1 : rank, keys - 1);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown distribution: " + distribution);
+        }
+        return sequence;
+    }
+}
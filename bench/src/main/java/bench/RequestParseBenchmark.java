@@ -0,0 +1,72 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a GET or PUT request head as both servers' connection handlers do, from request
+ * line to decoded short code. Each thread has its own parser, as each connection does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParseBenchmark {
+
+    @Param({"GET", "PUT"})
+    public String method;
+
+    @Param({"uniform", "zipf"})
+    public String distribution;
+
+    @Param({"10000"})
+    public int keys;
+
+    byte[][] requests;
+
+    @Setup
+    public void setup() {
+        String[] codes = Keys.codes(keys, 42);
+        requests = new byte[keys][];
+        for (int i = 0; i < keys; i++) {
+            String target = method.equals("PUT")
+                    ? "/?short=" + codes[i] + "&long=http%3A%2F%2Fexample.com%2Fpath%3Fid%3D" + i
+                    : "/" + codes[i];
+            requests[i] = (method + " " + target + " HTTP/1.1\r\n"
+                    + "Host: dh2010pc01:8081\r\n"
+                    + "User-Agent: curl/8.4.0\r\n"
+                    + "Accept: */*\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection extends Cursor {
+        Targets.Parser parser;
+
+        @Setup
+        public void setup(RequestParseBenchmark benchmark) {
+            init(benchmark.distribution, benchmark.keys);
+            parser = Targets.parser();
+        }
+    }
+
+    @Benchmark
+    public String parse(Connection connection) throws IOException {
+        return connection.parser.parse(requests[connection.next()]);
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The proxy's per-request routing lookup in the table HostWatcher publishes, on a stable ring
+ * and while a joining host's data is being moved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingLookupBenchmark {
+
+    @Param({"3", "10"})
+    public int hosts;
+
+    @Param({"false", "true"})
+    public boolean migrating;
+
+    @Param({"uniform", "zipf"})
+    public String distribution;
+
+    @Param({"100000"})
+    public int keys;
+
+    Targets.Router target;
+    String[] codes;
+
+    @Setup
+    public void setup() {
+        target = Targets.router(hosts, migrating);
+        codes = Keys.codes(keys, 42);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadCursor extends Cursor {
+        @Setup
+        public void setup(RoutingLookupBenchmark benchmark) {
+            init(benchmark.distribution, benchmark.keys);
+        }
+    }
+
+    @Benchmark
+    public String route(ThreadCursor cursor) {
+        return target.route(codes[cursor.next()]);
+    }
+}
@@ -0,0 +1,99 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * find and save of one URL against storage in a temporary directory, loaded with keys rows:
+ * the cache-miss read of a GET and the write of an uncached PUT, without the group commit.
+ * save rewrites existing codes so the table size stays put during the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    @Param({"sqlite", "log"})
+    public String storage;
+
+    @Param({"uniform", "zipf"})
+    public String distribution;
+
+    @Param({"100000"})
+    public int keys;
+
+    // shortener.dbSynchronous; sqlite only
+    @Param({"FULL"})
+    public String synchronous;
+
+    Targets.Store target;
+    Path directory;
+    String[] codes;
+    String[] urls;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("urlshortener-bench");
+        target = Targets.store(storage, directory.toString(), synchronous);
+        codes = Keys.codes(keys, 42);
+        urls = new String[keys];
+        Map<String, String> batch = new LinkedHashMap<>();
+        for (int i = 0; i < keys; i++) {
+            urls[i] = "http://example.com/" + codes[i];
+            batch.put(codes[i], urls[i]);
+            if (batch.size() == 10_000 || i == keys - 1) {
+                target.saveAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        target.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadCursor extends Cursor {
+        @Setup
+        public void setup(StorageBenchmark benchmark) {
+            init(benchmark.distribution, benchmark.keys);
+        }
+    }
+
+    @Benchmark
+    public String find(ThreadCursor cursor) throws IOException {
+        return target.find(codes[cursor.next()]);
+    }
+
+    @Benchmark
+    public void save(ThreadCursor cursor) throws IOException {
+        int key = cursor.next();
+        target.save(codes[key], urls[key]);
+    }
+}
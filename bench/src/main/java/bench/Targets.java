@@ -0,0 +1,74 @@
+package bench;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * What the benchmarks measure, as interfaces. The server classes are in the unnamed package,
+ * which JMH does not accept benchmarks in and which code in a named package cannot refer to, so
+ * BenchTargets, in the unnamed package, adapts them to these interfaces and is looked up here
+ * once per trial. Each benchmark call site sees a single implementation, which the JIT inlines.
+ */
+public final class Targets {
+
+    public interface Cache {
+        String get(String key);
+
+        void put(String key, String value);
+    }
+
+    /**
+     * Reads one request the way a connection handler does and returns its short code.
+     */
+    public interface Parser {
+        String parse(byte[] request) throws IOException;
+    }
+
+    public interface Store extends AutoCloseable {
+        String find(String shortURL) throws IOException;
+
+        void save(String shortURL, String longURL) throws IOException;
+
+        void saveAll(Map<String, String> pairs) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    public interface Router {
+        String route(String shortCode);
+    }
+
+    private Targets() {
+    }
+
+    static Cache cache(String kind, int capacity) {
+        return (Cache) create("cache", new Class<?>[]{String.class, int.class}, kind, capacity);
+    }
+
+    static Parser parser() {
+        return (Parser) create("parser", new Class<?>[0]);
+    }
+
+    static Store store(String kind, String directory, String synchronous) {
+        return (Store) create("store", new Class<?>[]{String.class, String.class, String.class},
+                kind, directory, synchronous);
+    }
+
+    static Router router(int hosts, boolean migrating) {
+        return (Router) create("router", new Class<?>[]{int.class, boolean.class}, hosts, migrating);
+    }
+
+    private static Object create(String factory, Class<?>[] types, Object... args) {
+        try {
+            Method method = Class.forName("BenchTargets").getMethod(factory, types);
+            return method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("BenchTargets." + factory + " failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchTargets." + factory + " not found", e);
+        }
+    }
+}
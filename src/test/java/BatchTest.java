@@ -0,0 +1,23 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class BatchTest {
+
+    @Test
+    void splitsPairs() {
+        assertArrayEquals(new String[]{"a", "http://x.com/ y"}, Batch.pair("a http://x.com/ y"));
+        assertNull(Batch.pair("a"));
+        assertNull(Batch.pair(" http://x.com/"));
+        assertNull(Batch.pair("a "));
+    }
+
+    @Test
+    void rejectsControlCharacters() {
+        for (String control : new String[]{"\r", "\u0000", "\u007f", "\u001b", "\t"}) {
+            assertNull(Batch.pair("a http://x.com/" + control + "Set-Cookie: pwn=1"), "long with " + control);
+            assertNull(Batch.pair("a" + control + "b http://x.com/"), "short with " + control);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class HashRingTest {
+
+    private static final int KEYS = 100_000;
+
+    private static HashRing ring(String... hosts) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String host : hosts) {
+            weights.put(host, 1);
+        }
+        return new HashRing(weights, HashRing.DEFAULT_VNODES);
+    }
+
+    /**
+     * Checks that the moves cover exactly the keys whose owner changed, each once and with the
+     * right owners, and returns the share of keys that moved.
+     */
+    private static double checkMoves(HashRing from, HashRing to) {
+        List<HashRing.Move> moves = from.movesTo(to);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = Integer.toString(i, 36);
+            String before = from.route(key);
+            String after = to.route(key);
+            HashRing.Move covering = null;
+            int covered = 0;
+            for (HashRing.Move move : moves) {
+                if (move.contains(key)) {
+                    covering = move;
+                    covered++;
+                }
+            }
+            if (before.equals(after)) {
+                assertEquals(0, covered, key + " stays on " + before + " but is in a move");
+            } else {
+                moved++;
+                assertEquals(1, covered, key + " moves from " + before + " to " + after);
+                assertEquals(before, covering.from, key);
+                assertEquals(after, covering.to, key);
+            }
+        }
+        return (double) moved / KEYS;
+    }
+
+    @Test
+    void addingAHostMovesOnlyItsShare() {
+        HashRing from = ring("a", "b", "c", "d");
+        HashRing to = ring("a", "b", "c", "d", "e");
+        double moved = checkMoves(from, to);
+        assertTrue(moved > 0.15 && moved < 0.25, "moved " + moved);
+        for (HashRing.Move move : from.movesTo(to)) {
+            assertEquals("e", move.to);
+        }
+    }
+
+    @Test
+    void removingAHostMovesOnlyItsKeys() {
+        HashRing from = ring("a", "b", "c", "d", "e");
+        HashRing to = ring("a", "b", "d", "e");
+        double moved = checkMoves(from, to);
+        assertTrue(moved > 0.15 && moved < 0.25, "moved " + moved);
+        for (HashRing.Move move : from.movesTo(to)) {
+            assertEquals("c", move.from);
+        }
+    }
+
+    @Test
+    void unchangedRingHasNoMoves() {
+        assertTrue(ring("a", "b", "c").movesTo(ring("a", "b", "c")).isEmpty());
+    }
+}
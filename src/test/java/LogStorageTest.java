@@ -0,0 +1,174 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LogStorageTest {
+
+    // every record here is a 4-byte key and a 22-byte value
+    private static final int RECORD_BYTES = LogStorage.HEADER_BYTES + 4 + 22;
+    private static final int TOMBSTONE_BYTES = LogStorage.HEADER_BYTES + 4;
+
+    @TempDir
+    File dir;
+
+    private static String key(int i) {
+        return String.format("k%03d", i);
+    }
+
+    private static String value(String host, int i) {
+        return String.format("http://example.%s/%03d", host, i);
+    }
+
+    private static List<Path> segments(File dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir.toPath())) {
+            return files.filter(file -> file.toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+
+    @Test
+    void tornTailRecordIsDropped() throws Exception {
+        try (LogStorage storage = new LogStorage(dir, 1 << 16)) {
+            storage.put("k001", value("com", 1));
+            storage.put("k002", value("com", 2));
+            storage.delete("k001");
+            storage.put("k003", value("com", 3));
+        }
+        Path segment = segments(dir).get(0);
+        long length = Files.size(segment);
+        assertEquals(3 * RECORD_BYTES + TOMBSTONE_BYTES, length);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // the last put is cut short by a crash
+            file.setLength(length - 5);
+        }
+
+        try (LogStorage storage = new LogStorage(dir, 1 << 16)) {
+            assertNull(storage.get("k001"));
+            assertEquals(value("com", 2), storage.get("k002"));
+            assertNull(storage.get("k003"));
+            assertEquals(1, storage.count());
+            assertEquals(2 * RECORD_BYTES + TOMBSTONE_BYTES, Files.size(segment));
+            // appends after the trimmed tail survive the next restart
+            storage.put("k004", value("com", 4));
+        }
+        try (LogStorage storage = new LogStorage(dir, 1 << 16)) {
+            assertEquals(value("com", 2), storage.get("k002"));
+            assertEquals(value("com", 4), storage.get("k004"));
+            assertEquals(2, storage.count());
+        }
+    }
+
+    @Test
+    void tailRecordFailingItsCrcIsDropped() throws Exception {
+        try (LogStorage storage = new LogStorage(dir, 1 << 16)) {
+            storage.putAll(Map.of("k001", value("com", 1), "k002", value("com", 2)));
+            storage.put("k001", value("org", 1));
+            storage.delete("k002");
+        }
+        Path segment = segments(dir).get(0);
+        long length = Files.size(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // a bit flipped in the key of the tombstone, and garbage after it
+            file.seek(length - 1);
+            int last = file.read();
+            file.seek(length - 1);
+            file.write(last ^ 1);
+            file.write(new byte[]{LogStorage.PUT, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        }
+
+        try (LogStorage storage = new LogStorage(dir, 1 << 16)) {
+            assertEquals(value("org", 1), storage.get("k001"));
+            // the delete did not survive, so the put before it is live again
+            assertEquals(value("com", 2), storage.get("k002"));
+            assertEquals(length - TOMBSTONE_BYTES, Files.size(segment));
+        }
+    }
+
+    @Test
+    void recoversWritesOfAStoreThatWasNeverClosed() throws Exception {
+        File crashed = new File(dir, "crashed");
+        LogStorage storage = new LogStorage(new File(dir, "live"), 1024);
+        for (int i = 0; i < 100; i++) {
+            storage.put(key(i), value("com", i));
+        }
+        storage.put(key(7), value("org", 7));
+        storage.deleteAll(List.of(key(8), key(9)));
+        // what a crash leaves on disk: every segment as written, the active one still full length
+        Files.createDirectories(crashed.toPath());
+        for (Path segment : segments(new File(dir, "live"))) {
+            Files.copy(segment, crashed.toPath().resolve(segment.getFileName()));
+        }
+        storage.close();
+
+        try (LogStorage recovered = new LogStorage(crashed, 1024)) {
+            assertEquals(98, recovered.count());
+            assertEquals(value("org", 7), recovered.get(key(7)));
+            assertNull(recovered.get(key(8)));
+            assertNull(recovered.get(key(9)));
+            assertEquals(value("com", 99), recovered.get(key(99)));
+        }
+    }
+
+    @Test
+    void compactionKeepsLiveRecordsOnly() throws Exception {
+        int keys = 150;
+        try (LogStorage storage = new LogStorage(dir, 2048)) {
+            for (int i = 0; i < keys; i++) {
+                storage.put(key(i), value("com", i));
+            }
+        }
+        try (LogStorage storage = new LogStorage(dir, 2048)) {
+            // overwrites and deletes go to the active segment, which compaction leaves alone
+            for (int i = 0; i < 30; i++) {
+                storage.put(key(i), value("org", i));
+            }
+            List<String> deleted = new ArrayList<>();
+            for (int i = 30; i < 60; i++) {
+                deleted.add(key(i));
+            }
+            storage.deleteAll(deleted);
+            assertEquals(0, storage.compactionCount());
+            List<Path> before = segments(dir);
+            Path active = before.get(before.size() - 1);
+            assertEquals(keys * RECORD_BYTES, sealedBytes(before, active));
+
+            storage.compact();
+
+            assertTrue(storage.compactionCount() > 0);
+            assertEquals((keys - 60) * RECORD_BYTES, sealedBytes(segments(dir), active));
+            assertValues(storage, keys);
+        }
+        try (LogStorage storage = new LogStorage(dir, 2048)) {
+            assertValues(storage, keys);
+        }
+    }
+
+    private static long sealedBytes(List<Path> segments, Path active) throws IOException {
+        long bytes = 0;
+        for (Path segment : segments) {
+            if (!segment.equals(active)) {
+                bytes += Files.size(segment);
+            }
+        }
+        return bytes;
+    }
+
+    private static void assertValues(LogStorage storage, int keys) throws IOException {
+        assertEquals(keys - 30, storage.count());
+        for (int i = 0; i < keys; i++) {
+            String expected = i < 30 ? value("org", i) : i < 60 ? null : value("com", i);
+            assertEquals(expected, storage.get(key(i)), key(i));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class RequestLineTest {
+
+    private static boolean parse(RequestLine requestLine, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        return requestLine.parse(bytes, 0, bytes.length);
+    }
+
+    @Test
+    void decodesEscapedFields() {
+        RequestLine requestLine = new RequestLine();
+        assertTrue(parse(requestLine, "PUT /?short=a%2Fb&long=http://x.com/%7Ehome HTTP/1.1"));
+        assertEquals("a/b", requestLine.shortResource());
+        assertEquals("http://x.com/~home", requestLine.longResource());
+    }
+
+    @Test
+    void rejectsEscapedControlBytes() {
+        RequestLine requestLine = new RequestLine();
+        for (String control : new String[]{"%0d", "%0D", "%0a", "%00", "%7f", "%1b"}) {
+            assertFalse(parse(requestLine, "PUT /?short=x&long=http://a" + control + "Set-Cookie:%20pwn=1 HTTP/1.1"),
+                    "long with " + control);
+            assertFalse(parse(requestLine, "PUT /?short=x" + control + "y&long=http://a HTTP/1.1"),
+                    "short with " + control);
+            assertFalse(parse(requestLine, "PUT /?long=http://a" + control + "b HTTP/1.1"),
+                    "create with " + control);
+            assertFalse(parse(requestLine, "GET /x" + control + "y HTTP/1.1"), "path with " + control);
+        }
+    }
+}
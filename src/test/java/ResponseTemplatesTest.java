@@ -0,0 +1,19 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class ResponseTemplatesTest {
+
+    @Test
+    void controlBytesInLocationAreEncoded() throws Exception {
+        ResponseTemplates templates = new ResponseTemplates(new File("."), URLShortener.REDIRECT,
+                URLShortener.FILE_NOT_FOUND, URLShortener.REDIRECT_RECORDED, 5000, 100);
+        String response = new String(templates.redirect("http://a\r\nSet-Cookie: pwn=1\u0000", true),
+                StandardCharsets.ISO_8859_1);
+        assertTrue(response.contains("Location: http://a%0D%0ASet-Cookie: pwn=1%00\r\n"), response);
+        assertFalse(response.contains("\r\nSet-Cookie"), response);
+    }
+}
@@ -0,0 +1,46 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StorageTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void sqliteReplacesOnlyUnchangedRows() throws Exception {
+        SqlitePool pool = new SqlitePool("jdbc:sqlite:" + new File(dir, "urls.sqlite"), 1, "NORMAL");
+        try (Storage storage = new SqliteStorage(pool)) {
+            replacesOnlyUnchangedRows(storage);
+        }
+    }
+
+    @Test
+    void logReplacesOnlyUnchangedRows() throws Exception {
+        try (Storage storage = new LogStorage(new File(dir, "urls.log"), 1 << 16)) {
+            replacesOnlyUnchangedRows(storage);
+        }
+    }
+
+    private static void replacesOnlyUnchangedRows(Storage storage) throws Exception {
+        storage.putAll(Map.of("copied", "http://old/1", "rewritten", "http://client/2"));
+
+        Map<String, String> pairs = new LinkedHashMap<>();
+        pairs.put("copied", "http://new/1");
+        pairs.put("rewritten", "http://new/2");
+        pairs.put("absent", "http://new/3");
+        pairs.put("unexpected", "http://new/4");
+        Map<String, String> expected = Map.of("copied", "http://old/1", "rewritten", "http://old/2",
+                "absent", "http://old/3");
+
+        assertEquals(Map.of("copied", "http://new/1"), storage.replaceAll(pairs, expected));
+        assertEquals("http://new/1", storage.get("copied"));
+        assertEquals("http://client/2", storage.get("rewritten"));
+        assertEquals(null, storage.get("absent"));
+        assertEquals(null, storage.get("unexpected"));
+    }
+}
@@ -0,0 +1,36 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TinyLFUCacheTest {
+
+    // more hot keys than fit, so that every segment is full
+    private static TinyLFUCache<String, String> full(int capacity) {
+        TinyLFUCache<String, String> cache = TinyLFUCache.ofEntries(capacity);
+        for (int i = 0; i < capacity * 8; i++) {
+            String key = "hot" + (i % (capacity * 2));
+            cache.getValue(key);
+            cache.putValue(key, "v");
+        }
+        return cache;
+    }
+
+    @Test
+    void admittedWriteOfNewKeyGetsInWhenFull() {
+        TinyLFUCache<String, String> cache = full(100);
+        cache.putValue("new", "written", true);
+        assertEquals("written", cache.getValue("new"));
+        assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    void rejectedKeyEvictsNothing() {
+        TinyLFUCache<String, String> cache = full(100);
+        int size = cache.size();
+        cache.putValue("cold", "v");
+        assertNull(cache.getValue("cold"));
+        assertEquals(size, cache.size());
+    }
+}